@@ -0,0 +1,20 @@
+package de.caluga.morphium;
+
+/**
+ * Defines, what happens if an asynchronous query (<code>asListAsync()</code> etc.) is issued while the queue of the
+ * reader pool is full (see <code>MorphiumConfig.setAsyncReadQueueSize()</code>)
+ */
+public enum AsyncReadPolicy {
+    /**
+     * the calling thread waits until there is room in the queue
+     */
+    BLOCK,
+    /**
+     * the query is executed by the calling thread, the returned future is done
+     */
+    CALLER_RUNS,
+    /**
+     * a RejectedExecutionException is thrown
+     */
+    ABORT
+}
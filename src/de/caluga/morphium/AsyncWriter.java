@@ -0,0 +1,135 @@
+package de.caluga.morphium;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Executes asynchronous writes (Morphium.storeAsync() etc.). Writes are distributed on lanes, each lane being one
+ * thread working in order - all writes with the same key (usually type and id of the entity) are executed in the
+ * order they were submitted, writes with different keys may run in parallel.
+ */
+final class AsyncWriter {
+    private static final Logger log = Logger.getLogger(AsyncWriter.class);
+    private final ThreadPoolExecutor[] lanes;
+
+    AsyncWriter(int threads) {
+        lanes = new ThreadPoolExecutor[Math.max(1, threads)];
+        for (int i = 0; i < lanes.length; i++) {
+            final String name = "morphium_async_writer_" + i;
+            lanes[i] = new ThreadPoolExecutor(1, 1, 10000L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            lanes[i].allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * @return index of the lane for the key
+     */
+    int lane(int key) {
+        return (key & 0x7fffffff) % lanes.length;
+    }
+
+    <T> Future<T> submit(int key, Callable<T> task) {
+        return lanes[lane(key)].submit(task);
+    }
+
+    <T> Future<T> submitToLane(int lane, Callable<T> task) {
+        return lanes[lane].submit(task);
+    }
+
+    /**
+     * @return number of writes not finished yet
+     */
+    int size() {
+        int ret = 0;
+        for (ThreadPoolExecutor l : lanes) {
+            ret += l.getQueue().size() + l.getActiveCount();
+        }
+        return ret;
+    }
+
+    /**
+     * writes already submitted are still executed, waits for them at most timeout ms
+     */
+    void shutdown(long timeout) {
+        for (ThreadPoolExecutor l : lanes) {
+            l.shutdown();
+        }
+        long end = System.currentTimeMillis() + timeout;
+        try {
+            for (ThreadPoolExecutor l : lanes) {
+                if (!l.awaitTermination(Math.max(0, end - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                    log.warn("Asynchronous writes still pending on shutdown: " + (l.getQueue().size() + l.getActiveCount()));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * future, which is done, when all given futures are done. get() throws the first error
+     */
+    static final class AllOf implements Future<Void> {
+        private final List<Future<?>> futures;
+
+        AllOf(List<Future<?>> futures) {
+            this.futures = new ArrayList<Future<?>>(futures);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean ret = false;
+            for (Future<?> f : futures) {
+                ret |= f.cancel(mayInterruptIfRunning);
+            }
+            return ret;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            for (Future<?> f : futures) {
+                if (f.isCancelled()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            for (Future<?> f : futures) {
+                if (!f.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Void get() throws InterruptedException, ExecutionException {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            return null;
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            long end = System.nanoTime() + unit.toNanos(timeout);
+            for (Future<?> f : futures) {
+                f.get(Math.max(0, end - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package de.caluga.morphium;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown by Morphium.storeNoCacheList(), if some of the objects could not be written. Every write is acknowledged on
+ * its own, all other objects were stored. Thrown by ModifierBatch.execute() as well, failed are the queries of the
+ * operations then.
+ */
+public class BatchWriteException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    private final transient List<Object> failed;
+    private final List<String> errors;
+
+    public BatchWriteException(List<Object> failed, List<String> errors) {
+        super(failed.size() + " objects could not be stored: " + errors);
+        this.failed = Collections.unmodifiableList(failed);
+        this.errors = Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * @return the objects (resp. queries), which could not be written
+     */
+    public List<Object> getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return error message of each failed object, in the same order
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+}
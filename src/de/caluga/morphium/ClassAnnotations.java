@@ -0,0 +1,77 @@
+package de.caluga.morphium;
+
+import de.caluga.morphium.annotations.lifecycle.Lifecycle;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Annotations of a class, collected once from the class hierarchy - the annotation of the most specific class wins,
+ * as in Morphium.getAnnotationFromHierarchy(). For classes marked @Lifecycle the lifecycle methods are resolved as
+ * well.
+ * <p/>
+ * Immutable, shared by all threads.
+ */
+final class ClassAnnotations {
+    private final Map<Class<? extends Annotation>, Annotation> annotations;
+    private final Map<Class<? extends Annotation>, Method> lifecycleMethods;
+
+    /**
+     * @param cls       - the class, maybe a proxy. Its public methods are the lifecycle methods
+     * @param realClass - the class annotations are read from
+     */
+    ClassAnnotations(Class<?> cls, Class<?> realClass) {
+        Map<Class<? extends Annotation>, Annotation> an = new HashMap<Class<? extends Annotation>, Annotation>();
+        Class<?> z = realClass;
+        while (z != null && !z.equals(Object.class)) {
+            for (Annotation a : z.getAnnotations()) {
+                if (!an.containsKey(a.annotationType())) {
+                    an.put(a.annotationType(), a);
+                }
+            }
+            z = z.getSuperclass();
+        }
+        annotations = an;
+
+        if (an.containsKey(Lifecycle.class)) {
+            Map<Class<? extends Annotation>, Method> methods = new HashMap<Class<? extends Annotation>, Method>();
+            //Methods must be public
+            for (Method m : cls.getMethods()) {
+                Annotation[] mAn = m.getAnnotations();
+                if (mAn.length == 0) continue;
+                try {
+                    //skip access checks on invocation
+                    m.setAccessible(true);
+                } catch (RuntimeException e) {
+                    //not allowed - invoke() checks access then
+                }
+                for (Annotation a : mAn) {
+                    methods.put(a.annotationType(), m);
+                }
+            }
+            lifecycleMethods = methods;
+        } else {
+            lifecycleMethods = Collections.emptyMap();
+        }
+    }
+
+    /**
+     * @return the annotation, null if neither the class nor a superclass has it
+     */
+    @SuppressWarnings("unchecked")
+    <T extends Annotation> T get(Class<T> anCls) {
+        //no Class.cast() - type checks against annotation proxies are expensive
+        return (T) annotations.get(anCls);
+    }
+
+    /**
+     * @return the method annotated with the lifecycle annotation, null if there is none or the class is not marked
+     *         with @Lifecycle
+     */
+    Method getLifecycleMethod(Class<? extends Annotation> type) {
+        return lifecycleMethods.get(type);
+    }
+}
@@ -0,0 +1,341 @@
+package de.caluga.morphium;
+
+import com.mongodb.*;
+import org.apache.log4j.Logger;
+import org.bson.BSON;
+import org.bson.io.Bits;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes documents straight into entities from the BSON data, instead of building a DBObject tree in the driver
+ * and unmarshalling it afterwards. Keys are compared with the (UTF-8 encoded) names of the stored properties, without
+ * creating strings. Plain values - strings, numbers, booleans, dates and ids - are set directly on the entity,
+ * primitives without boxing. Embedded objects are decoded the same way, recursively. Only lists, maps and other
+ * values needing conversion are decoded by the driver and passed to the ObjectMapper. Values of @Lazy properties are
+ * kept as BSON, see LazyFieldsProxy.
+ * <p/>
+ * The decoder returns a DecodedObject holding the entity, ObjectMapperImpl.unmarshall() just returns it.
+ * <p/>
+ * If a document cannot be decoded directly - it contains a class_name, $err (error reply) or an unsupported type,
+ * there are decoding hooks, setting a value fails... - it is decoded into a DBObject and unmarshalled the usual way.
+ * Errors are never thrown while the driver reads the response.
+ */
+class EntityDecoder extends DefaultDBDecoder {
+    private static final Logger log = Logger.getLogger(EntityDecoder.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final DBObject EMPTY = new BasicDBObject();
+
+    private final ObjectMapperImpl mapper;
+    private final EntityModel model;
+    /**
+     * position after the last value read by readValue()
+     */
+    private int valueEnd;
+
+    EntityDecoder(ObjectMapperImpl mapper, EntityModel model) {
+        this.mapper = mapper;
+        this.model = model;
+    }
+
+    /**
+     * @return true, if documents of this type can be decoded directly
+     */
+    static boolean isDecodable(EntityModel m) {
+        return !m.isPolymorph() && m.hasUniqueStoredNames();
+    }
+
+    static DBDecoderFactory factory(final ObjectMapperImpl mapper, final EntityModel model) {
+        return new DBDecoderFactory() {
+            @Override
+            public DBDecoder create() {
+                return new EntityDecoder(mapper, model);
+            }
+        };
+    }
+
+    @Override
+    public DBObject decode(InputStream in, DBCollection collection) throws IOException {
+        //read the document completely, so that a failed decoding does not affect the response
+        byte[] len = new byte[4];
+        Bits.readFully(in, len);
+        int size = Bits.readInt(len);
+        byte[] data = new byte[size];
+        System.arraycopy(len, 0, data, 0, 4);
+        Bits.readFully(in, data, 4, size - 4);
+        return decode(data, collection);
+    }
+
+    @Override
+    public DBObject decode(byte[] b, DBCollection collection) {
+        if (!BSON.hasDecodeHooks()) {
+            try {
+                return new DecodedObject(read(model, b, 0, collection));
+            } catch (RuntimeException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Could not decode " + model.getType().getName() + " directly: " + e.getMessage());
+                }
+            }
+        }
+        return super.decode(b, collection);
+    }
+
+    /**
+     * decode the document starting at pos - like ObjectMapperImpl.unmarshall()
+     */
+    private Object read(EntityModel m, byte[] b, int pos, DBCollection collection) {
+        if (m.isEntity() && m.getIdProperty() == null) {
+            throw new IllegalArgumentException("no id");
+        }
+        Object entity;
+        try {
+            entity = m.getType().newInstance();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        List<EntityModel.Property> props = m.getStoredProperties();
+        boolean[] done = new boolean[props.size()];
+        BasicDBObject node = null;
+        Map<EntityModel.Property, Object> pending = null;
+
+        int end = pos + Bits.readInt(b, pos) - 1;
+        pos += 4;
+        int next = 0;
+        while (pos < end) {
+            int elementStart = pos;
+            byte type = b[pos++];
+            int nameStart = pos;
+            while (b[pos] != 0) {
+                pos++;
+            }
+            int idx = find(props, b, nameStart, pos, next);
+            pos++;
+            if (idx < 0) {
+                String name = new String(b, nameStart, pos - 1 - nameStart, UTF8);
+                if (name.equals("class_name") || name.equals("className")) {
+                    throw new IllegalArgumentException("type defined in document");
+                }
+                if (name.equals("$err")) {
+                    //error reply of the server - the driver checks it (e.g. "not master" for failover)
+                    throw new IllegalArgumentException("error document");
+                }
+                //not mapped - ignored by unmarshall as well
+                pos = skip(type, b, pos);
+                continue;
+            }
+            next = idx + 1;
+            EntityModel.Property p = props.get(idx);
+            FieldAccessor acc = p.getAccessor();
+            EntityModel.Kind kind = p.getKind();
+            done[idx] = true;
+            if (p.isLazy() && type != BSON.NULL) {
+                //keep the element as document of its own, decoded on first access
+                pos = skip(type, b, pos);
+                int len = pos - elementStart;
+                byte[] doc = new byte[len + 5];
+                for (int i = 0; i < 4; i++) {
+                    doc[i] = (byte) (doc.length >>> (8 * i));
+                }
+                System.arraycopy(b, elementStart, doc, 4, len);
+                if (pending == null) {
+                    pending = new HashMap<EntityModel.Property, Object>();
+                }
+                pending.put(p, doc);
+                continue;
+            }
+            if (type == BSON.OBJECT && (kind == EntityModel.Kind.EMBEDDED || kind == EntityModel.Kind.ENTITY)) {
+                EntityModel sub = mapper.getEntityModel(p.getType());
+                if (isDecodable(sub)) {
+                    mapper.setValue(entity, read(sub, b, pos, collection), p);
+                    pos += Bits.readInt(b, pos);
+                    continue;
+                }
+            }
+            if (kind == EntityModel.Kind.VALUE) {
+                switch (type) {
+                    case BSON.NUMBER_INT:
+                        acc.setInt(entity, Bits.readInt(b, pos));
+                        pos += 4;
+                        continue;
+                    case BSON.NUMBER_LONG:
+                        acc.setLong(entity, Bits.readLong(b, pos));
+                        pos += 8;
+                        continue;
+                    case BSON.NUMBER:
+                        acc.setDouble(entity, Double.longBitsToDouble(Bits.readLong(b, pos)));
+                        pos += 8;
+                        continue;
+                    case BSON.BOOLEAN:
+                        acc.setBoolean(entity, b[pos] != 0);
+                        pos += 1;
+                        continue;
+                    default:
+                }
+            }
+            Object v = readValue(type, b, pos, collection);
+            pos = valueEnd;
+            if (kind == EntityModel.Kind.VALUE || kind == EntityModel.Kind.ID) {
+                acc.set(entity, v);
+            } else {
+                //value needs to be converted by the mapper
+                if (node == null) {
+                    node = new BasicDBObject();
+                }
+                node.put(p.getStoredName(), v);
+                done[idx] = false;
+            }
+        }
+
+        DBObject o = node == null ? EMPTY : node;
+        for (int i = 0; i < props.size(); i++) {
+            if (!done[i]) {
+                mapper.setValue(entity, mapper.unmarshallValue(props.get(i), o), props.get(i));
+            }
+        }
+        return mapper.complete(m, entity, pending, collection);
+    }
+
+    /**
+     * @param next - index to check first, usually properties are stored in order
+     * @return index of the property with the name, -1 if there is none
+     */
+    private int find(List<EntityModel.Property> props, byte[] b, int start, int end, int next) {
+        int n = props.size();
+        for (int i = 0; i < n; i++) {
+            int idx = (next + i) % n;
+            byte[] k = props.get(idx).storedKey;
+            if (k.length != end - start) continue;
+            int j = 0;
+            while (j < k.length && k[j] == b[start + j]) {
+                j++;
+            }
+            if (j == k.length) {
+                return idx;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * read a value the way the driver does, sets valueEnd
+     */
+    private Object readValue(byte type, byte[] b, int pos, DBCollection collection) {
+        Object ret;
+        int size;
+        switch (type) {
+            case BSON.NULL:
+            case BSON.UNDEFINED:
+                ret = null;
+                size = 0;
+                break;
+            case BSON.NUMBER_INT:
+                ret = Bits.readInt(b, pos);
+                size = 4;
+                break;
+            case BSON.NUMBER_LONG:
+                ret = Bits.readLong(b, pos);
+                size = 8;
+                break;
+            case BSON.NUMBER:
+                ret = Double.longBitsToDouble(Bits.readLong(b, pos));
+                size = 8;
+                break;
+            case BSON.BOOLEAN:
+                ret = b[pos] != 0;
+                size = 1;
+                break;
+            case BSON.DATE:
+                ret = new Date(Bits.readLong(b, pos));
+                size = 8;
+                break;
+            case BSON.OID:
+                ret = new ObjectId(Bits.readIntBE(b, pos), Bits.readIntBE(b, pos + 4), Bits.readIntBE(b, pos + 8));
+                size = 12;
+                break;
+            case BSON.STRING:
+                size = 4 + Bits.readInt(b, pos);
+                ret = new String(b, pos + 4, size - 5, UTF8);
+                break;
+            case BSON.OBJECT:
+            case BSON.ARRAY:
+                size = Bits.readInt(b, pos);
+                DBObject sub = super.decode(Arrays.copyOfRange(b, pos, pos + size), collection);
+                if (type == BSON.ARRAY) {
+                    BasicDBList lst = new BasicDBList();
+                    for (String k : sub.keySet()) {
+                        lst.add(sub.get(k));
+                    }
+                    ret = lst;
+                } else if (sub.containsField("$ref") && sub.containsField("$id")) {
+                    ret = new DBRef(collection == null ? null : collection.getDB(), sub);
+                } else {
+                    ret = sub;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported type " + type);
+        }
+        valueEnd = pos + size;
+        return ret;
+    }
+
+    /**
+     * @return position after the value
+     */
+    private int skip(byte type, byte[] b, int pos) {
+        switch (type) {
+            case BSON.NULL:
+            case BSON.UNDEFINED:
+            case BSON.MINKEY:
+            case BSON.MAXKEY:
+                return pos;
+            case BSON.BOOLEAN:
+                return pos + 1;
+            case BSON.NUMBER_INT:
+                return pos + 4;
+            case BSON.NUMBER_LONG:
+            case BSON.NUMBER:
+            case BSON.DATE:
+            case BSON.TIMESTAMP:
+                return pos + 8;
+            case BSON.OID:
+                return pos + 12;
+            case BSON.STRING:
+            case BSON.CODE:
+            case BSON.SYMBOL:
+                return pos + 4 + Bits.readInt(b, pos);
+            case BSON.OBJECT:
+            case BSON.ARRAY:
+            case BSON.CODE_W_SCOPE:
+                return pos + Bits.readInt(b, pos);
+            case BSON.BINARY:
+                return pos + 5 + Bits.readInt(b, pos);
+            default:
+                throw new IllegalArgumentException("unsupported type " + type);
+        }
+    }
+
+    /**
+     * root document, holding the decoded entity - it contains no values
+     */
+    static class DecodedObject extends BasicDBObject {
+        private static final long serialVersionUID = 1L;
+        private final transient Object entity;
+
+        private DecodedObject(Object entity) {
+            this.entity = entity;
+        }
+
+        Object getEntity() {
+            return entity;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package de.caluga.morphium;
+
+import com.mongodb.*;
+import org.bson.BSON;
+import org.bson.BSONObject;
+import org.bson.io.OutputBuffer;
+
+import java.util.Map;
+
+/**
+ * Writes entities directly to the BSON buffer of the driver when they are sent to mongo, instead of building a
+ * DBObject with ObjectMapper.marshall() first, which is walked by the driver again for encoding. The documents are the
+ * same as those of marshall(): same keys in the same order, null values only for @UseIfnull, polymorph types with
+ * class_name. Embedded objects are written the same way, recursively - only values like lists, maps and references
+ * are converted by the ObjectMapper. Primitive fields are read with the typed methods of the FieldAccessor and written
+ * without boxing.
+ * <p/>
+ * Entities are wrapped in an EntityObject (see ObjectMapper.wrapForEncoder()), which only contains the _id. All other
+ * documents - e.g. queries of updates - are encoded as usual.
+ */
+class EntityEncoder extends DefaultDBEncoder {
+    private final ObjectMapperImpl mapper;
+
+    EntityEncoder(ObjectMapperImpl mapper) {
+        this.mapper = mapper;
+    }
+
+    /**
+     * @return true, if objects of this type can be written directly
+     */
+    static boolean isEncodable(EntityModel m) {
+        return m.hasUniqueStoredNames() && m.hasValidStoredNames();
+    }
+
+    static DBEncoderFactory factory(final ObjectMapperImpl mapper) {
+        return new DBEncoderFactory() {
+            @Override
+            public DBEncoder create() {
+                return new EntityEncoder(mapper);
+            }
+        };
+    }
+
+    @Override
+    public int writeObject(OutputBuffer buf, BSONObject o) {
+        if (!(o instanceof EntityObject)) {
+            return super.writeObject(buf, o);
+        }
+        EntityObject eo = (EntityObject) o;
+        set(buf);
+        int ret = putEntity(null, eo.getEntity(), eo.get("_id"), true);
+        done();
+        return ret;
+    }
+
+    /**
+     * write the object like marshall() would create it
+     *
+     * @param name   - null for the document itself
+     * @param id     - _id of the document, written first as the driver does. null for embedded objects
+     * @param skipId - if true, the id property of the object is not written
+     * @return number of bytes written
+     */
+    private int putEntity(String name, Object o, Object id, boolean skipId) {
+        Class<?> cls = mapper.getRealClass(o.getClass());
+        o = mapper.getRealObject(o);
+        EntityModel m = mapper.getEntityModel(cls);
+
+        int start = _buf.getPosition();
+        if (name != null) {
+            _put(BSON.OBJECT, name);
+        }
+        int sizePos = _buf.getPosition();
+        _buf.writeInt(0);
+        if (id != null) {
+            _putObjectField("_id", id);
+        }
+        if (m.isPolymorph()) {
+            putString("class_name", m.getTypeName());
+        }
+        for (EntityModel.Property p : m.getStoredProperties()) {
+            if (p.isId() && skipId) {
+                continue;
+            }
+            if (p.getAccessor().isPrimitive() && putPrimitive(p.getStoredName(), o, p.getAccessor())) {
+                continue;
+            }
+            Object value = p.getAccessor().get(o);
+            EntityModel.Kind kind = p.getKind();
+            if (value != null && (kind == EntityModel.Kind.ENTITY || kind == EntityModel.Kind.EMBEDDED)) {
+                EntityModel sub = mapper.getEntityModel(mapper.getRealClass(value.getClass()));
+                if (isEncodable(sub)) {
+                    //like marshall(): entities are embedded without id
+                    putEntity(p.getStoredName(), value, null, kind == EntityModel.Kind.ENTITY);
+                    continue;
+                }
+            }
+            Object v = mapper.marshallValue(p, value);
+            if (v == null && !mapper.isNullStored(o, p)) {
+                continue;
+            }
+            if (v instanceof DBObject) {
+                //marshall() results are checked by the driver
+                checkKeys((DBObject) v);
+            }
+            _putObjectField(p.getStoredName(), v);
+        }
+        _buf.write(BSON.EOO);
+        _buf.writeInt(sizePos, _buf.getPosition() - sizePos);
+        return _buf.getPosition() - start;
+    }
+
+    /**
+     * write a primitive field with the same BSON type the driver uses for its boxed value
+     *
+     * @return false, if the field has to be written boxed (char)
+     */
+    private boolean putPrimitive(String name, Object o, FieldAccessor acc) {
+        switch (acc.getPrimitive()) {
+            case FieldAccessor.LONG:
+                _put(BSON.NUMBER_LONG, name);
+                _buf.writeLong(acc.getLong(o));
+                return true;
+            case FieldAccessor.INT:
+            case FieldAccessor.SHORT:
+            case FieldAccessor.BYTE:
+                _put(BSON.NUMBER_INT, name);
+                _buf.writeInt(acc.getInt(o));
+                return true;
+            case FieldAccessor.DOUBLE:
+            case FieldAccessor.FLOAT:
+                _put(BSON.NUMBER, name);
+                _buf.writeDouble(acc.getDouble(o));
+                return true;
+            case FieldAccessor.BOOLEAN:
+                _put(BSON.BOOLEAN, name);
+                _buf.write(acc.getBoolean(o) ? 1 : 0);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * same check as DBCollection does for stored documents
+     */
+    private void checkKeys(DBObject o) {
+        for (String k : o.keySet()) {
+            if (k.contains(".")) {
+                throw new IllegalArgumentException("fields stored in the db can't have . in them. (Bad Key: '" + k + "')");
+            }
+            if (k.startsWith("$")) {
+                throw new IllegalArgumentException("fields stored in the db can't start with '$' (Bad Key: '" + k + "')");
+            }
+            Object v = o.get(k);
+            if (v instanceof DBObject) {
+                checkKeys((DBObject) v);
+            } else if (v instanceof Map) {
+                checkKeys(new BasicDBObject((Map) v));
+            }
+        }
+    }
+
+    /**
+     * document to be written by the EntityEncoder, holding the entity. Only _id is set, the fields of the entity are
+     * read when the document is encoded.
+     */
+    static class EntityObject extends BasicDBObject {
+        private static final long serialVersionUID = 1L;
+        private final transient ObjectMapperImpl mapper;
+        private final transient Object entity;
+
+        EntityObject(ObjectMapperImpl mapper, Object entity, Object id) {
+            this.mapper = mapper;
+            this.entity = entity;
+            if (id != null) {
+                put("_id", id);
+            }
+        }
+
+        Object getEntity() {
+            return entity;
+        }
+
+        /**
+         * @return the document as created by marshall(), including the _id
+         */
+        DBObject marshall() {
+            DBObject ret = mapper.marshall(entity);
+            if (get("_id") != null) {
+                ret.put("_id", get("_id"));
+            }
+            return ret;
+        }
+
+        @Override
+        public String toString() {
+            return marshall().toString();
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package de.caluga.morphium;
+
+import de.caluga.morphium.annotations.*;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metadata of a class mapped by the ObjectMapper, built once per class: all properties in the order of the class
+ * hierarchy, each with its field, names and kind. A property can be looked up by every name it may be addressed with
+ * (java name, translated name, name in @Property or @Reference, aliases, _id for the id) in constant time.
+ * <p/>
+ * Models are immutable and shared by all threads - see ObjectMapper.getEntityModel()
+ */
+public final class EntityModel {
+    /**
+     * how a property is mapped, in order of precedence
+     */
+    public enum Kind {
+        /**
+         * single reference, only the id is stored (references in lists are of kind LIST)
+         */
+        REFERENCE,
+        ID,
+        /**
+         * type is an @Entity, stored embedded without id
+         */
+        ENTITY,
+        EMBEDDED,
+        MAP,
+        /**
+         * lists and arrays
+         */
+        LIST,
+        ENUM,
+        VALUE
+    }
+
+    private final Class<?> type;
+    private final boolean entity;
+    private final boolean embedded;
+    private final boolean polymorph;
+    private final String typeId;
+    private final boolean translateCamelCase;
+    private final List<Property> properties;
+    private final List<Property> storedProperties;
+    private final List<String> fieldNames;
+    private final Map<String, Property> byName;
+    private final boolean uniqueStoredNames;
+    private final boolean validStoredNames;
+    private final boolean lazyProperties;
+    private final Property idProperty;
+    private final ConcurrentHashMap<Class<? extends Annotation>, List<Property>> byAnnotation = new ConcurrentHashMap<Class<? extends Annotation>, List<Property>>();
+
+    EntityModel(Class<?> type, List<Field> fields, ObjectMapper mapper, Morphium morphium) {
+        this.type = type;
+        Entity ent = morphium.getAnnotationFromHierarchy(type, Entity.class);
+        Embedded emb = morphium.getAnnotationFromHierarchy(type, Embedded.class);
+        entity = ent != null;
+        embedded = emb != null;
+        polymorph = (ent != null && ent.polymorph()) || (emb != null && emb.polymorph());
+        //only the annotation of the class itself, the id must not be inherited
+        Entity ownEnt = type.getAnnotation(Entity.class);
+        Embedded ownEmb = type.getAnnotation(Embedded.class);
+        if (ownEnt != null && !".".equals(ownEnt.typeId())) {
+            typeId = ownEnt.typeId();
+        } else if (ownEmb != null && !".".equals(ownEmb.typeId())) {
+            typeId = ownEmb.typeId();
+        } else {
+            typeId = null;
+        }
+        //for getFields() @Entity has precedence
+        translateCamelCase = ent != null ? ent.translateCamelCase() : (emb != null && emb.translateCamelCase());
+        //for the name in mongo either one is sufficient
+        boolean translateMongoName = (ent != null && ent.translateCamelCase()) || (emb != null && emb.translateCamelCase());
+
+        List<Property> props = new ArrayList<Property>();
+        List<Property> stored = new ArrayList<Property>();
+        List<String> names = new ArrayList<String>();
+        Map<String, Property> lookup = new HashMap<String, Property>();
+        Set<String> storedNames = new HashSet<String>();
+        boolean valid = true;
+        boolean lazy = false;
+        Property id = null;
+        for (Field f : fields) {
+            try {
+                f.setAccessible(true);
+            } catch (RuntimeException e) {
+                //not accessible (e.g. system classes) - will fail on access
+            }
+            Property p = new Property(f, mapper, morphium, translateCamelCase, translateMongoName);
+            for (String n : p.lookupNames) {
+                if (!lookup.containsKey(n)) {
+                    //first field wins
+                    lookup.put(n, p);
+                }
+            }
+            if (p.customName || !p.isTransient) {
+                props.add(p);
+                names.add(p.name);
+                if (!p.isStatic) {
+                    stored.add(p);
+                    storedNames.add(p.getStoredName());
+                    valid &= !p.getStoredName().contains(".") && !p.getStoredName().startsWith("$");
+                    lazy |= p.lazy;
+                }
+                if (p.id && id == null) {
+                    id = p;
+                }
+            }
+        }
+        properties = Collections.unmodifiableList(props);
+        storedProperties = Collections.unmodifiableList(stored);
+        fieldNames = Collections.unmodifiableList(names);
+        byName = lookup;
+        uniqueStoredNames = storedNames.size() == stored.size();
+        validStoredNames = valid;
+        lazyProperties = lazy;
+        idProperty = id;
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    /**
+     * @return true if the class or one of its superclasses is marked @Entity
+     */
+    public boolean isEntity() {
+        return entity;
+    }
+
+    /**
+     * @return true if the class or one of its superclasses is marked @Embedded
+     */
+    public boolean isEmbedded() {
+        return embedded;
+    }
+
+    /**
+     * @return true, if the class name needs to be stored
+     */
+    public boolean isPolymorph() {
+        return polymorph;
+    }
+
+    /**
+     * @return the typeId set in @Entity or @Embedded, null if there is none
+     */
+    public String getTypeId() {
+        return typeId;
+    }
+
+    /**
+     * @return name of the type stored as class_name: the typeId, or the class name if there is no typeId
+     */
+    public String getTypeName() {
+        return typeId != null ? typeId : type.getName();
+    }
+
+    public boolean isTranslateCamelCase() {
+        return translateCamelCase;
+    }
+
+    /**
+     * @return all mapped properties (not @Transient), including static ones
+     */
+    public List<Property> getProperties() {
+        return properties;
+    }
+
+    /**
+     * @return properties, which are stored in mongo: not static, not @Transient
+     */
+    public List<Property> getStoredProperties() {
+        return storedProperties;
+    }
+
+    /**
+     * @return names of all mapped properties, as returned by ObjectMapper.getFields()
+     */
+    public List<String> getFieldNames() {
+        return fieldNames;
+    }
+
+    /**
+     * @return mapped properties having the given annotation
+     */
+    public List<Property> getProperties(Class<? extends Annotation> annotation) {
+        List<Property> ret = byAnnotation.get(annotation);
+        if (ret == null) {
+            ret = new ArrayList<Property>();
+            for (Property p : properties) {
+                if (p.field.isAnnotationPresent(annotation)) {
+                    ret.add(p);
+                }
+            }
+            ret = Collections.unmodifiableList(ret);
+            byAnnotation.put(annotation, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * @param name - java name, name in mongo or an alias
+     * @return the property, null if there is none
+     */
+    public Property getProperty(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * @return false, if several stored properties share the same key
+     */
+    boolean hasUniqueStoredNames() {
+        return uniqueStoredNames;
+    }
+
+    /**
+     * @return false, if a stored property has a key the driver does not accept (containing . or starting with $)
+     */
+    boolean hasValidStoredNames() {
+        return validStoredNames;
+    }
+
+    /**
+     * @return true, if a stored property is marked @Lazy
+     */
+    public boolean hasLazyProperties() {
+        return lazyProperties;
+    }
+
+    /**
+     * @return the property marked with @Id, null if there is none
+     */
+    public Property getIdProperty() {
+        return idProperty;
+    }
+
+    /**
+     * one field of the class
+     */
+    public static final class Property {
+        private final Field field;
+        private final FieldAccessor accessor;
+        private final String name;
+        private final String mongoName;
+        private final String[] aliases;
+        private final Kind kind;
+        private final Reference reference;
+        private final boolean id;
+        private final boolean isStatic;
+        private final boolean isTransient;
+        private final boolean customName;
+        private final boolean notNull;
+        private final boolean useIfNull;
+        private final boolean lazy;
+        private final List<String> lookupNames;
+        /**
+         * getStoredName() in UTF-8, for comparing with BSON data
+         */
+        final byte[] storedKey;
+
+        private Property(Field f, ObjectMapper mapper, Morphium morphium, boolean translateCamelCase, boolean translateMongoName) {
+            field = f;
+            accessor = FieldAccessor.create(f);
+            Class<?> t = f.getType();
+            reference = f.getAnnotation(Reference.class);
+            de.caluga.morphium.annotations.Property prop = f.getAnnotation(de.caluga.morphium.annotations.Property.class);
+            Aliases al = f.getAnnotation(Aliases.class);
+            String propName = prop != null && prop.fieldName() != null && !".".equals(prop.fieldName()) ? prop.fieldName() : null;
+            String refName = reference != null && reference.fieldName() != null && !".".equals(reference.fieldName()) ? reference.fieldName() : null;
+            String translated = mapper.convertCamelCase(f.getName());
+            id = f.isAnnotationPresent(Id.class);
+            isStatic = Modifier.isStatic(f.getModifiers());
+            isTransient = f.isAnnotationPresent(Transient.class);
+            notNull = f.isAnnotationPresent(NotNull.class);
+            useIfNull = f.isAnnotationPresent(UseIfnull.class);
+            lazy = f.isAnnotationPresent(Lazy.class) && !id;
+            aliases = al == null ? new String[0] : al.value();
+            customName = refName != null || propName != null;
+
+            if (refName != null) {
+                name = refName;
+            } else if (propName != null) {
+                name = propName;
+            } else {
+                name = translateCamelCase ? translated : f.getName();
+            }
+
+            if (propName != null) {
+                mongoName = propName;
+            } else if (refName != null) {
+                mongoName = refName;
+            } else if (id) {
+                mongoName = "_id";
+            } else {
+                mongoName = translateMongoName ? translated : f.getName();
+            }
+
+            if (reference != null && !t.isAssignableFrom(Map.class) && !t.isAssignableFrom(List.class)) {
+                kind = Kind.REFERENCE;
+            } else if (id) {
+                kind = Kind.ID;
+            } else if (morphium.isAnnotationPresentInHierarchy(t, Entity.class)) {
+                kind = Kind.ENTITY;
+            } else if (morphium.isAnnotationPresentInHierarchy(t, Embedded.class)) {
+                kind = Kind.EMBEDDED;
+            } else if (t.isAssignableFrom(Map.class)) {
+                kind = Kind.MAP;
+            } else if (t.isAssignableFrom(List.class) || t.isArray()) {
+                kind = Kind.LIST;
+            } else if (t.isEnum()) {
+                kind = Kind.ENUM;
+            } else {
+                kind = Kind.VALUE;
+            }
+
+            //same precedence as the lookup by name always had
+            List<String> ln = new ArrayList<String>();
+            if (propName != null) ln.add(propName);
+            if (refName != null) ln.add(refName);
+            ln.addAll(Arrays.asList(aliases));
+            if (id) ln.add("_id");
+            ln.add(f.getName());
+            ln.add(translated);
+            lookupNames = ln;
+            try {
+                storedKey = getStoredName().getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public Field getField() {
+            return field;
+        }
+
+        /**
+         * @return accessor for reading and writing the value, faster than the field
+         */
+        public FieldAccessor getAccessor() {
+            return accessor;
+        }
+
+        public Class<?> getType() {
+            return field.getType();
+        }
+
+        /**
+         * @return name as returned by ObjectMapper.getFields() - for the id this is not _id
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return key of the property in documents written by ObjectMapper.marshall(): _id for the id, getName()
+         *         otherwise
+         */
+        public String getStoredName() {
+            return id ? "_id" : name;
+        }
+
+        /**
+         * @return name of the property in mongo, as returned by ObjectMapper.getFieldName()
+         */
+        public String getMongoName() {
+            return mongoName;
+        }
+
+        public String[] getAliases() {
+            return aliases;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return the @Reference annotation, null if this is no reference. Lists of references are of kind LIST
+         */
+        public Reference getReference() {
+            return reference;
+        }
+
+        public boolean isReference() {
+            return reference != null;
+        }
+
+        public boolean isId() {
+            return id;
+        }
+
+        public boolean isStatic() {
+            return isStatic;
+        }
+
+        public boolean isTransient() {
+            return isTransient;
+        }
+
+        public boolean isNotNull() {
+            return notNull;
+        }
+
+        public boolean isUseIfNull() {
+            return useIfNull;
+        }
+
+        /**
+         * @return true, if the value is unmarshalled on first access - never for the id
+         */
+        public boolean isLazy() {
+            return lazy;
+        }
+
+        public boolean isAnnotationPresent(Class<? extends Annotation> a) {
+            return field.isAnnotationPresent(a);
+        }
+
+        public <A extends Annotation> A getAnnotation(Class<A> a) {
+            return field.getAnnotation(a);
+        }
+
+        @Override
+        public String toString() {
+            return field.getDeclaringClass().getSimpleName() + "." + field.getName() + " (" + mongoName + ", " + kind + ")";
+        }
+    }
+}
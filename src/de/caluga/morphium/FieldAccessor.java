@@ -0,0 +1,236 @@
+package de.caluga.morphium;
+
+import java.lang.reflect.Field;
+
+/**
+ * Reads and writes one field of a mapped class, created once per property (see EntityModel.Property.getAccessor()).
+ * <p/>
+ * The field is made accessible once on creation, so no access checks are done on every call. The typed methods like
+ * getLong() / setLong() use the primitive accessors of java.lang.reflect.Field - no boxing for primitive fields. They
+ * are used by the EntityDecoder and EntityEncoder, get() / set() box primitives.
+ * <p/>
+ * set() converts numbers to the type of primitive fields, null is stored as 0 resp. false. For all other fields the
+ * type of the value is checked, an IllegalArgumentException is thrown if it does not fit.
+ */
+public final class FieldAccessor {
+    static final int OBJECT = 0;
+    static final int LONG = 1;
+    static final int INT = 2;
+    static final int DOUBLE = 3;
+    static final int FLOAT = 4;
+    static final int SHORT = 5;
+    static final int BYTE = 6;
+    static final int BOOLEAN = 7;
+    static final int CHAR = 8;
+
+    private final Field field;
+    private final int primitive;
+
+    private FieldAccessor(Field f) {
+        field = f;
+        field.setAccessible(true);
+        primitive = primitiveOf(f.getType());
+    }
+
+    public static FieldAccessor create(Field f) {
+        return new FieldAccessor(f);
+    }
+
+    private static int primitiveOf(Class<?> t) {
+        if (!t.isPrimitive()) return OBJECT;
+        if (t == long.class) return LONG;
+        if (t == int.class) return INT;
+        if (t == double.class) return DOUBLE;
+        if (t == float.class) return FLOAT;
+        if (t == short.class) return SHORT;
+        if (t == byte.class) return BYTE;
+        if (t == boolean.class) return BOOLEAN;
+        return CHAR;
+    }
+
+    public Field getField() {
+        return field;
+    }
+
+    /**
+     * @return true, if the field is of a primitive type
+     */
+    public boolean isPrimitive() {
+        return primitive != OBJECT;
+    }
+
+    /**
+     * @return one of the constants above, OBJECT for all non primitive fields
+     */
+    int getPrimitive() {
+        return primitive;
+    }
+
+    /**
+     * @return the value, primitives boxed
+     */
+    public Object get(Object o) {
+        try {
+            return field.get(o);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void set(Object o, Object value) {
+        try {
+            switch (primitive) {
+                case OBJECT:
+                    if (value != null && !field.getType().isInstance(value)) {
+                        throw mismatch(value);
+                    }
+                    field.set(o, value);
+                    return;
+                case BOOLEAN:
+                    if (value != null && !(value instanceof Boolean)) {
+                        throw mismatch(value);
+                    }
+                    field.setBoolean(o, value != null && (Boolean) value);
+                    return;
+                case CHAR:
+                    if (value != null && !(value instanceof Character)) {
+                        throw mismatch(value);
+                    }
+                    field.setChar(o, value == null ? 0 : (Character) value);
+                    return;
+                default:
+                    setNumber(o, value == null ? 0 : number(value));
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void setNumber(Object o, Number n) throws IllegalAccessException {
+        switch (primitive) {
+            case LONG:
+                field.setLong(o, n.longValue());
+                break;
+            case INT:
+                field.setInt(o, n.intValue());
+                break;
+            case DOUBLE:
+                field.setDouble(o, n.doubleValue());
+                break;
+            case FLOAT:
+                field.setFloat(o, n.floatValue());
+                break;
+            case SHORT:
+                field.setShort(o, n.shortValue());
+                break;
+            default:
+                field.setByte(o, n.byteValue());
+        }
+    }
+
+    /**
+     * @return the value, integral primitive fields are widened
+     */
+    public long getLong(Object o) {
+        if (primitive != LONG && primitive != INT && primitive != SHORT && primitive != BYTE) return number(get(o)).longValue();
+        try {
+            return field.getLong(o);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setLong(Object o, long v) {
+        if (primitive != LONG) {
+            set(o, v);
+            return;
+        }
+        try {
+            field.setLong(o, v);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the value, short and byte fields are widened
+     */
+    public int getInt(Object o) {
+        if (primitive != INT && primitive != SHORT && primitive != BYTE) return number(get(o)).intValue();
+        try {
+            return field.getInt(o);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setInt(Object o, int v) {
+        if (primitive != INT && primitive != LONG) {
+            set(o, v);
+            return;
+        }
+        try {
+            //widened to long, if necessary
+            field.setInt(o, v);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the value, float fields are widened
+     */
+    public double getDouble(Object o) {
+        if (primitive != DOUBLE && primitive != FLOAT) return number(get(o)).doubleValue();
+        try {
+            return field.getDouble(o);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setDouble(Object o, double v) {
+        if (primitive != DOUBLE) {
+            set(o, v);
+            return;
+        }
+        try {
+            field.setDouble(o, v);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public boolean getBoolean(Object o) {
+        if (primitive != BOOLEAN) {
+            Object v = get(o);
+            return v != null && (Boolean) v;
+        }
+        try {
+            return field.getBoolean(o);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setBoolean(Object o, boolean v) {
+        if (primitive != BOOLEAN) {
+            set(o, v);
+            return;
+        }
+        try {
+            field.setBoolean(o, v);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private IllegalArgumentException mismatch(Object value) {
+        return new IllegalArgumentException("could not set field " + field.getName() + ": Field has type " + field.getType().toString() + " got type " + value.getClass().toString());
+    }
+
+    private Number number(Object value) {
+        if (value instanceof Number) return (Number) value;
+        throw mismatch(value);
+    }
+}
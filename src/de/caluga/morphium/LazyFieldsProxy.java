@@ -0,0 +1,167 @@
+package de.caluga.morphium;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import net.sf.cglib.proxy.MethodInterceptor;
+import net.sf.cglib.proxy.MethodProxy;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Proxy for entities having @Lazy fields: the values of these fields are kept as read from mongo and unmarshalled on
+ * first access. The getter of a lazy field unmarshalls this field only, the setter drops the stored value. Getters and
+ * setters of other fields are passed on, any other method unmarshalls all remaining fields first.
+ * <p/>
+ * Pending values are either the document read (unmarshall()) or a document of its own, containing just this value as
+ * BSON (EntityDecoder)
+ */
+public class LazyFieldsProxy<T> implements MethodInterceptor, Serializable {
+    private static final long serialVersionUID = -2513498473214735267L;
+    private final static Logger log = Logger.getLogger(LazyFieldsProxy.class);
+
+    private transient final ObjectMapperImpl mapper;
+    private transient final DBCollection collection;
+    private transient final EntityModel model;
+    private final T reference;
+    /**
+     * raw values of the properties not unmarshalled yet - null after deserialization
+     */
+    private transient final Map<EntityModel.Property, Object> pending;
+
+    LazyFieldsProxy(ObjectMapperImpl mapper, EntityModel model, T reference, Map<EntityModel.Property, Object> pending, DBCollection collection) {
+        this.mapper = mapper;
+        this.model = model;
+        this.reference = reference;
+        this.pending = pending;
+        this.collection = collection;
+    }
+
+    /**
+     * @return the entity, all fields unmarshalled
+     */
+    public T __getDeref() {
+        resolveAll();
+        return reference;
+    }
+
+    /**
+     * @return the entity, lazy fields may not be unmarshalled yet
+     */
+    T getReference() {
+        return reference;
+    }
+
+    /**
+     * @return true, if the value of the field was not yet unmarshalled
+     */
+    public synchronized boolean __isPending(String field) {
+        if (pending == null) {
+            return false;
+        }
+        EntityModel.Property p = model.getProperty(field);
+        return p != null && pending.containsKey(p);
+    }
+
+    @Override
+    public Object intercept(Object o, Method method, Object[] objects, MethodProxy methodProxy) throws Throwable {
+        String name = method.getName();
+        if (name.equals("__getType")) {
+            return reference.getClass();
+        }
+        if (name.equals("__getDeref")) {
+            return __getDeref();
+        }
+        if (name.equals("__isPending")) {
+            return __isPending((String) objects[0]);
+        }
+        if (name.equals("finalize")) {
+            return methodProxy.invokeSuper(o, objects);
+        }
+        if (isResolved()) {
+            return methodProxy.invoke(reference, objects);
+        }
+        EntityModel.Property p = getAccessedProperty(name, objects.length);
+        if (p == null) {
+            resolveAll();
+        } else if (p.isLazy()) {
+            if (objects.length == 0) {
+                resolve(p);
+            } else {
+                drop(p);
+            }
+        }
+        return methodProxy.invoke(reference, objects);
+    }
+
+    /**
+     * @return the property of a getter (get / is, no arguments) or setter (set, one argument), null for other methods
+     */
+    private EntityModel.Property getAccessedProperty(String name, int args) {
+        String n;
+        if (args == 0 && name.startsWith("get") && name.length() > 3) {
+            n = name.substring(3);
+        } else if (args == 0 && name.startsWith("is") && name.length() > 2) {
+            n = name.substring(2);
+        } else if (args == 1 && name.startsWith("set") && name.length() > 3) {
+            n = name.substring(3);
+        } else {
+            return null;
+        }
+        n = n.substring(0, 1).toLowerCase() + n.substring(1);
+        EntityModel.Property p = model.getProperty(n);
+        if (p == null || p.isStatic() || !p.getField().getName().equals(n)) {
+            //only if the getter matches the java name of the field
+            return null;
+        }
+        return p;
+    }
+
+    private synchronized boolean isResolved() {
+        return pending == null || pending.isEmpty();
+    }
+
+    private synchronized void resolve(EntityModel.Property p) {
+        if (pending == null || !pending.containsKey(p)) {
+            return;
+        }
+        Object raw = pending.remove(p);
+        DBObject doc;
+        if (raw instanceof byte[]) {
+            doc = new DefaultDBDecoder().decode((byte[]) raw, collection);
+        } else {
+            doc = (DBObject) raw;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Unmarshalling " + p + " due to first access");
+        }
+        mapper.setValue(reference, mapper.unmarshallValue(p, doc), p);
+    }
+
+    private synchronized void drop(EntityModel.Property p) {
+        if (pending != null) {
+            pending.remove(p);
+        }
+    }
+
+    private synchronized void resolveAll() {
+        if (pending == null) {
+            return;
+        }
+        for (EntityModel.Property p : new ArrayList<EntityModel.Property>(pending.keySet())) {
+            resolve(p);
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        //raw values are not serialized
+        resolveAll();
+        out.defaultWriteObject();
+    }
+}
@@ -0,0 +1,152 @@
+package de.caluga.morphium;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects modifications by query (set, inc, push...) to be sent at once, see Morphium.batch(). On execute() the
+ * operations of each type are sent on one connection in chunks of MorphiumConfig.getWriteBatchSize(), each operation
+ * is acknowledged on its own (if the write concern of the type asks for it). Listeners get one preUpdate per type and
+ * kind of update, postUpdate only for kinds with at least one written operation. The cache of each type is cleared
+ * once.
+ * <p/>
+ * The query is read when an operation is added, it may be changed afterwards. A batch is not thread safe.
+ * <code>
+ * morphium.batch().inc(q1, "counter", 1).inc(q2, "counter", 1).set(q3, "value", "x").execute();
+ * </code>
+ */
+public class ModifierBatch {
+    private final Morphium morphium;
+    private final List<Operation> operations = new ArrayList<Operation>();
+
+    ModifierBatch(Morphium morphium) {
+        this.morphium = morphium;
+    }
+
+    public ModifierBatch set(Query<?> query, String field, Object value) {
+        return set(query, field, value, false, false);
+    }
+
+    public ModifierBatch set(Query<?> query, String field, Object value, boolean insertIfNotExist, boolean multiple) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put(field, value);
+        return set(query, map, insertIfNotExist, multiple);
+    }
+
+    public ModifierBatch set(Query<?> query, Map<String, Object> values, boolean insertIfNotExist, boolean multiple) {
+        BasicDBObject toSet = new BasicDBObject();
+        for (Map.Entry<String, Object> ef : values.entrySet()) {
+            toSet.put(fieldName(query, ef.getKey()), ef.getValue());
+        }
+        return add(query, MorphiumStorageListener.UpdateTypes.SET, new BasicDBObject("$set", toSet), insertIfNotExist, multiple);
+    }
+
+    public ModifierBatch unset(Query<?> query, String field, boolean multiple) {
+        return add(query, MorphiumStorageListener.UpdateTypes.UNSET, new BasicDBObject("$unset", new BasicDBObject(fieldName(query, field), 1)), false, multiple);
+    }
+
+    public ModifierBatch inc(Query<?> query, String field, int amount) {
+        return inc(query, field, amount, false, false);
+    }
+
+    public ModifierBatch inc(Query<?> query, String field, int amount, boolean insertIfNotExist, boolean multiple) {
+        return add(query, MorphiumStorageListener.UpdateTypes.INC, new BasicDBObject("$inc", new BasicDBObject(fieldName(query, field), amount)), insertIfNotExist, multiple);
+    }
+
+    public ModifierBatch dec(Query<?> query, String field, int amount) {
+        return inc(query, field, -amount, false, false);
+    }
+
+    public ModifierBatch dec(Query<?> query, String field, int amount, boolean insertIfNotExist, boolean multiple) {
+        return inc(query, field, -amount, insertIfNotExist, multiple);
+    }
+
+    public ModifierBatch push(Query<?> query, String field, Object value) {
+        return push(query, field, value, false, true);
+    }
+
+    public ModifierBatch push(Query<?> query, String field, Object value, boolean insertIfNotExist, boolean multiple) {
+        return add(query, MorphiumStorageListener.UpdateTypes.PUSH, new BasicDBObject("$push", new BasicDBObject(fieldName(query, field), value)), insertIfNotExist, multiple);
+    }
+
+    public ModifierBatch pull(Query<?> query, String field, Object value) {
+        return pull(query, field, value, false, true);
+    }
+
+    public ModifierBatch pull(Query<?> query, String field, Object value, boolean insertIfNotExist, boolean multiple) {
+        return add(query, MorphiumStorageListener.UpdateTypes.PULL, new BasicDBObject("$pull", new BasicDBObject(fieldName(query, field), value)), insertIfNotExist, multiple);
+    }
+
+    public ModifierBatch pushAll(Query<?> query, String field, List<Object> value, boolean insertIfNotExist, boolean multiple) {
+        return add(query, MorphiumStorageListener.UpdateTypes.PUSH, new BasicDBObject("$pushAll", new BasicDBObject(fieldName(query, field), toList(value))), insertIfNotExist, multiple);
+    }
+
+    public ModifierBatch pullAll(Query<?> query, String field, List<Object> value, boolean insertIfNotExist, boolean multiple) {
+        return add(query, MorphiumStorageListener.UpdateTypes.PULL, new BasicDBObject("$pullAll", new BasicDBObject(fieldName(query, field), toList(value))), insertIfNotExist, multiple);
+    }
+
+    /**
+     * @return number of operations not executed yet
+     */
+    public int size() {
+        return operations.size();
+    }
+
+    /**
+     * send all operations - the batch is empty afterwards and may be reused
+     *
+     * @throws BatchWriteException if some operations failed, getFailed() returns their queries - all other operations
+     *                             were written
+     */
+    public void execute() {
+        List<Operation> ops = new ArrayList<Operation>(operations);
+        operations.clear();
+        if (!ops.isEmpty()) {
+            morphium.execute(ops);
+        }
+    }
+
+    private ModifierBatch add(Query<?> query, MorphiumStorageListener.UpdateTypes kind, DBObject update, boolean insertIfNotExist, boolean multiple) {
+        operations.add(new Operation(query, kind, update, insertIfNotExist, multiple));
+        return this;
+    }
+
+    private String fieldName(Query<?> query, String field) {
+        return morphium.getConfig().getMapper().getFieldName(query.getType(), field);
+    }
+
+    private BasicDBList toList(List<Object> value) {
+        BasicDBList ret = new BasicDBList();
+        ret.addAll(value);
+        return ret;
+    }
+
+    /**
+     * one update, the query already converted
+     */
+    static final class Operation {
+        final Query<?> query;
+        final Class<?> type;
+        final DBObject queryObject;
+        final MorphiumStorageListener.UpdateTypes kind;
+        final DBObject update;
+        final boolean insertIfNotExist;
+        final boolean multiple;
+
+        private Operation(Query<?> query, MorphiumStorageListener.UpdateTypes kind, DBObject update, boolean insertIfNotExist, boolean multiple) {
+            this.query = query;
+            this.type = query.getType();
+            this.queryObject = query.toQueryObject();
+            this.kind = kind;
+            this.update = update;
+            this.insertIfNotExist = insertIfNotExist;
+            this.multiple = multiple;
+        }
+    }
+}
@@ -3,10 +3,8 @@ package de.caluga.morphium;
 import com.mongodb.BasicDBList;
 import com.mongodb.DBRef;
 import de.caluga.morphium.annotations.Entity;
-import de.caluga.morphium.annotations.Reference;
 import org.bson.types.ObjectId;
 
-import java.lang.reflect.Field;
 import java.util.Collection;
 import java.util.List;
 import java.util.regex.Pattern;
@@ -61,8 +59,8 @@ public class MongoFieldImpl<T> implements MongoField<T> {
         if (val != null) {
             Class<?> cls = val.getClass();
             if (mapper.getMorphium().isAnnotationPresentInHierarchy(cls, Entity.class) || val instanceof ObjectId) {
-                Field field = mapper.getField(query.getType(), fldStr);
-                if (field.isAnnotationPresent(Reference.class)) {
+                EntityModel.Property field = mapper.getEntityModel(query.getType()).getProperty(fldStr);
+                if (field.isReference()) {
                     ObjectId id = null;
                     if (val instanceof ObjectId) {
                         id = (ObjectId) val;
@@ -13,6 +13,9 @@ import de.caluga.morphium.annotations.lifecycle.*;
 import de.caluga.morphium.annotations.security.NoProtection;
 import de.caluga.morphium.cache.CacheElement;
 import de.caluga.morphium.cache.CacheHousekeeper;
+import de.caluga.morphium.cache.CacheKey;
+import de.caluga.morphium.cache.CacheWarmUp;
+import de.caluga.morphium.cache.MorphiumCache;
 import de.caluga.morphium.secure.MongoSecurityException;
 import de.caluga.morphium.secure.MongoSecurityManager;
 import de.caluga.morphium.secure.Permission;
@@ -20,13 +23,21 @@ import net.sf.cglib.proxy.Enhancer;
 import org.apache.log4j.Logger;
 import org.bson.types.ObjectId;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -60,16 +71,37 @@ public final class Morphium {
     private ThreadPoolExecutor writers = new ThreadPoolExecutor(10, 50,
             10000L, TimeUnit.MILLISECONDS,
             new LinkedBlockingQueue<Runnable>());
+    /**
+     * write behind buffer of types with @Cache(writeCache=true)
+     */
+    private final WriteBuffer writeBuffer = new WriteBuffer(this);
+    /**
+     * threads for parallel unmarshalling, created on first use
+     */
+    private ThreadPoolExecutor decoders;
+    /**
+     * lanes for storeAsync() etc., created on first use
+     */
+    private AsyncWriter asyncWriter;
+    /**
+     * objects with asynchronous writes pending, which were new when the write was issued, and the number of these
+     * writes - see laneKey()
+     */
+    private final Map<Object, Integer> pendingNew = new IdentityHashMap<Object, Integer>();
+    /**
+     * threads for asListAsync() etc., created on first use
+     */
+    private ThreadPoolExecutor readers;
     //Cache by Type, query String -> CacheElement (contains list etc)
-    private Hashtable<Class<? extends Object>, Hashtable<String, CacheElement>> cache;
-    private Hashtable<Class<? extends Object>, Hashtable<ObjectId, Object>> idCache;
+    private MorphiumCache cache;
     private final Map<StatisticKeys, StatisticValue> stats;
-    private Map<Class<?>, Map<Class<? extends Annotation>, Method>> lifeCycleMethods;
+    private final ConcurrentHashMap<Class<?>, ClassAnnotations> classAnnotations = new ConcurrentHashMap<Class<?>, ClassAnnotations>();
     /**
      * String Representing current user - needs to be set by Application
      */
     private String currentUser;
     private CacheHousekeeper cacheHousekeeper;
+    private CacheWarmUp cacheWarmUp;
 
     private Vector<MorphiumStorageListener> listeners;
     private Vector<ProfilingListener> profilingListeners;
@@ -97,11 +129,16 @@ public final class Morphium {
         shutDownListeners = new Vector<ShutdownListener>();
         listeners = new Vector<MorphiumStorageListener>();
         profilingListeners = new Vector<ProfilingListener>();
-        cache = new Hashtable<Class<? extends Object>, Hashtable<String, CacheElement>>();
-        idCache = new Hashtable<Class<? extends Object>, Hashtable<ObjectId, Object>>();
+        try {
+            cache = config.getCacheClass().newInstance();
+        } catch (InstantiationException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        cache.setMorphium(this);
 
         stats = new Hashtable<StatisticKeys, StatisticValue>();
-        lifeCycleMethods = new Hashtable<Class<?>, Map<Class<? extends Annotation>, Method>>();
         for (StatisticKeys k : StatisticKeys.values()) {
             stats.put(k, new StatisticValue());
         }
@@ -174,6 +211,15 @@ public final class Morphium {
         } else {
             config.getMapper().setMorphium(this);
         }
+        config.getMapper().registerType(config.getTypes().toArray(new Class<?>[config.getTypes().size()]));
+        cacheWarmUp = new CacheWarmUp(this);
+        if (config.getCacheSnapshotFile() != null && new File(config.getCacheSnapshotFile()).exists()) {
+            try {
+                cacheWarmUp.replay(new File(config.getCacheSnapshotFile()));
+            } catch (Exception e) {
+                logger.error("Could not read cache snapshot", e);
+            }
+        }
         logger.info("Initialization successful...");
 
     }
@@ -306,7 +352,7 @@ public final class Morphium {
         }
         long dur = System.currentTimeMillis() - start;
         fireProfilingWriteEvent(toSet.getClass(), update, dur, false, WriteAccessType.SINGLE_UPDATE);
-        clearCacheIfNecessary(cls);
+        clearCacheIfNecessary(cls, toSet);
         try {
             f.set(toSet, null);
         } catch (IllegalAccessException e) {
@@ -326,6 +372,30 @@ public final class Morphium {
         }
     }
 
+    /**
+     * an existing object was written. If the type is synchronized with REMOVE_ENTRY_FROM_TYPE_CACHE or UPDATE_ENTRY, only
+     * the cached results containing the object are touched - they are removed resp. the object is replaced with the
+     * given one. Otherwise the cache of the type is cleared, if clearOnWrite is set.
+     */
+    private void clearCacheIfNecessary(Class cls, Object written) {
+        Cache c = getAnnotationFromHierarchy(cls, Cache.class);
+        if (c == null || !c.clearOnWrite()) {
+            return;
+        }
+        ObjectId id = getId(written);
+        if (id != null) {
+            if (c.syncCache().equals(Cache.SyncCacheStrategy.UPDATE_ENTRY)) {
+                cache.updateEntry(cls, written);
+                return;
+            }
+            if (c.syncCache().equals(Cache.SyncCacheStrategy.REMOVE_ENTRY_FROM_TYPE_CACHE)) {
+                cache.removeEntryFromCache(cls, id);
+                return;
+            }
+        }
+        clearCachefor(cls);
+    }
+
     private DBObject simplifyQueryObject(DBObject q) {
         if (q.keySet().size() == 1 && q.get("$and") != null) {
             BasicDBObject ret = new BasicDBObject();
@@ -623,7 +693,7 @@ public final class Morphium {
         }
         long dur = System.currentTimeMillis() - start;
         fireProfilingWriteEvent(cls, update, dur, false, WriteAccessType.SINGLE_UPDATE);
-        clearCacheIfNecessary(cls);
+        clearCacheIfNecessary(cls, toSet);
         try {
             f.set(toSet, value);
         } catch (IllegalAccessException e) {
@@ -675,7 +745,7 @@ public final class Morphium {
             database.getCollection(coll).update(query, update, false, false, wc);
         }
 
-        clearCacheIfNecessary(cls);
+        clearCacheIfNecessary(cls, toInc);
 
         //TODO: check inf necessary
         if (f.getType().equals(Integer.class) || f.getType().equals(int.class)) {
@@ -710,46 +780,20 @@ public final class Morphium {
 
     }
 
-    public void setIdCache(Hashtable<Class<? extends Object>, Hashtable<ObjectId, Object>> c) {
-        idCache = c;
-    }
-
     /**
      * adds some list of objects to the cache manually...
      * is being used internally, and should be used with care
      *
-     * @param k    - Key, usually the mongodb query string
+     * @param k    - Key, see getCacheKey()
      * @param type - class type
      * @param ret  - list of results
      * @param <T>  - Type of record
      */
-    public <T extends Object> void addToCache(String k, Class<? extends Object> type, List<T> ret) {
+    public <T extends Object> void addToCache(CacheKey k, Class<? extends Object> type, List<T> ret) {
         if (k == null) {
             return;
         }
-        if (ret != null) {
-            //copy from idCache
-            Hashtable<Class<? extends Object>, Hashtable<ObjectId, Object>> idCacheClone = cloneIdCache();
-            for (T record : ret) {
-                if (idCacheClone.get(type) == null) {
-                    idCacheClone.put(type, new Hashtable<ObjectId, Object>());
-                }
-                idCacheClone.get(type).put(config.getMapper().getId(record), record);
-            }
-            setIdCache(idCacheClone);
-        }
-
-        CacheElement e = new CacheElement(ret);
-        e.setLru(System.currentTimeMillis());
-        Hashtable<Class<? extends Object>, Hashtable<String, CacheElement>> cl = (Hashtable<Class<? extends Object>, Hashtable<String, CacheElement>>) cache.clone();
-        if (cl.get(type) == null) {
-            cl.put(type, new Hashtable<String, CacheElement>());
-        }
-        cl.get(type).put(k, e);
-
-        //atomar execution of this operand - no synchronization needed
-        cache = cl;
-
+        cache.addToCache(k, (Class<T>) type, ret);
     }
 
     protected void setPrivilegedThread(Thread thr) {
@@ -767,23 +811,31 @@ public final class Morphium {
     }
 
 
+    /**
+     * @return number of objects and tasks waiting to be written in background
+     */
     public int writeBufferCount() {
-        return writers.getQueue().size();
+        int ret = writers.getQueue().size() + writeBuffer.size();
+        synchronized (this) {
+            if (asyncWriter != null) {
+                ret += asyncWriter.size();
+            }
+        }
+        return ret;
     }
 
 
-    public String getCacheKey(DBObject qo, Map<String, Integer> sort, int skip, int limit) {
-        StringBuffer b = new StringBuffer();
-        b.append(qo.toString());
-        b.append(" l:");
-        b.append(limit);
-        b.append(" s:");
-        b.append(skip);
-        if (sort != null) {
-            b.append(" sort:");
-            b.append(new BasicDBObject(sort).toString());
-        }
-        return b.toString();
+    /**
+     * create cache key for a query - only necessary, if the result is to be cached
+     *
+     * @param qo    - query object, must not be changed afterwards
+     * @param sort
+     * @param skip
+     * @param limit
+     * @return
+     */
+    public CacheKey getCacheKey(DBObject qo, Map<String, Integer> sort, int skip, int limit) {
+        return new CacheKey(qo, sort, skip, limit);
     }
 
     /**
@@ -792,8 +844,9 @@ public final class Morphium {
      * @param q
      * @return
      */
-    public String getCacheKey(Query q) {
-        return getCacheKey(q.toQueryObject(), q.getOrder(), q.getSkip(), q.getLimit());
+    public CacheKey getCacheKey(Query q) {
+        CacheKey ret = getCacheKey(q.toQueryObject(), q.getOrder(), q.getSkip(), q.getLimit());
+        return q.getProjection() == null ? ret : ret.projection(q.getProjection());
     }
 
 
@@ -828,35 +881,18 @@ public final class Morphium {
 
         StoreLastChange t = getAnnotationFromHierarchy(type, StoreLastChange.class); //(StoreLastChange) type.getAnnotation(StoreLastChange.class);
         if (t != null) {
-            List<String> lst = config.getMapper().getFields(ent.getClass(), LastChange.class);
+            EntityModel model = config.getMapper().getEntityModel(type);
 
             long now = System.currentTimeMillis();
-            for (String ctf : lst) {
-                Field f = getField(type, ctf);
-                if (f != null) {
-                    try {
-                        f.set(ent, now);
-                    } catch (IllegalAccessException e) {
-                        logger.error("Could not set modification time", e);
-
-                    }
-                }
-                update.put(ctf, now);
+            //may be a proxy
+            Object real = getRealObject(ent);
+            for (EntityModel.Property ctf : model.getProperties(LastChange.class)) {
+                ctf.getAccessor().set(real, now);
+                update.put(ctf.getName(), now);
             }
-            lst = config.getMapper().getFields(ent.getClass(), LastChangeBy.class);
-            if (lst != null && lst.size() != 0) {
-                for (String ctf : lst) {
-
-                    Field f = getField(type, ctf);
-                    if (f != null) {
-                        try {
-                            f.set(ent, config.getSecurityMgr().getCurrentUserId());
-                        } catch (IllegalAccessException e) {
-                            logger.error("Could not set changed by", e);
-                        }
-                    }
-                    update.put(ctf, config.getSecurityMgr().getCurrentUserId());
-                }
+            for (EntityModel.Property ctf : model.getProperties(LastChangeBy.class)) {
+                ctf.getAccessor().set(real, config.getSecurityMgr().getCurrentUserId());
+                update.put(ctf.getName(), config.getSecurityMgr().getCurrentUserId());
             }
         }
 
@@ -871,7 +907,7 @@ public final class Morphium {
         }
         long dur = System.currentTimeMillis() - start;
         fireProfilingWriteEvent(ent.getClass(), update, dur, false, WriteAccessType.SINGLE_UPDATE);
-        clearCacheIfNecessary(getRealClass(ent.getClass()));
+        clearCacheIfNecessary(getRealClass(ent.getClass()), ent);
         firePostStoreEvent(ent, false);
     }
 
@@ -957,20 +993,20 @@ public final class Morphium {
      * @return
      */
     public <T extends Annotation> T getAnnotationFromHierarchy(Class<?> cls, Class<T> anCls) {
-        cls = getRealClass(cls);
-        if (cls.isAnnotationPresent(anCls)) {
-            return cls.getAnnotation(anCls);
-        }
-        //class hierarchy?
-        Class<?> z = cls;
-        while (!z.equals(Object.class)) {
-            if (z.isAnnotationPresent(anCls)) {
-                return z.getAnnotation(anCls);
-            }
-            z = z.getSuperclass();
-            if (z == null) break;
+        return getClassAnnotations(cls).get(anCls);
+    }
+
+    /**
+     * @return annotations of the class hierarchy, collected on first access
+     */
+    private ClassAnnotations getClassAnnotations(Class<?> cls) {
+        ClassAnnotations ret = classAnnotations.get(cls);
+        if (ret == null) {
+            //might be created twice concurrently - does not matter
+            ret = new ClassAnnotations(cls, getRealClass(cls));
+            classAnnotations.put(cls, ret);
         }
-        return null;
+        return ret;
     }
 
     private Class<?> getRealClass(Class<?> cls) {
@@ -988,38 +1024,11 @@ public final class Morphium {
 
     public void callLifecycleMethod(Class<? extends Annotation> type, Object on) {
         if (on == null) return;
-        //No synchronized block - might cause the methods to be put twice into the
-        //hashtabel - but for performance reasons, it's ok...
-        Class<?> cls = on.getClass();
-        //No Lifecycle annotation - no method calling
-        if (!isAnnotationPresentInHierarchy(cls, Lifecycle.class)) {//cls.isAnnotationPresent(Lifecycle.class)) {
-            return;
-        }
-        //Already stored - should not change during runtime
-        if (lifeCycleMethods.get(cls) != null) {
-            if (lifeCycleMethods.get(cls).get(type) != null) {
-                try {
-                    lifeCycleMethods.get(cls).get(type).invoke(on);
-                } catch (IllegalAccessException e) {
-                    throw new RuntimeException(e);
-                } catch (InvocationTargetException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-            return;
-        }
-
-        Map<Class<? extends Annotation>, Method> methods = new HashMap<Class<? extends Annotation>, Method>();
-        //Methods must be public
-        for (Method m : cls.getMethods()) {
-            for (Annotation a : m.getAnnotations()) {
-                methods.put(a.annotationType(), m);
-            }
-        }
-        lifeCycleMethods.put(cls, methods);
-        if (methods.get(type) != null) {
+        //No Lifecycle annotation - no method
+        Method m = getClassAnnotations(on.getClass()).getLifecycleMethod(type);
+        if (m != null) {
             try {
-                methods.get(type).invoke(on);
+                m.invoke(on);
             } catch (IllegalAccessException e) {
                 throw new RuntimeException(e);
             } catch (InvocationTargetException e) {
@@ -1044,17 +1053,17 @@ public final class Morphium {
         DBCollection col = database.getCollection(getConfig().getMapper().getCollectionName(o.getClass()));
         BasicDBObject srch = new BasicDBObject("_id", id);
         DBCursor crs = col.find(srch).limit(1);
+        DBDecoderFactory df = getConfig().getMapper().getDecoderFactory(o.getClass());
+        if (df != null) {
+            crs.setDecoderFactory(df);
+        }
         if (crs.hasNext()) {
             DBObject dbo = crs.next();
-            Object fromDb = getConfig().getMapper().unmarshall(o.getClass(), dbo);
-            List<String> flds = getFields(o.getClass());
-            for (String f : flds) {
-                Field fld = getConfig().getMapper().getField(o.getClass(), f);
-                try {
-                    fld.set(o, fld.get(fromDb));
-                } catch (IllegalAccessException e) {
-                    logger.error("Could not set Value: " + fld);
-                }
+            //both may be proxies
+            Object fromDb = getRealObject(getConfig().getMapper().unmarshall(o.getClass(), dbo));
+            Object real = getRealObject(o);
+            for (EntityModel.Property p : getConfig().getMapper().getEntityModel(o.getClass()).getProperties()) {
+                p.getAccessor().set(real, p.getAccessor().get(fromDb));
             }
 
         } else {
@@ -1216,83 +1225,9 @@ public final class Morphium {
         boolean isNew = id == null;
         firePreStoreEvent(o, isNew);
         long dur = System.currentTimeMillis() - start;
-        DBObject marshall = config.getMapper().marshall(o);
-
-        if (isNew) {
-            //new object - need to store creation time
-            if (isAnnotationPresentInHierarchy(type, StoreCreationTime.class)) {
-                List<String> lst = config.getMapper().getFields(type, CreationTime.class);
-                if (lst == null || lst.size() == 0) {
-                    logger.error("Unable to store creation time as @CreationTime is missing");
-                } else {
-                    long now = System.currentTimeMillis();
-                    for (String ctf : lst) {
-                        Field f = getField(type, ctf);
-                        if (f != null) {
-                            try {
-                                f.set(o, now);
-                            } catch (IllegalAccessException e) {
-                                logger.error("Could not set creation time", e);
+        EntityModel model = config.getMapper().getEntityModel(type);
 
-                            }
-                        }
-                        marshall.put(ctf, now);
-                    }
-
-                }
-                lst = config.getMapper().getFields(type, CreatedBy.class);
-                if (lst != null && lst.size() > 0) {
-                    for (String ctf : lst) {
-
-                        Field f = getField(type, ctf);
-                        if (f != null) {
-                            try {
-                                f.set(o, config.getSecurityMgr().getCurrentUserId());
-                            } catch (IllegalAccessException e) {
-                                logger.error("Could not set created by", e);
-                            }
-                        }
-                        marshall.put(ctf, config.getSecurityMgr().getCurrentUserId());
-                    }
-                }
-            }
-        }
-        if (isAnnotationPresentInHierarchy(type, StoreLastChange.class)) {
-            List<String> lst = config.getMapper().getFields(type, LastChange.class);
-            if (lst != null && lst.size() > 0) {
-                for (String ctf : lst) {
-                    long now = System.currentTimeMillis();
-                    Field f = getField(type, ctf);
-                    if (f != null) {
-                        try {
-                            f.set(o, now);
-                        } catch (IllegalAccessException e) {
-                            logger.error("Could not set modification time", e);
-
-                        }
-                    }
-                    marshall.put(ctf, now);
-                }
-            } else {
-                logger.warn("Could not store last change - @LastChange missing!");
-            }
-
-            lst = config.getMapper().getFields(type, LastChangeBy.class);
-            if (lst != null && lst.size() > 0) {
-                for (String ctf : lst) {
-
-                    Field f = getField(type, ctf);
-                    if (f != null) {
-                        try {
-                            f.set(o, config.getSecurityMgr().getCurrentUserId());
-                        } catch (IllegalAccessException e) {
-                            logger.error("Could not set changed by", e);
-                        }
-                    }
-                    marshall.put(ctf, config.getSecurityMgr().getCurrentUserId());
-                }
-            }
-        }
+        setStoreTimestamps(type, o, isNew);
 
         String coll = config.getMapper().getCollectionName(type);
         if (!database.collectionExists(coll)) {
@@ -1301,13 +1236,10 @@ public final class Morphium {
             ensureIndicesFor(type);
         }
 
+        //timestamps are set, the object can be written
+        DBObject marshall = toDBObject(o);
         WriteConcern wc = getWriteConcernForClass(type);
-        if (wc != null) {
-            database.getCollection(coll).save(marshall, wc);
-        } else {
-
-            database.getCollection(coll).save(marshall);
-        }
+        save(database.getCollection(coll), marshall, wc);
         dur = System.currentTimeMillis() - start;
         fireProfilingWriteEvent(o.getClass(), marshall, dur, true, WriteAccessType.SINGLE_INSERT);
         if (logger.isDebugEnabled()) {
@@ -1315,31 +1247,67 @@ public final class Morphium {
             if (isNew) {
                 n = "NEW ";
             }
-            logger.debug(n + "stored " + type.getSimpleName() + " after " + dur + " ms length:" + marshall.toString().length());
+            //toString() of a document wrapped for the encoder would marshall the object again
+            String len = marshall instanceof EntityEncoder.EntityObject ? "encoded directly" : "length:" + marshall.toString().length();
+            logger.debug(n + "stored " + type.getSimpleName() + " after " + dur + " ms " + len);
         }
         if (isNew) {
-            List<String> flds = config.getMapper().getFields(o.getClass(), Id.class);
-            if (flds == null) {
+            if (model.getIdProperty() == null) {
                 throw new RuntimeException("Object does not have an ID field!");
             }
-            try {
-                //Setting new ID (if object was new created) to Entity
-                getField(o.getClass(), flds.get(0)).set(o, marshall.get("_id"));
-            } catch (IllegalAccessException e) {
-                throw new RuntimeException(e);
-            }
+            //Setting new ID (if object was new created) to Entity
+            model.getIdProperty().getAccessor().set(o, marshall.get("_id"));
         }
 
-        Cache ch = getAnnotationFromHierarchy(o.getClass(), Cache.class);
-        if (ch != null) {
-            if (ch.clearOnWrite()) {
-                clearCachefor(o.getClass());
-            }
+        if (isNew) {
+            clearCacheIfNecessary(o.getClass());
+        } else {
+            clearCacheIfNecessary(o.getClass(), o);
         }
 
         firePostStoreEvent(o, isNew);
     }
 
+    /**
+     * set @CreationTime / @CreatedBy for new objects and @LastChange / @LastChangeBy, if the type asks for it
+     */
+    private void setStoreTimestamps(Class type, Object o, boolean isNew) {
+        EntityModel model = config.getMapper().getEntityModel(type);
+        if (isNew) {
+            //new object - need to store creation time
+            if (isAnnotationPresentInHierarchy(type, StoreCreationTime.class)) {
+                List<EntityModel.Property> lst = model.getProperties(CreationTime.class);
+                if (lst.size() == 0) {
+                    logger.error("Unable to store creation time as @CreationTime is missing");
+                } else {
+                    long now = System.currentTimeMillis();
+                    for (EntityModel.Property ctf : lst) {
+                        ctf.getAccessor().set(o, now);
+                    }
+
+                }
+                for (EntityModel.Property ctf : model.getProperties(CreatedBy.class)) {
+                    ctf.getAccessor().set(o, config.getSecurityMgr().getCurrentUserId());
+                }
+            }
+        }
+        if (isAnnotationPresentInHierarchy(type, StoreLastChange.class)) {
+            List<EntityModel.Property> lst = model.getProperties(LastChange.class);
+            if (lst.size() > 0) {
+                for (EntityModel.Property ctf : lst) {
+                    long now = System.currentTimeMillis();
+                    ctf.getAccessor().set(o, now);
+                }
+            } else {
+                logger.warn("Could not store last change - @LastChange missing!");
+            }
+
+            for (EntityModel.Property ctf : model.getProperties(LastChangeBy.class)) {
+                ctf.getAccessor().set(o, config.getSecurityMgr().getCurrentUserId());
+            }
+        }
+    }
+
     public ReplicaSetStatus getReplicaSetStatus() {
         if (config.getMode().equals(MongoDbMode.REPLICASET)) {
             CommandResult res = getMongo().getDB("admin").command("replSetGetStatus");
@@ -1401,6 +1369,10 @@ public final class Morphium {
     }
 
     private void fireProfilingWriteEvent(Class type, Object data, long time, boolean isNew, WriteAccessType wt) {
+        if (profilingListeners.isEmpty()) {
+            return;
+        }
+        data = unwrap(data);
         for (ProfilingListener l : profilingListeners) {
             try {
                 l.writeAccess(type, data, time, isNew, wt);
@@ -1410,6 +1382,24 @@ public final class Morphium {
         }
     }
 
+    /**
+     * documents wrapped for the encoder only contain the _id - listeners get them as created by marshall(). Only
+     * done if there are listeners, as the objects are marshalled again.
+     */
+    private Object unwrap(Object data) {
+        if (data instanceof EntityEncoder.EntityObject) {
+            return ((EntityEncoder.EntityObject) data).marshall();
+        }
+        if (data instanceof List) {
+            List<Object> ret = new ArrayList<Object>(((List) data).size());
+            for (Object o : (List) data) {
+                ret.add(o instanceof EntityEncoder.EntityObject ? ((EntityEncoder.EntityObject) o).marshall() : o);
+            }
+            return ret;
+        }
+        return data;
+    }
+
     public void fireProfilingReadEvent(Query q, long time, ReadAccessType t) {
         for (ProfilingListener l : profilingListeners) {
             try {
@@ -1457,126 +1447,528 @@ public final class Morphium {
                     isNew.put(o, false);
                 }
                 firePreStoreEvent(o, isNew.get(o));
+                setStoreTimestamps(o.getClass(), o, isNew.get(o));
             }
 
 //            firePreListStoreEvent(lst,isNew);
+            List<Object> failed = new ArrayList<Object>();
+            List<String> errors = new ArrayList<String>();
             for (Map.Entry<Class, List<Object>> es : sorted.entrySet()) {
                 Class c = es.getKey();
                 ArrayList<DBObject> dbLst = new ArrayList<DBObject>();
+                List<Object> existing = new ArrayList<Object>();
                 //bulk insert... check if something already exists
+                List<Object> created = new ArrayList<Object>();
                 WriteConcern wc = getWriteConcernForClass(c);
-                DBCollection collection = database.getCollection(getConfig().getMapper().getCollectionName(c));
+                String coll = getConfig().getMapper().getCollectionName(c);
+                if (!database.collectionExists(coll)) {
+                    if (logger.isDebugEnabled())
+                        logger.debug("Collection does not exist - ensuring indices");
+                    ensureIndicesFor(c);
+                }
+                DBCollection collection = database.getCollection(coll);
                 for (Object record : es.getValue()) {
-                    DBObject marshall = config.getMapper().marshall(record);
                     if (isNew.get(record)) {
-                        dbLst.add(marshall);
+                        dbLst.add(toDBObject(record));
+                        created.add(record);
                     } else {
-                        //single update
-                        long start = System.currentTimeMillis();
-                        if (wc == null) {
-                            collection.save(marshall);
-                        } else {
-                            collection.save(marshall, wc);
-                        }
-                        long dur = System.currentTimeMillis() - start;
-                        fireProfilingWriteEvent(c, marshall, dur, false, WriteAccessType.SINGLE_INSERT);
-                        firePostStoreEvent(record, isNew.get(record));
+                        existing.add(record);
                     }
-
+                }
+                int batchSize = Math.max(1, config.getWriteBatchSize());
+                for (int i = 0; i < existing.size(); i += batchSize) {
+                    List<Object> batch = existing.subList(i, Math.min(existing.size(), i + batchSize));
+                    updateBatch(c, collection, batch, wc, failed, errors);
+                }
+                if (dbLst.isEmpty()) {
+                    continue;
                 }
                 long start = System.currentTimeMillis();
-                if (wc == null) {
-                    collection.insert(dbLst);
+                DBEncoderFactory ef = config.getMapper().getEncoderFactory();
+                if (ef == null) {
+                    if (wc == null) {
+                        collection.insert(dbLst);
+                    } else {
+                        collection.insert(dbLst, wc);
+                    }
                 } else {
-                    collection.insert(dbLst, wc);
+                    collection.insert(dbLst.toArray(new DBObject[dbLst.size()]), wc == null ? collection.getWriteConcern() : wc, ef.create());
                 }
                 long dur = System.currentTimeMillis() - start;
                 //bulk insert
                 fireProfilingWriteEvent(c, dbLst, dur, true, WriteAccessType.BULK_INSERT);
-                for (Object record : es.getValue()) {
-                    if (isNew.get(record)) {
-                        firePostStoreEvent(record, isNew.get(record));
-                    }
+                EntityModel.Property idProperty = config.getMapper().getEntityModel(c).getIdProperty();
+                for (int i = 0; i < created.size(); i++) {
+                    //Setting new ID to Entity
+                    idProperty.getAccessor().set(created.get(i), dbLst.get(i).get("_id"));
+                }
+                clearCacheIfNecessary(c);
+                for (Object record : created) {
+                    firePostStoreEvent(record, true);
                 }
             }
 //            firePostListStoreEvent(lst,isNew);
+            if (!failed.isEmpty()) {
+                throw new BatchWriteException(failed, errors);
+            }
         }
     }
 
-
-    protected boolean isCached(Class<? extends Object> type, String k) {
-        Cache c = getAnnotationFromHierarchy(type, Cache.class); ///type.getAnnotation(Cache.class);
-        if (c != null) {
-            if (!c.readCache()) return false;
-        } else {
-            return false;
-        }
-        return cache.get(type) != null && cache.get(type).get(k) != null && cache.get(type).get(k).getFound() != null;
-    }
-
     /**
-     * return object by from cache. Cache key usually is the string-representation of the search
-     * query.toQueryObject()
+     * update existing objects: all upserts are sent on one connection, each one is acknowledged on its own (if the
+     * write concern asks for it). So the batch only saves round trips for unacknowledged writes - with an
+     * acknowledging write concern every upsert waits for its reply, but failures are known per object. The cache is
+     * updated and post store events are fired only for objects, which were written.
      *
-     * @param type
-     * @param k
-     * @param <T>
-     * @return
+     * @param failed - objects, which could not be written, are added
+     * @param errors - the error message of each failed object is added
      */
-    public <T> List<T> getFromCache(Class<T> type, String k) {
-        if (cache.get(type) == null || cache.get(type).get(k) == null) return null;
-        final CacheElement cacheElement = cache.get(type).get(k);
-        cacheElement.setLru(System.currentTimeMillis());
-        return cacheElement.getFound();
+    private void updateBatch(Class c, DBCollection collection, List<Object> batch, WriteConcern wc, List<Object> failed, List<String> errors) {
+        if (wc == null) {
+            wc = collection.getWriteConcern();
+        }
+        List<DBObject> docs = new ArrayList<DBObject>(batch.size());
+        List<Object> written = new ArrayList<Object>(batch.size());
+        DBEncoderFactory ef = config.getMapper().getEncoderFactory();
+        long start = System.currentTimeMillis();
+        database.requestStart();
+        try {
+            for (Object record : batch) {
+                String error;
+                try {
+                    DBObject marshall = toDBObject(record);
+                    docs.add(marshall);
+                    BasicDBObject q = new BasicDBObject("_id", marshall.get("_id"));
+                    WriteResult res;
+                    if (ef == null) {
+                        res = collection.update(q, marshall, true, false, wc);
+                    } else {
+                        res = collection.update(q, marshall, true, false, wc, ef.create());
+                    }
+                    error = getWriteError(res, wc);
+                } catch (MongoException e) {
+                    error = e.getMessage();
+                }
+                if (error == null) {
+                    written.add(record);
+                } else {
+                    failed.add(record);
+                    errors.add(error);
+                }
+            }
+        } finally {
+            database.requestDone();
+        }
+        long dur = System.currentTimeMillis() - start;
+        fireProfilingWriteEvent(c, docs, dur, false, WriteAccessType.BULK_UPDATE);
+        if (written.size() < batch.size()) {
+            logger.error("Could not store " + (batch.size() - written.size()) + " of " + batch.size() + " " + c.getSimpleName());
+        }
+        for (Object record : written) {
+            clearCacheIfNecessary(c, record);
+            firePostStoreEvent(record, false);
+        }
     }
 
-    public Hashtable<Class<? extends Object>, Hashtable<String, CacheElement>> cloneCache() {
-        return (Hashtable<Class<? extends Object>, Hashtable<String, CacheElement>>) cache.clone();
+    /**
+     * @return error message of the write, null if it was acknowledged or the write concern does not ask for an
+     *         acknowledgement
+     */
+    private String getWriteError(WriteResult res, WriteConcern wc) {
+        if (!wc.callGetLastError()) {
+            return null;
+        }
+        CommandResult le = res.getLastError();
+        if (le.getErrorMessage() != null) {
+            return le.getErrorMessage();
+        }
+        if (le.get("err") != null) {
+            return le.get("err").toString();
+        }
+        return null;
     }
 
-    public Hashtable<Class<? extends Object>, Hashtable<ObjectId, Object>> cloneIdCache() {
-        return (Hashtable<Class<? extends Object>, Hashtable<ObjectId, Object>>) idCache.clone();
-    }
 
     /**
-     * issues a delete command - no lifecycle methods calles, no drop, keeps all indexec this way
-     *
-     * @param cls
+     * @return a batch for modifications by query (set, inc, push...), which are sent at once on execute()
      */
-    public void clearCollection(Class<? extends Object> cls) {
-        delete(createQueryFor(cls));
+    public ModifierBatch batch() {
+        return new ModifierBatch(this);
     }
 
     /**
-     * clears every single object in collection - reads ALL objects to do so
-     * this way Lifecycle methods can be called!
-     *
-     * @param cls
+     * execute the operations of a ModifierBatch, grouped by type
      */
-
-    public void deleteCollectionItems(Class<? extends Object> cls) {
-        if (!isAnnotationPresentInHierarchy(cls, NoProtection.class)) { //cls.isAnnotationPresent(NoProtection.class)) {
-            try {
-                if (accessDenied(cls.newInstance(), Permission.DROP)) {
-                    throw new SecurityException("Drop of Collection denied!");
-                }
-            } catch (InstantiationException ex) {
-                Logger.getLogger(Morphium.class).error(ex);
-            } catch (IllegalAccessException ex) {
-                Logger.getLogger(Morphium.class).error(ex);
+    void execute(List<ModifierBatch.Operation> ops) {
+        Map<Class<?>, List<ModifierBatch.Operation>> byType = new LinkedHashMap<Class<?>, List<ModifierBatch.Operation>>();
+        for (ModifierBatch.Operation op : ops) {
+            Class<?> cls = getRealClass(op.type);
+            if (byType.get(cls) == null) {
+                byType.put(cls, new ArrayList<ModifierBatch.Operation>());
+            }
+            byType.get(cls).add(op);
+        }
+        List<Object> failed = new ArrayList<Object>();
+        List<String> errors = new ArrayList<String>();
+        for (Map.Entry<Class<?>, List<ModifierBatch.Operation>> e : byType.entrySet()) {
+            Class<?> cls = e.getKey();
+            List<ModifierBatch.Operation> lst = e.getValue();
+            Set<MorphiumStorageListener.UpdateTypes> kinds = new LinkedHashSet<MorphiumStorageListener.UpdateTypes>();
+            boolean upsert = false;
+            for (ModifierBatch.Operation op : lst) {
+                kinds.add(op.kind);
+                upsert |= op.insertIfNotExist;
+            }
+            for (MorphiumStorageListener.UpdateTypes t : kinds) {
+                firePreUpdateEvent(cls, t);
+            }
+            String coll = config.getMapper().getCollectionName(cls);
+            if (upsert && !database.collectionExists(coll)) {
+                ensureIndicesFor(cls);
+            }
+            DBCollection collection = database.getCollection(coll);
+            WriteConcern wc = getWriteConcernForClass(cls);
+            if (wc == null) {
+                wc = collection.getWriteConcern();
+            }
+            Set<MorphiumStorageListener.UpdateTypes> written = new LinkedHashSet<MorphiumStorageListener.UpdateTypes>();
+            int batchSize = Math.max(1, config.getWriteBatchSize());
+            for (int i = 0; i < lst.size(); i += batchSize) {
+                List<ModifierBatch.Operation> chunk = lst.subList(i, Math.min(lst.size(), i + batchSize));
+                updateModifiers(cls, collection, chunk, wc, written, failed, errors);
+            }
+            //once per type, not per operation
+            clearCacheIfNecessary(cls);
+            //only kinds of updates, which were written at least once
+            for (MorphiumStorageListener.UpdateTypes t : written) {
+                firePostUpdateEvent(cls, t);
             }
         }
-
-
-        inc(StatisticKeys.WRITES);
-        List<? extends Object> lst = readAll(cls);
-        for (Object r : lst) {
-            deleteObject(r);
+        if (!failed.isEmpty()) {
+            throw new BatchWriteException(failed, errors);
         }
-
-        clearCacheIfNecessary(cls);
-
-
+    }
+
+    /**
+     * send the updates on one connection, each one is acknowledged on its own (if the write concern asks for it)
+     *
+     * @param written - kinds of the updates, which were written, are added
+     * @param failed  - queries of the updates, which failed, are added
+     * @param errors  - error message of each failed update is added
+     */
+    private void updateModifiers(Class<?> cls, DBCollection collection, List<ModifierBatch.Operation> ops, WriteConcern wc, Set<MorphiumStorageListener.UpdateTypes> written, List<Object> failed, List<String> errors) {
+        List<DBObject> updates = new ArrayList<DBObject>(ops.size());
+        boolean upsert = false;
+        int failures = 0;
+        long start = System.currentTimeMillis();
+        database.requestStart();
+        try {
+            for (ModifierBatch.Operation op : ops) {
+                DBObject qobj = op.queryObject;
+                if (op.insertIfNotExist) {
+                    qobj = simplifyQueryObject(qobj);
+                    upsert = true;
+                }
+                updates.add(op.update);
+                String error;
+                try {
+                    error = getWriteError(collection.update(qobj, op.update, op.insertIfNotExist, op.multiple, wc), wc);
+                } catch (MongoException e) {
+                    error = e.getMessage();
+                }
+                if (error == null) {
+                    written.add(op.kind);
+                } else {
+                    failures++;
+                    failed.add(op.query);
+                    errors.add(error);
+                }
+            }
+        } finally {
+            database.requestDone();
+        }
+        long dur = System.currentTimeMillis() - start;
+        fireProfilingWriteEvent(cls, updates, dur, upsert, WriteAccessType.BULK_UPDATE);
+        if (failures > 0) {
+            logger.error("Could not execute " + failures + " of " + ops.size() + " modifications of " + cls.getSimpleName());
+        }
+    }
+
+    /**
+     * @return the object to be written to mongo, wrapped for direct encoding if possible
+     */
+    private DBObject toDBObject(Object o) {
+        if (config.getMapper().getEncoderFactory() != null) {
+            DBObject ret = config.getMapper().wrapForEncoder(o);
+            if (ret != null) {
+                return ret;
+            }
+        }
+        return config.getMapper().marshall(o);
+    }
+
+    /**
+     * same as DBCollection.save(), but using the encoder of the ObjectMapper - insert, if there is no _id yet, upsert
+     * otherwise
+     */
+    private void save(DBCollection collection, DBObject o, WriteConcern wc) {
+        DBEncoderFactory ef = config.getMapper().getEncoderFactory();
+        if (ef == null) {
+            if (wc == null) {
+                collection.save(o);
+            } else {
+                collection.save(o, wc);
+            }
+            return;
+        }
+        if (wc == null) {
+            wc = collection.getWriteConcern();
+        }
+        Object id = o.get("_id");
+        if (id == null || (id instanceof ObjectId && ((ObjectId) id).isNew())) {
+            if (id != null) {
+                ((ObjectId) id).notNew();
+            }
+            collection.insert(new DBObject[]{o}, wc, ef.create());
+        } else {
+            collection.update(new BasicDBObject("_id", id), o, true, false, wc, ef.create());
+        }
+    }
+
+    protected boolean isCached(Class<? extends Object> type, CacheKey k) {
+        Cache c = getAnnotationFromHierarchy(type, Cache.class); ///type.getAnnotation(Cache.class);
+        if (c != null) {
+            if (!c.readCache()) return false;
+        } else {
+            return false;
+        }
+        return cache.isCached(type, k);
+    }
+
+    /**
+     * return object by from cache. Cache key is created by getCacheKey() from query, sort, skip and limit
+     *
+     * @param type
+     * @param k
+     * @param <T>
+     * @return
+     */
+    public <T> List<T> getFromCache(Class<T> type, CacheKey k) {
+        return cache.getFromCache(type, k);
+    }
+
+    /**
+     * @deprecated cache keys are CacheKeys now, see getCacheKey(). Results are cached under a key of their own for
+     *             the string - they are only found by the other deprecated methods taking a string key
+     */
+    @Deprecated
+    public <T extends Object> void addToCache(String k, Class<? extends Object> type, List<T> ret) {
+        if (k == null) {
+            return;
+        }
+        addToCache(legacyKey(k), type, ret);
+    }
+
+    /**
+     * @deprecated see addToCache(String, Class, List)
+     */
+    @Deprecated
+    public <T> List<T> getFromCache(Class<T> type, String k) {
+        return getFromCache(type, legacyKey(k));
+    }
+
+    /**
+     * @deprecated see addToCache(String, Class, List)
+     */
+    @Deprecated
+    protected boolean isCached(Class<? extends Object> type, String k) {
+        return isCached(type, legacyKey(k));
+    }
+
+    /**
+     * @deprecated the cache is not replaced by copies anymore, use getCache()
+     * @return snapshot of the cached results: type -> key (string representation of the CacheKey) -> element
+     */
+    @Deprecated
+    public Hashtable<Class<? extends Object>, Hashtable<String, CacheElement>> cloneCache() {
+        Hashtable<Class<? extends Object>, Hashtable<String, CacheElement>> ret = new Hashtable<Class<? extends Object>, Hashtable<String, CacheElement>>();
+        for (Class<?> type : cache.getCachedTypes()) {
+            Hashtable<String, CacheElement> elements = new Hashtable<String, CacheElement>();
+            for (Map.Entry<CacheKey, CacheElement> e : cache.getCacheElements(type).entrySet()) {
+                elements.put(legacyKey(e.getKey()), e.getValue());
+            }
+            ret.put(type, elements);
+        }
+        return ret;
+    }
+
+    /**
+     * @deprecated the cache is not replaced by copies anymore, use getCache()
+     * @return snapshot of the id cache: type -> id -> object
+     */
+    @Deprecated
+    public Hashtable<Class<? extends Object>, Hashtable<ObjectId, Object>> cloneIdCache() {
+        Hashtable<Class<? extends Object>, Hashtable<ObjectId, Object>> ret = new Hashtable<Class<? extends Object>, Hashtable<ObjectId, Object>>();
+        for (Class<?> type : cache.getCachedTypes()) {
+            Hashtable<ObjectId, Object> objects = new Hashtable<ObjectId, Object>();
+            for (CacheElement e : cache.getCacheElements(type).values()) {
+                if (e.isNormalized()) {
+                    for (ObjectId id : e.getIds()) {
+                        Object o = cache.getFromIDCache(type, id);
+                        if (o != null) {
+                            objects.put(id, o);
+                        }
+                    }
+                } else if (e.getFound() != null) {
+                    for (Object o : e.getFound()) {
+                        ObjectId id = getId(o);
+                        if (id != null) {
+                            objects.put(id, o);
+                        }
+                    }
+                }
+            }
+            ret.put(type, objects);
+        }
+        return ret;
+    }
+
+    /**
+     * @deprecated use resetCache() resp. getCache(). The cache is cleared, the given results are added under their
+     *             string keys (see addToCache(String, Class, List))
+     */
+    @Deprecated
+    public void setCache(Hashtable<Class<? extends Object>, Hashtable<String, CacheElement>> c) {
+        cache.resetCache();
+        for (Map.Entry<Class<? extends Object>, Hashtable<String, CacheElement>> t : c.entrySet()) {
+            for (Map.Entry<String, CacheElement> e : t.getValue().entrySet()) {
+                if (e.getValue().getFound() != null) {
+                    addToCache(e.getKey(), t.getKey(), e.getValue().getFound());
+                }
+            }
+        }
+    }
+
+    /**
+     * @deprecated the id cache only holds objects of cached results, it is maintained by the cache - see getCache()
+     * @throws UnsupportedOperationException always
+     */
+    @Deprecated
+    public void setIdCache(Hashtable<Class<? extends Object>, Hashtable<ObjectId, Object>> c) {
+        throw new UnsupportedOperationException("The id cache cannot be replaced, use getCache()");
+    }
+
+    private CacheKey legacyKey(String k) {
+        return new CacheKey(null, null, 0, 0, k);
+    }
+
+    private String legacyKey(CacheKey k) {
+        //keys of the string based methods are returned as given
+        return k.getQueryObject() == null && k.getVariant() != null ? k.getVariant() : k.toString();
+    }
+
+    /**
+     * run the queries in background to fill the cache, at most MorphiumConfig.cacheWarmUpThreads in parallel.
+     * See isCacheWarm()
+     *
+     * @param templates - queries to run, must not be changed afterwards
+     */
+    public void warmUpCache(List<? extends Query<?>> templates) {
+        cacheWarmUp.warmUp(templates);
+    }
+
+    /**
+     * @return true, if all warm up queries (from snapshot or warmUpCache()) are finished
+     */
+    public boolean isCacheWarm() {
+        return cacheWarmUp.isWarm();
+    }
+
+    /**
+     * wait until all warm up queries are finished
+     *
+     * @param timeout - in ms
+     * @return true if the cache is warm, false on timeout
+     */
+    public boolean waitForCacheWarmUp(long timeout) throws InterruptedException {
+        return cacheWarmUp.waitUntilWarm(timeout);
+    }
+
+    /**
+     * store the most used cache keys (MorphiumConfig.cacheSnapshotSize) in the file. Done automatically on close(), if
+     * MorphiumConfig.cacheSnapshotFile is set
+     */
+    public void writeCacheSnapshot(File f) throws IOException {
+        cacheWarmUp.writeSnapshot(f, config.getCacheSnapshotSize());
+    }
+
+    /**
+     * return result from cache, or load it with the loader and add it to the cache. Concurrent calls for the same key
+     * only load once, see MorphiumCache.getOrLoad()
+     *
+     * @param type   - the cached type
+     * @param k      - cache key
+     * @param loader - loads the result on cache miss, or in background to refresh it
+     * @param <T>    - type of the result elements (entities or ObjectIds)
+     * @return
+     */
+    public <T> List<T> getOrLoad(Class<?> type, CacheKey k, Callable<List<T>> loader) {
+        return cache.getOrLoad((Class<T>) type, k, loader);
+    }
+
+    /**
+     * the cache engine in use - see MorphiumConfig.setCacheClass()
+     *
+     * @return
+     */
+    public MorphiumCache getCache() {
+        return cache;
+    }
+
+    /**
+     * issues a delete command - no lifecycle methods calles, no drop, keeps all indexec this way
+     *
+     * @param cls
+     */
+    public void clearCollection(Class<? extends Object> cls) {
+        delete(createQueryFor(cls));
+    }
+
+    /**
+     * clears every single object in collection - reads ALL objects to do so
+     * this way Lifecycle methods can be called!
+     *
+     * @param cls
+     */
+
+    public void deleteCollectionItems(Class<? extends Object> cls) {
+        if (!isAnnotationPresentInHierarchy(cls, NoProtection.class)) { //cls.isAnnotationPresent(NoProtection.class)) {
+            try {
+                if (accessDenied(cls.newInstance(), Permission.DROP)) {
+                    throw new SecurityException("Drop of Collection denied!");
+                }
+            } catch (InstantiationException ex) {
+                Logger.getLogger(Morphium.class).error(ex);
+            } catch (IllegalAccessException ex) {
+                Logger.getLogger(Morphium.class).error(ex);
+            }
+        }
+
+
+        inc(StatisticKeys.WRITES);
+        //not reading all into memory
+        MorphiumIterator<? extends Object> it = createQueryFor(cls).asIterable(1000);
+        try {
+            for (Object r : it) {
+                deleteObject(r);
+            }
+        } finally {
+            it.close();
+        }
+
+        clearCacheIfNecessary(cls);
+
+
     }
 
     /**
@@ -1602,10 +1994,7 @@ public final class Morphium {
     }
 
     private <T> T getFromIDCache(Class<T> type, ObjectId id) {
-        if (idCache.get(type) != null) {
-            return (T) idCache.get(type).get(id);
-        }
-        return null;
+        return cache.getFromIDCache(type, id);
     }
 
 
@@ -1678,10 +2067,10 @@ public final class Morphium {
     public <T> T findById(Class<T> type, ObjectId id) {
         T ret = getFromIDCache(type, id);
         if (ret != null) return ret;
-        List<String> ls = config.getMapper().getFields(type, Id.class);
-        if (ls.size() == 0) throw new RuntimeException("Cannot find by ID on non-Entity");
+        EntityModel.Property p = config.getMapper().getEntityModel(type).getIdProperty();
+        if (p == null) throw new RuntimeException("Cannot find by ID on non-Entity");
 
-        return (T) createQueryFor(type).f(ls.get(0)).eq(id).get();
+        return (T) createQueryFor(type).f(p.getName()).eq(id).get();
     }
 //    /**
 //     * returns a list of all elements for the given type, matching the given query
@@ -1844,13 +2233,7 @@ public final class Morphium {
      * @param cls
      */
     public void clearCachefor(Class<? extends Object> cls) {
-        if (cache.get(cls) != null) {
-            cache.get(cls).clear();
-        }
-        if (idCache.get(cls) != null) {
-            idCache.get(cls).clear();
-        }
-        //clearCacheFor(cls);
+        cache.clearCachefor(cls);
     }
 
     public void storeInBackground(final Object lst) {
@@ -1873,6 +2256,263 @@ public final class Morphium {
     }
 
 
+    ///////////////////////////////////////////////////
+    /////////////// asynchronous writes
+    //
+    // Executed by the lanes of the AsyncWriter: writes to the same entity (type and id, instance for new objects) resp.
+    // query based writes to the same type are executed in the order they were issued. A new object stays on the lane
+    // of its instance until its pending writes are done, although it gets its id meanwhile. Access is checked in the
+    // calling thread, errors are thrown by Future.get(). Write cache settings are ignored, the future is done when
+    // the write is done.
+
+    public Future<Void> storeAsync(final Object o) {
+        checkStoreAccess(o);
+        return submitWrite(o, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                storeNoCache(o);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * objects are written with storeNoCacheList(), one call per lane
+     */
+    public <T> Future<Void> storeListAsync(List<T> lst) {
+        for (T o : lst) {
+            checkStoreAccess(o);
+        }
+        AsyncWriter w = getAsyncWriter();
+        Map<Integer, List<Object>> byLane = new HashMap<Integer, List<Object>>();
+        Map<Integer, List<Object>> newByLane = new HashMap<Integer, List<Object>>();
+        for (T o : lst) {
+            List<Object> added = addPendingNew(o);
+            int lane = w.lane(laneKey(o));
+            if (byLane.get(lane) == null) {
+                byLane.put(lane, new ArrayList<Object>());
+                newByLane.put(lane, new ArrayList<Object>());
+            }
+            byLane.get(lane).add(o);
+            newByLane.get(lane).addAll(added);
+        }
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (Map.Entry<Integer, List<Object>> e : byLane.entrySet()) {
+            final List<Object> part = e.getValue();
+            List<Object> added = newByLane.remove(e.getKey());
+            try {
+                futures.add(w.submitToLane(e.getKey(), releasing(added, new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        storeNoCacheList(part);
+                        return null;
+                    }
+                })));
+            } catch (RuntimeException ex) {
+                removePendingNew(added);
+                for (List<Object> l : newByLane.values()) {
+                    removePendingNew(l);
+                }
+                throw ex;
+            }
+        }
+        return new AsyncWriter.AllOf(futures);
+    }
+
+    public Future<Void> setAsync(final Object toSet, final String field, final Object value) {
+        checkStoreAccess(toSet);
+        return submitWrite(toSet, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                set(toSet, field, value);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> setAsync(Query<?> query, final String field, final Object value, final boolean insertIfNotExist, final boolean multiple) {
+        checkUpdateAccess(query.getType());
+        final Query<?> q = copy(query);
+        return getAsyncWriter().submit(laneKey(q), new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                set(q, field, value, insertIfNotExist, multiple);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> setAsync(Query<?> query, String field, Object value) {
+        return setAsync(query, field, value, false, false);
+    }
+
+    public Future<Void> incAsync(final Object toInc, final String field, final int amount) {
+        checkStoreAccess(toInc);
+        return submitWrite(toInc, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                inc(toInc, field, amount);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> incAsync(Query<?> query, final String field, final int amount, final boolean insertIfNotExist, final boolean multiple) {
+        checkUpdateAccess(query.getType());
+        final Query<?> q = copy(query);
+        return getAsyncWriter().submit(laneKey(q), new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                inc(q, field, amount, insertIfNotExist, multiple);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> incAsync(Query<?> query, String field, int amount) {
+        return incAsync(query, field, amount, false, false);
+    }
+
+    public Future<Void> pushAsync(Query<?> query, final String field, final Object value, final boolean insertIfNotExist, final boolean multiple) {
+        checkUpdateAccess(query.getType());
+        final Query<?> q = copy(query);
+        return getAsyncWriter().submit(laneKey(q), new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                push(q, field, value, insertIfNotExist, multiple);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> pushAsync(Query<?> query, String field, Object value) {
+        return pushAsync(query, field, value, false, true);
+    }
+
+    public <T> Future<Void> deleteAsync(T o) {
+        final Object real = getRealObject(o);
+        checkDeleteAccess(real);
+        return submitWrite(real, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                deleteObjectNoCheck(real);
+                return null;
+            }
+        });
+    }
+
+    public <T> Future<Void> deleteAsync(Query<T> query) {
+        checkDeleteAccess(query.getType());
+        final Query<T> q = copy(query);
+        return getAsyncWriter().submit(laneKey(q), new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                delete(q);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * submits the write to the lane of the object, keeping a new object on the lane of its instance until the write
+     * is done
+     */
+    private Future<Void> submitWrite(Object o, Callable<Void> write) {
+        List<Object> added = addPendingNew(o);
+        try {
+            return getAsyncWriter().submit(laneKey(o), releasing(added, write));
+        } catch (RuntimeException e) {
+            removePendingNew(added);
+            throw e;
+        }
+    }
+
+    /**
+     * counts a write to the object, if it is new or has other writes pending, which were issued while it was new
+     *
+     * @return the object, if counted - to be passed to removePendingNew() when the write is done
+     */
+    private List<Object> addPendingNew(Object o) {
+        Object real = getRealObject(o);
+        List<Object> ret = new ArrayList<Object>();
+        synchronized (pendingNew) {
+            Integer cnt = pendingNew.get(real);
+            if (cnt != null || getId(real) == null) {
+                pendingNew.put(real, cnt == null ? 1 : cnt + 1);
+                ret.add(real);
+            }
+        }
+        return ret;
+    }
+
+    private void removePendingNew(List<Object> objects) {
+        synchronized (pendingNew) {
+            for (Object o : objects) {
+                Integer cnt = pendingNew.get(o);
+                if (cnt == null || cnt <= 1) {
+                    pendingNew.remove(o);
+                } else {
+                    pendingNew.put(o, cnt - 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the write, calling removePendingNew() for the objects when done
+     */
+    private Callable<Void> releasing(final List<Object> added, final Callable<Void> write) {
+        if (added.isEmpty()) {
+            return write;
+        }
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    return write.call();
+                } finally {
+                    removePendingNew(added);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return key of the lane for writes to the entity: type and id, the instance for new objects and for objects
+     *         with writes pending, which were issued while they were new
+     */
+    private int laneKey(Object o) {
+        Object real = getRealObject(o);
+        synchronized (pendingNew) {
+            if (pendingNew.containsKey(real)) {
+                return System.identityHashCode(real);
+            }
+        }
+        ObjectId id = getId(real);
+        if (id == null) {
+            return System.identityHashCode(real);
+        }
+        return 31 * getRealClass(real.getClass()).getName().hashCode() + id.hashCode();
+    }
+
+    /**
+     * @return key of the lane for query based writes: the type
+     */
+    private int laneKey(Query<?> q) {
+        return getRealClass(q.getType()).getName().hashCode();
+    }
+
+    /**
+     * @return copy of the query, so that it may be changed by the caller while the write is pending
+     */
+    private <T> Query<T> copy(Query<T> q) {
+        try {
+            return q.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public ObjectId getId(Object o) {
         return config.getMapper().getId(o);
     }
@@ -1972,31 +2612,15 @@ public final class Morphium {
 
 
         Class<?> type = getRealClass(o.getClass());
-        if (!isAnnotationPresentInHierarchy(type, NoProtection.class)) { //o.getClass().isAnnotationPresent(NoProtection.class)) {
-            if (getId(o) == null) {
-                if (accessDenied(o, Permission.INSERT)) {
-                    throw new SecurityException("Insert of new Object denied!");
-                }
-            } else {
-                if (accessDenied(o, Permission.UPDATE)) {
-                    throw new SecurityException("Update of Object denied!");
-                }
-            }
-        }
+        checkStoreAccess(o);
 
         Cache cc = getAnnotationFromHierarchy(type, Cache.class);//o.getClass().getAnnotation(Cache.class);
         if (cc == null || isAnnotationPresentInHierarchy(o.getClass(), NoCache.class)) {
             storeNoCache(o);
             return;
         }
-        final Object fo = o;
         if (cc.writeCache()) {
-            writers.execute(new Runnable() {
-                @Override
-                public void run() {
-                    storeNoCache(fo);
-                }
-            });
+            writeBuffer.add(o);
             inc(StatisticKeys.WRITES_CACHED);
 
         } else {
@@ -2012,17 +2636,7 @@ public final class Morphium {
 
         //checking permission - might take some time ;-(
         for (T o : lst) {
-            if (!isAnnotationPresentInHierarchy(o.getClass(), NoProtection.class)) {
-                if (getId(o) == null) {
-                    if (accessDenied(o, Permission.INSERT)) {
-                        throw new SecurityException("Insert of new Object denied!");
-                    }
-                } else {
-                    if (accessDenied(o, Permission.UPDATE)) {
-                        throw new SecurityException("Update of Object denied!");
-                    }
-                }
-            }
+            checkStoreAccess(o);
 
             Cache c = getAnnotationFromHierarchy(o.getClass(), Cache.class);//o.getClass().getAnnotation(Cache.class);
             if (c != null && !isAnnotationPresentInHierarchy(o.getClass(), NoCache.class)) {
@@ -2037,7 +2651,10 @@ public final class Morphium {
             }
         }
 
-        storeListInBackground(storeInBg);
+        for (T o : storeInBg) {
+            writeBuffer.add(o);
+            inc(StatisticKeys.WRITES_CACHED);
+        }
         storeNoCacheList(storeDirect);
 
     }
@@ -2050,12 +2667,64 @@ public final class Morphium {
      */
     public <T> void deleteObject(T o) {
         o = getRealObject(o);
+        checkDeleteAccess(o);
+        deleteObjectNoCheck(o);
+    }
+
+    /**
+     * @throws SecurityException if the object may not be stored
+     */
+    private void checkStoreAccess(Object o) {
+        if (!isAnnotationPresentInHierarchy(getRealClass(o.getClass()), NoProtection.class)) {
+            if (getId(o) == null) {
+                if (accessDenied(o, Permission.INSERT)) {
+                    throw new SecurityException("Insert of new Object denied!");
+                }
+            } else {
+                if (accessDenied(o, Permission.UPDATE)) {
+                    throw new SecurityException("Update of Object denied!");
+                }
+            }
+        }
+    }
+
+    /**
+     * @throws SecurityException if the object may not be deleted
+     */
+    private void checkDeleteAccess(Object o) {
         if (!isAnnotationPresentInHierarchy(o.getClass(), NoProtection.class)) {
             if (accessDenied(o, Permission.DELETE)) {
                 throw new SecurityException("Deletion of Object denied!");
             }
         }
+    }
+
+    /**
+     * @throws SecurityException if objects of the type may not be updated by query
+     */
+    private void checkUpdateAccess(Class<?> cls) {
+        if (!isAnnotationPresentInHierarchy(getRealClass(cls), NoProtection.class)) {
+            if (accessDenied(cls, Permission.UPDATE)) {
+                throw new SecurityException("Update of " + cls.getName() + " denied!");
+            }
+        }
+    }
+
+    /**
+     * @throws SecurityException if objects of the type may not be deleted by query
+     */
+    private void checkDeleteAccess(Class<?> cls) {
+        if (!isAnnotationPresentInHierarchy(getRealClass(cls), NoProtection.class)) {
+            if (accessDenied(cls, Permission.DELETE)) {
+                throw new SecurityException("Deletion of " + cls.getName() + " denied!");
+            }
+        }
+    }
+
+    private void deleteObjectNoCheck(Object o) {
         firePreRemoveEvent(o);
+        //a buffered write must not bring the object back
+        writeBuffer.remove(o);
 
         ObjectId id = config.getMapper().getId(o);
         BasicDBObject db = new BasicDBObject();
@@ -2070,17 +2739,19 @@ public final class Morphium {
         }
         long dur = System.currentTimeMillis() - start;
         fireProfilingWriteEvent(o.getClass(), o, dur, false, WriteAccessType.SINGLE_DELETE);
-        clearCachefor(o.getClass());
+        Cache c = getAnnotationFromHierarchy(o.getClass(), Cache.class);
+        if (c != null && (c.syncCache().equals(Cache.SyncCacheStrategy.REMOVE_ENTRY_FROM_TYPE_CACHE) || c.syncCache().equals(Cache.SyncCacheStrategy.UPDATE_ENTRY))) {
+            //only results containing the deleted object are affected
+            removeEntryFromCache(o.getClass(), id);
+        } else {
+            clearCachefor(o.getClass());
+        }
         inc(StatisticKeys.WRITES);
         firePostRemoveEvent(o);
     }
 
     public void resetCache() {
-        setCache(new Hashtable<Class<? extends Object>, Hashtable<String, CacheElement>>());
-    }
-
-    public void setCache(Hashtable<Class<? extends Object>, Hashtable<String, CacheElement>> cache) {
-        this.cache = cache;
+        cache.resetCache();
     }
 
 
@@ -2096,29 +2767,7 @@ public final class Morphium {
     }
 
     public void removeEntryFromCache(Class cls, ObjectId id) {
-        Hashtable<Class<? extends Object>, Hashtable<String, CacheElement>> c = cloneCache();
-        Hashtable<Class<? extends Object>, Hashtable<ObjectId, Object>> idc = cloneIdCache();
-        idc.get(cls).remove(id);
-
-        ArrayList<String> toRemove = new ArrayList<String>();
-        for (String key : c.get(cls).keySet()) {
-
-            for (Object el : c.get(cls).get(key).getFound()) {
-                ObjectId lid = config.getMapper().getId(el);
-                if (lid == null) {
-                    logger.error("Null id in CACHE?");
-                    toRemove.add(key);
-                }
-                if (lid.equals(id)) {
-                    toRemove.add(key);
-                }
-            }
-        }
-        for (String k : toRemove) {
-            c.get(cls).remove(k);
-        }
-        setCache(c);
-        setIdCache(idc);
+        cache.removeEntryFromCache(cls, id);
     }
 
     public Map<StatisticKeys, StatisticValue> getStats() {
@@ -2135,7 +2784,28 @@ public final class Morphium {
     }
 
     public void close() {
+        if (config.getCacheSnapshotFile() != null) {
+            try {
+                writeCacheSnapshot(new File(config.getCacheSnapshotFile()));
+            } catch (IOException e) {
+                logger.error("Could not write cache snapshot", e);
+            }
+        }
+        synchronized (this) {
+            if (asyncWriter != null) {
+                asyncWriter.shutdown(10000);
+            }
+        }
+        writeBuffer.close();
         cacheHousekeeper.end();
+        synchronized (this) {
+            if (decoders != null) {
+                decoders.shutdown();
+            }
+            if (readers != null) {
+                readers.shutdown();
+            }
+        }
 
         for (ShutdownListener l : shutDownListeners) {
             l.onShutdown(this);
@@ -2156,6 +2826,91 @@ public final class Morphium {
     }
 
 
+    /**
+     * @return lanes for asynchronous writes, see MorphiumConfig.getAsyncWriteThreads()
+     */
+    private synchronized AsyncWriter getAsyncWriter() {
+        if (asyncWriter == null) {
+            int threads = config.getAsyncWriteThreads();
+            if (threads <= 0) {
+                threads = Runtime.getRuntime().availableProcessors();
+            }
+            asyncWriter = new AsyncWriter(threads);
+        }
+        return asyncWriter;
+    }
+
+    /**
+     * @return pool for asynchronous queries, see MorphiumConfig.getAsyncReadThreads(). Separate from the decoder
+     *         pool, as a query may wait for the decoders. At most asyncReadQueueSize queries wait for a thread, the
+     *         asyncReadPolicy decides what happens if more are issued
+     */
+    synchronized ThreadPoolExecutor getReaderPool() {
+        if (readers == null) {
+            int threads = config.getAsyncReadThreads();
+            if (threads <= 0) {
+                threads = Math.max(1, config.getMaxConnections() / 2);
+            }
+            readers = new ThreadPoolExecutor(threads, threads, 10000L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(Math.max(1, config.getAsyncReadQueueSize())), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "morphium_reader");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, rejectionHandler(config.getAsyncReadPolicy()));
+            readers.allowCoreThreadTimeOut(true);
+        }
+        return readers;
+    }
+
+    private RejectedExecutionHandler rejectionHandler(AsyncReadPolicy policy) {
+        switch (policy) {
+            case CALLER_RUNS:
+                return new ThreadPoolExecutor.CallerRunsPolicy();
+            case ABORT:
+                return new ThreadPoolExecutor.AbortPolicy();
+            default:
+                return new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        if (executor.isShutdown()) {
+                            throw new RejectedExecutionException("Pool is shut down");
+                        }
+                        try {
+                            executor.getQueue().put(r);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException(e);
+                        }
+                    }
+                };
+        }
+    }
+
+    /**
+     * @return pool for unmarshalling results in parallel, see MorphiumConfig.getParallelDecodingThreshold(). If
+     *         parallelDecodingQueueSize batches are waiting, the submitting thread unmarshalls the next one itself
+     */
+    synchronized ThreadPoolExecutor getDecoderPool() {
+        if (decoders == null) {
+            int threads = config.getParallelDecodingThreads();
+            if (threads <= 0) {
+                threads = Runtime.getRuntime().availableProcessors();
+            }
+            decoders = new ThreadPoolExecutor(threads, threads, 10000L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(Math.max(1, config.getParallelDecodingQueueSize())), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "morphium_decoder");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+            decoders.allowCoreThreadTimeOut(true);
+        }
+        return decoders;
+    }
+
     public String createCamelCase(String n) {
         return config.getMapper().createCamelCase(n, false);
     }
@@ -6,6 +6,9 @@ package de.caluga.morphium;
  */
 
 import com.mongodb.ServerAddress;
+import de.caluga.morphium.cache.MorphiumCache;
+import de.caluga.morphium.cache.MorphiumCacheImpl;
+import de.caluga.morphium.cache.OffHeapSpillPolicy;
 import de.caluga.morphium.secure.DefaultSecurityManager;
 import de.caluga.morphium.secure.MongoSecurityManager;
 import org.apache.log4j.xml.DOMConfigurator;
@@ -26,6 +29,65 @@ public class MorphiumConfig {
     private int maxConnections, housekeepingTimeout;
     private int globalCacheValidTime = 5000;
     private int writeCacheTimeout = 5000;
+    /**
+     * limit of the estimated heap size of the whole cache in bytes, -1 means unlimited
+     */
+    private long maxCacheMemory = -1;
+    /**
+     * size of the off heap cache tier in bytes, 0 means disabled. Only used for types with @Cache(offHeap=true)
+     */
+    private long offHeapCacheSize = 0;
+    private OffHeapSpillPolicy offHeapSpillPolicy = OffHeapSpillPolicy.EVICTED;
+    /**
+     * file to store the most used cache keys in on close(). If it exists on startup, the queries are replayed to warm
+     * up the cache. Null means disabled
+     */
+    private String cacheSnapshotFile = null;
+    private int cacheSnapshotSize = 1000;
+    private int cacheWarmUpThreads = 4;
+    /**
+     * results of asList() with at least this many documents are unmarshalled in parallel, 0 means disabled
+     */
+    private int parallelDecodingThreshold = 0;
+    /**
+     * number of threads for parallel unmarshalling, 0 means one per processor
+     */
+    private int parallelDecodingThreads = 0;
+    /**
+     * maximum number of batches waiting for a decoder thread, if the queue is full the querying thread unmarshalls
+     * the batch itself
+     */
+    private int parallelDecodingQueueSize = 100;
+    /**
+     * existing objects in storeList() (and the operations of a ModifierBatch) are sent in batches of this size, each
+     * on one connection. Round trips are only saved for types with an unacknowledged write concern: with an
+     * acknowledging one (e.g. @WriteSafety) each write waits for its acknowledgement, so failures can be reported per
+     * object - one round trip per object, as when storing them one by one.
+     */
+    private int writeBatchSize = 1000;
+    /**
+     * maximum number of objects waiting in the write buffer of @Cache(writeCache=true) types
+     */
+    private int writeBufferSize = 10000;
+    private WriteBufferPolicy writeBufferPolicy = WriteBufferPolicy.BLOCK;
+    /**
+     * number of threads for asynchronous writes (storeAsync() etc.), 0 means one per processor
+     */
+    private int asyncWriteThreads = 0;
+    /**
+     * number of threads for asynchronous queries (asListAsync() etc.), 0 means half of maxConnections
+     */
+    private int asyncReadThreads = 0;
+    /**
+     * maximum number of asynchronous queries waiting for a reader thread
+     */
+    private int asyncReadQueueSize = 1000;
+    private AsyncReadPolicy asyncReadPolicy = AsyncReadPolicy.CALLER_RUNS;
+    /**
+     * classes registered with the ObjectMapper on startup, so that documents containing their typeId (see
+     * Entity.typeId()) can be read before the classes are used otherwise
+     */
+    private List<Class<?>> types = new ArrayList<Class<?>>();
     private String database;
 
     private int connectionTimeout = 0;
@@ -50,6 +112,7 @@ public class MorphiumConfig {
     private MongoSecurityManager securityMgr;
     private ObjectMapper mapper = new ObjectMapperImpl();
     private Class fieldImplClass = de.caluga.morphium.MongoFieldImpl.class;
+    private Class<? extends MorphiumCache> cacheClass = MorphiumCacheImpl.class;
 
     public ConfigManager getConfigManager() {
         return configManager;
@@ -83,6 +146,19 @@ public class MorphiumConfig {
         this.fieldImplClass = fieldImplClass;
     }
 
+    public Class<? extends MorphiumCache> getCacheClass() {
+        return cacheClass;
+    }
+
+    /**
+     * cache engine to use, default is MorphiumCacheImpl
+     *
+     * @param cacheClass
+     */
+    public void setCacheClass(Class<? extends MorphiumCache> cacheClass) {
+        this.cacheClass = cacheClass;
+    }
+
     public boolean isSocketKeepAlive() {
         return socketKeepAlive;
     }
@@ -211,6 +287,149 @@ public class MorphiumConfig {
         this.writeCacheTimeout = writeCacheTimeout;
     }
 
+    public long getMaxCacheMemory() {
+        return maxCacheMemory;
+    }
+
+    public void setMaxCacheMemory(long maxCacheMemory) {
+        this.maxCacheMemory = maxCacheMemory;
+    }
+
+    public long getOffHeapCacheSize() {
+        return offHeapCacheSize;
+    }
+
+    public void setOffHeapCacheSize(long offHeapCacheSize) {
+        this.offHeapCacheSize = offHeapCacheSize;
+    }
+
+    public OffHeapSpillPolicy getOffHeapSpillPolicy() {
+        return offHeapSpillPolicy;
+    }
+
+    public void setOffHeapSpillPolicy(OffHeapSpillPolicy offHeapSpillPolicy) {
+        this.offHeapSpillPolicy = offHeapSpillPolicy;
+    }
+
+    public String getCacheSnapshotFile() {
+        return cacheSnapshotFile;
+    }
+
+    public void setCacheSnapshotFile(String cacheSnapshotFile) {
+        this.cacheSnapshotFile = cacheSnapshotFile;
+    }
+
+    public int getCacheSnapshotSize() {
+        return cacheSnapshotSize;
+    }
+
+    public void setCacheSnapshotSize(int cacheSnapshotSize) {
+        this.cacheSnapshotSize = cacheSnapshotSize;
+    }
+
+    public int getCacheWarmUpThreads() {
+        return cacheWarmUpThreads;
+    }
+
+    public void setCacheWarmUpThreads(int cacheWarmUpThreads) {
+        this.cacheWarmUpThreads = cacheWarmUpThreads;
+    }
+
+    public int getParallelDecodingThreshold() {
+        return parallelDecodingThreshold;
+    }
+
+    public void setParallelDecodingThreshold(int parallelDecodingThreshold) {
+        this.parallelDecodingThreshold = parallelDecodingThreshold;
+    }
+
+    public int getParallelDecodingThreads() {
+        return parallelDecodingThreads;
+    }
+
+    public void setParallelDecodingThreads(int parallelDecodingThreads) {
+        this.parallelDecodingThreads = parallelDecodingThreads;
+    }
+
+    public int getParallelDecodingQueueSize() {
+        return parallelDecodingQueueSize;
+    }
+
+    public void setParallelDecodingQueueSize(int parallelDecodingQueueSize) {
+        this.parallelDecodingQueueSize = parallelDecodingQueueSize;
+    }
+
+    public int getWriteBatchSize() {
+        return writeBatchSize;
+    }
+
+    public void setWriteBatchSize(int writeBatchSize) {
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    public int getWriteBufferSize() {
+        return writeBufferSize;
+    }
+
+    public void setWriteBufferSize(int writeBufferSize) {
+        this.writeBufferSize = writeBufferSize;
+    }
+
+    public WriteBufferPolicy getWriteBufferPolicy() {
+        return writeBufferPolicy;
+    }
+
+    public void setWriteBufferPolicy(WriteBufferPolicy writeBufferPolicy) {
+        this.writeBufferPolicy = writeBufferPolicy;
+    }
+
+    public int getAsyncWriteThreads() {
+        return asyncWriteThreads;
+    }
+
+    public void setAsyncWriteThreads(int asyncWriteThreads) {
+        this.asyncWriteThreads = asyncWriteThreads;
+    }
+
+    public int getAsyncReadThreads() {
+        return asyncReadThreads;
+    }
+
+    public void setAsyncReadThreads(int asyncReadThreads) {
+        this.asyncReadThreads = asyncReadThreads;
+    }
+
+    public int getAsyncReadQueueSize() {
+        return asyncReadQueueSize;
+    }
+
+    public void setAsyncReadQueueSize(int asyncReadQueueSize) {
+        this.asyncReadQueueSize = asyncReadQueueSize;
+    }
+
+    public AsyncReadPolicy getAsyncReadPolicy() {
+        return asyncReadPolicy;
+    }
+
+    public void setAsyncReadPolicy(AsyncReadPolicy asyncReadPolicy) {
+        this.asyncReadPolicy = asyncReadPolicy;
+    }
+
+    public List<Class<?>> getTypes() {
+        return types;
+    }
+
+    public void setTypes(List<Class<?>> types) {
+        this.types = types;
+    }
+
+    /**
+     * register the class on startup - necessary for subclasses with a typeId, that are read via their base class
+     */
+    public void addType(Class<?> type) {
+        types.add(type);
+    }
+
     public Map<String, Integer> getValidTimeByClassName() {
         return validTimeByClassName;
     }
@@ -336,6 +555,23 @@ public class MorphiumConfig {
                 ", housekeepingTimeout=" + housekeepingTimeout +
                 ", globalCacheValidTime=" + globalCacheValidTime +
                 ", writeCacheTimeout=" + writeCacheTimeout +
+                ", maxCacheMemory=" + maxCacheMemory +
+                ", offHeapCacheSize=" + offHeapCacheSize +
+                ", offHeapSpillPolicy=" + offHeapSpillPolicy +
+                ", cacheSnapshotFile='" + cacheSnapshotFile + '\'' +
+                ", cacheSnapshotSize=" + cacheSnapshotSize +
+                ", cacheWarmUpThreads=" + cacheWarmUpThreads +
+                ", parallelDecodingThreshold=" + parallelDecodingThreshold +
+                ", parallelDecodingThreads=" + parallelDecodingThreads +
+                ", parallelDecodingQueueSize=" + parallelDecodingQueueSize +
+                ", writeBatchSize=" + writeBatchSize +
+                ", writeBufferSize=" + writeBufferSize +
+                ", writeBufferPolicy=" + writeBufferPolicy +
+                ", asyncWriteThreads=" + asyncWriteThreads +
+                ", asyncReadThreads=" + asyncReadThreads +
+                ", asyncReadQueueSize=" + asyncReadQueueSize +
+                ", asyncReadPolicy=" + asyncReadPolicy +
+                ", types=" + types +
                 ", database='" + database + '\'' +
                 ", connectionTimeout=" + connectionTimeout +
                 ", socketTimeout=" + socketTimeout +
@@ -353,6 +589,7 @@ public class MorphiumConfig {
                 ", securityMgr=" + securityMgr +
                 ", mapper=" + mapper +
                 ", fieldImplClass='" + fieldImplClass + '\'' +
+                ", cacheClass='" + cacheClass + '\'' +
                 '}';
     }
 
@@ -374,6 +611,31 @@ public class MorphiumConfig {
         p.setProperty(prefix + "housekeepingTimeout", "" + housekeepingTimeout);
         p.setProperty(prefix + "globalCacheValidTime", "" + globalCacheValidTime);
         p.setProperty(prefix + "writeCacheTimeout", "" + writeCacheTimeout);
+        p.setProperty(prefix + "maxCacheMemory", "" + maxCacheMemory);
+        p.setProperty(prefix + "offHeapCacheSize", "" + offHeapCacheSize);
+        p.setProperty(prefix + "offHeapSpillPolicy", offHeapSpillPolicy.name());
+        if (cacheSnapshotFile != null) {
+            p.setProperty(prefix + "cacheSnapshotFile", cacheSnapshotFile);
+        }
+        p.setProperty(prefix + "cacheSnapshotSize", "" + cacheSnapshotSize);
+        p.setProperty(prefix + "cacheWarmUpThreads", "" + cacheWarmUpThreads);
+        p.setProperty(prefix + "parallelDecodingThreshold", "" + parallelDecodingThreshold);
+        p.setProperty(prefix + "parallelDecodingThreads", "" + parallelDecodingThreads);
+        p.setProperty(prefix + "parallelDecodingQueueSize", "" + parallelDecodingQueueSize);
+        p.setProperty(prefix + "writeBatchSize", "" + writeBatchSize);
+        p.setProperty(prefix + "writeBufferSize", "" + writeBufferSize);
+        p.setProperty(prefix + "writeBufferPolicy", writeBufferPolicy.name());
+        p.setProperty(prefix + "asyncWriteThreads", "" + asyncWriteThreads);
+        p.setProperty(prefix + "asyncReadThreads", "" + asyncReadThreads);
+        p.setProperty(prefix + "asyncReadQueueSize", "" + asyncReadQueueSize);
+        p.setProperty(prefix + "asyncReadPolicy", asyncReadPolicy.name());
+        String t = "";
+        for (Class<?> c : types) {
+            if (!t.isEmpty())
+                t += ",";
+            t += c.getName();
+        }
+        p.setProperty(prefix + "types", t);
         p.setProperty(prefix + "database", database);
         p.setProperty(prefix + "connectionTimeout", "" + connectionTimeout);
         p.setProperty(prefix + "socketTimeout", "" + socketTimeout);
@@ -395,6 +657,7 @@ public class MorphiumConfig {
         p.setProperty(prefix + "superUserPassword", superUserPassword);
         p.setProperty(prefix + "adminGroupName", adminGroupName);
         p.setProperty(prefix + "fieldImplClass", fieldImplClass.getName());
+        p.setProperty(prefix + "cacheClass", cacheClass.getName());
         p.setProperty(prefix + "mapperClass", mapper.getClass().getName());
         p.setProperty(prefix + "securityManagerClass", securityMgr.getClass().getName());
     }
@@ -417,6 +680,12 @@ public class MorphiumConfig {
         } catch (ClassNotFoundException e) {
         }
 
+        String cacheClassStr = p.getProperty(prefix + "cacheClass", MorphiumCacheImpl.class.getName());
+        try {
+            cacheClass = (Class<? extends MorphiumCache>) Class.forName(cacheClassStr);
+        } catch (ClassNotFoundException e) {
+        }
+
         String mapperCls = p.getProperty(prefix + "mapperClass", ObjectMapperImpl.class.getName());
         try {
             mapper = (ObjectMapper) Class.forName(mapperCls).newInstance();
@@ -466,6 +735,31 @@ public class MorphiumConfig {
         database = p.getProperty(prefix + "database", "morphium");
         connectionTimeout = Integer.valueOf(p.getProperty(prefix + "connectionTimeout", "0"));
         writeCacheTimeout = Integer.valueOf(p.getProperty(prefix + "writeCacheTimeout", "5000"));
+        maxCacheMemory = Long.valueOf(p.getProperty(prefix + "maxCacheMemory", "-1"));
+        offHeapCacheSize = Long.valueOf(p.getProperty(prefix + "offHeapCacheSize", "0"));
+        offHeapSpillPolicy = OffHeapSpillPolicy.valueOf(p.getProperty(prefix + "offHeapSpillPolicy", "EVICTED"));
+        cacheSnapshotFile = p.getProperty(prefix + "cacheSnapshotFile");
+        cacheSnapshotSize = Integer.valueOf(p.getProperty(prefix + "cacheSnapshotSize", "1000"));
+        cacheWarmUpThreads = Integer.valueOf(p.getProperty(prefix + "cacheWarmUpThreads", "4"));
+        parallelDecodingThreshold = Integer.valueOf(p.getProperty(prefix + "parallelDecodingThreshold", "0"));
+        parallelDecodingThreads = Integer.valueOf(p.getProperty(prefix + "parallelDecodingThreads", "0"));
+        parallelDecodingQueueSize = Integer.valueOf(p.getProperty(prefix + "parallelDecodingQueueSize", "100"));
+        writeBatchSize = Integer.valueOf(p.getProperty(prefix + "writeBatchSize", "1000"));
+        writeBufferSize = Integer.valueOf(p.getProperty(prefix + "writeBufferSize", "10000"));
+        writeBufferPolicy = WriteBufferPolicy.valueOf(p.getProperty(prefix + "writeBufferPolicy", "BLOCK"));
+        asyncWriteThreads = Integer.valueOf(p.getProperty(prefix + "asyncWriteThreads", "0"));
+        asyncReadThreads = Integer.valueOf(p.getProperty(prefix + "asyncReadThreads", "0"));
+        asyncReadQueueSize = Integer.valueOf(p.getProperty(prefix + "asyncReadQueueSize", "1000"));
+        asyncReadPolicy = AsyncReadPolicy.valueOf(p.getProperty(prefix + "asyncReadPolicy", "CALLER_RUNS"));
+        types = new ArrayList<Class<?>>();
+        for (String t : p.getProperty(prefix + "types", "").split(",")) {
+            if (t.trim().isEmpty()) continue;
+            try {
+                types.add(Class.forName(t.trim()));
+            } catch (ClassNotFoundException e) {
+                throw new RuntimeException("Could not add type " + t, e);
+            }
+        }
         globalCacheValidTime = Integer.valueOf(p.getProperty(prefix + "globalCacheValidTime", "10000"));
         mode = MongoDbMode.valueOf(p.getProperty(prefix + "mode", "SINGLE"));
         housekeepingTimeout = Integer.valueOf(p.getProperty(prefix + "housekeepingTimeout", "5000"));
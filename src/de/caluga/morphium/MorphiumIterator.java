@@ -0,0 +1,42 @@
+package de.caluga.morphium;
+
+import java.util.Iterator;
+
+/**
+ * Iterates over the results of a query, reading them from mongo in batches and unmarshalling one by one - only one
+ * batch is kept in memory, whatever the size of the result. Results are not cached.
+ * <p/>
+ * usage:
+ * <code>
+ * MorphiumIterator<UncachedObject> it = q.asIterable(100);
+ * try {
+ * for (UncachedObject o : it) {
+ * ...
+ * }
+ * } finally {
+ * it.close();
+ * }
+ * </code>
+ * The cursor is closed when the last element was read, close() is only necessary if the iteration is stopped early.
+ * The iterator can only be used once.
+ */
+public interface MorphiumIterator<T> extends Iterator<T>, Iterable<T> {
+    /**
+     * number of documents read from mongo at once
+     *
+     * @param batchSize - 0 for the default of mongo
+     */
+    public void setBatchSize(int batchSize);
+
+    public int getBatchSize();
+
+    /**
+     * @return number of elements returned by next() so far
+     */
+    public int getCount();
+
+    /**
+     * close the cursor, no more elements are returned. Can be called several times
+     */
+    public void close();
+}
@@ -0,0 +1,97 @@
+package de.caluga.morphium;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * MorphiumIterator based on a DBCursor, created by Query.asIterable()
+ */
+public class MorphiumIteratorImpl<T> implements MorphiumIterator<T> {
+    private final QueryImpl<T> query;
+    private final DBCursor cursor;
+    private final boolean partial;
+    private final long start;
+    private int batchSize = 0;
+    private int count = 0;
+    private boolean closed = false;
+
+    /**
+     * @param partial - the cursor has a projection
+     */
+    MorphiumIteratorImpl(QueryImpl<T> query, DBCursor cursor, boolean partial) {
+        this.query = query;
+        this.cursor = cursor;
+        this.partial = partial;
+        start = System.currentTimeMillis();
+    }
+
+    @Override
+    public void setBatchSize(int batchSize) {
+        if (count > 0) {
+            throw new IllegalStateException("Iteration already started");
+        }
+        this.batchSize = batchSize;
+        cursor.batchSize(batchSize);
+    }
+
+    @Override
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        boolean ret;
+        try {
+            ret = cursor.hasNext();
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+        if (!ret) {
+            close();
+        }
+        return ret;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        DBObject o = cursor.next();
+        count++;
+        return query.unmarshallLoaded(o, partial);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove not supported - use Morphium.deleteObject()");
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        cursor.close();
+        query.getMorphium().fireProfilingReadEvent(query, System.currentTimeMillis() - start, ReadAccessType.ITERATOR);
+    }
+}
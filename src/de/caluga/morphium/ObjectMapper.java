@@ -1,5 +1,7 @@
 package de.caluga.morphium;
 
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBEncoderFactory;
 import com.mongodb.DBObject;
 import org.bson.types.ObjectId;
 
@@ -26,6 +28,34 @@ public interface ObjectMapper {
 
     public <T> T unmarshall(Class<T> cls, DBObject o);
 
+    /**
+     * decoder for query results of the type, which creates the objects directly from BSON. The DBObjects returned
+     * by the decoder still need to be passed to unmarshall()
+     *
+     * @return null, if documents of the type need to be decoded to DBObjects and unmarshalled
+     */
+    public DBDecoderFactory getDecoderFactory(Class<?> cls);
+
+    /**
+     * like marshall(), but the fields of the entity are not copied: the returned object contains only the _id (if
+     * set), the encoder of getEncoderFactory() writes the entity directly to BSON when the object is sent to mongo.
+     *
+     * @return null, if the entity cannot be encoded directly - use marshall() then
+     */
+    public DBObject wrapForEncoder(Object o);
+
+    /**
+     * @return encoder for objects returned by wrapForEncoder(), all other objects are encoded as usual
+     */
+    public DBEncoderFactory getEncoderFactory();
+
+    /**
+     * creates the EntityModels of the classes now - their typeIds are only known afterwards. Classes used by
+     * Morphium are registered on first use, subclasses with a typeId read via their base class have to be registered
+     * before (see MorphiumConfig.addType())
+     */
+    public void registerType(Class<?>... types);
+
     public ObjectId getId(Object o);
 
     /**
@@ -48,6 +78,11 @@ public interface ObjectMapper {
 
     public Field getField(Class cls, String fld);
 
+    /**
+     * @return metadata of the class, built once: properties, their names and kinds
+     */
+    public EntityModel getEntityModel(Class<?> cls);
+
     public String getFieldName(Class cls, String field);
 
     public boolean isEntity(Object o);
@@ -2,18 +2,24 @@ package de.caluga.morphium;
 
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBEncoderFactory;
 import com.mongodb.DBObject;
 import com.mongodb.DBRef;
 import de.caluga.morphium.annotations.*;
+import net.sf.cglib.proxy.Enhancer;
+import net.sf.cglib.proxy.Factory;
 import org.apache.log4j.Logger;
 import org.bson.types.ObjectId;
 
+import java.io.Serializable;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * User: Stpehan Bösebeck
@@ -26,6 +32,14 @@ public class ObjectMapperImpl implements ObjectMapper {
     private static volatile Map<Class<?>, List<Field>> fieldCache = new Hashtable<Class<?>, List<Field>>();
     public volatile Morphium morphium;
     private volatile Hashtable<Class<?>, NameProvider> nameProviders;
+    private final ConcurrentHashMap<Class<?>, EntityModel> models = new ConcurrentHashMap<Class<?>, EntityModel>();
+    private final DBEncoderFactory encoderFactory = EntityEncoder.factory(this);
+    /**
+     * max number of class names cached by getClassForTypeName()
+     */
+    private static final int MAX_CACHED_CLASSES = 10000;
+    private final ConcurrentHashMap<String, Class<?>> classByName = new ConcurrentHashMap<String, Class<?>>();
+    private final ConcurrentHashMap<String, Class<?>> classByTypeId = new ConcurrentHashMap<String, Class<?>>();
 
     public Morphium getMorphium() {
         return morphium;
@@ -158,143 +172,132 @@ public class ObjectMapperImpl implements ObjectMapper {
             throw new IllegalArgumentException("No real class?");
         }
         o = getRealObject(o);
-        List<String> flds = getFields(cls);
-        if (flds == null) {
-            throw new IllegalArgumentException("Fields not found? " + cls.getName());
-        }
-        Entity e = morphium.getAnnotationFromHierarchy(o.getClass(), Entity.class); //o.getClass().getAnnotation(Entity.class);
-        Embedded emb = morphium.getAnnotationFromHierarchy(o.getClass(), Embedded.class); //o.getClass().getAnnotation(Embedded.class);
+        EntityModel model = getEntityModel(cls);
 
-        if (e != null && e.polymorph()) {
-            dbo.put("class_name", cls.getName());
+        if (model.isPolymorph()) {
+            dbo.put("class_name", model.getTypeName());
         }
 
-        if (emb != null && emb.polymorph()) {
-            dbo.put("class_name", cls.getName());
+        //static fields are not stored
+        for (EntityModel.Property p : model.getStoredProperties()) {
+            Object v = marshallValue(p, p.getAccessor().get(o));
+            if (v == null && !isNullStored(o, p)) {
+                //Do not put null-Values into dbo => not storing null-Values to db
+                continue;
+            }
+            dbo.put(p.getStoredName(), v);
+
         }
+        return dbo;
+    }
 
-        for (String f : flds) {
-            String fName = f;
-            try {
-                Field fld = getField(cls, f);
-                if (fld == null) {
-                    log.error("Field not found");
-                    continue;
-                }
-                //do not store static fields!
-                if (Modifier.isStatic(fld.getModifiers())) {
-                    continue;
-                }
-                if (fld.isAnnotationPresent(Id.class)) {
-                    fName = "_id";
-                }
-                Object v = null;
-                Object value = fld.get(o);
-                if (fld.isAnnotationPresent(Reference.class)) {
-                    Reference r = fld.getAnnotation(Reference.class);
-                    //reference handling...
-                    //field should point to a certain type - store ObjectID only
-                    if (value == null) {
-                        //no reference to be stored...
-                        v = null;
-                    } else {
-                        if (fld.getType().isAssignableFrom(List.class)) {
-                            //list of references....
-                            BasicDBList lst = new BasicDBList();
-                            for (Object rec : ((List) value)) {
-                                if (rec != null) {
-                                    ObjectId id = getId(rec);
-                                    if (id == null) {
-                                        if (r.automaticStore()) {
-                                            morphium.storeNoCache(rec);
-                                            id = getId(rec);
-                                        } else {
-                                            throw new IllegalArgumentException("Cannot store reference to unstored entity if automaticStore in @Reference is set to false!");
-                                        }
-                                    }
-                                    DBRef ref = new DBRef(morphium.getDatabase(), getRealClass(rec.getClass()).getName(), id);
-                                    lst.add(ref);
-                                } else {
-                                    lst.add(null);
-                                }
-                            }
-                            v = lst;
-                        } else if (fld.getType().isAssignableFrom(Map.class)) {
-                            throw new RuntimeException("Cannot store references in Maps!");
-                        } else {
+    /**
+     * @return true, if the property is stored in mongo if it is null
+     * @throws IllegalArgumentException if it must not be null
+     */
+    boolean isNullStored(Object o, EntityModel.Property p) {
+        if (p.isNotNull()) {
+            throw new IllegalArgumentException("Value is null - but must not (NotNull-Annotation to" + o.getClass().getSimpleName() + ")! Field: " + p.getStoredName());
+        }
+        return p.isUseIfNull();
+    }
 
-                            if (getId(value) == null) {
-                                //not stored yet
+    /**
+     * @param value - value of the property in the object
+     * @return the value as stored in mongo - references are stored (if necessary) and replaced by their ids
+     */
+    Object marshallValue(EntityModel.Property p, Object value) {
+        Field fld = p.getField();
+        Object v = null;
+        if (p.isReference()) {
+            Reference r = p.getReference();
+            //reference handling...
+            //field should point to a certain type - store ObjectID only
+            if (value == null) {
+                //no reference to be stored...
+                v = null;
+            } else {
+                if (fld.getType().isAssignableFrom(List.class)) {
+                    //list of references....
+                    BasicDBList lst = new BasicDBList();
+                    for (Object rec : ((List) value)) {
+                        if (rec != null) {
+                            ObjectId id = getId(rec);
+                            if (id == null) {
                                 if (r.automaticStore()) {
-                                    //TODO: this could cause an endless loop!
-                                    if (morphium == null) {
-                                        log.fatal("Could not store - no Morphium set!");
-                                    } else {
-                                        morphium.storeNoCache(value);
-                                    }
+                                    morphium.storeNoCache(rec);
+                                    id = getId(rec);
                                 } else {
-                                    throw new IllegalArgumentException("Reference to be stored, that is null!");
+                                    throw new IllegalArgumentException("Cannot store reference to unstored entity if automaticStore in @Reference is set to false!");
                                 }
-
-
                             }
-                            //DBRef ref = new DBRef(morphium.getDatabase(), value.getClass().getName(), getId(value));
-                            v = getId(value);
+                            DBRef ref = new DBRef(morphium.getDatabase(), getRealClass(rec.getClass()).getName(), id);
+                            lst.add(ref);
+                        } else {
+                            lst.add(null);
                         }
                     }
+                    v = lst;
+                } else if (fld.getType().isAssignableFrom(Map.class)) {
+                    throw new RuntimeException("Cannot store references in Maps!");
                 } else {
 
-                    //check, what type field has
-
-                    //Store Entities recursively
-                    //TODO: Fix recursion - this could cause a loop!
-                    if (morphium.isAnnotationPresentInHierarchy(fld.getType(), Entity.class)) {
-                        if (value != null) {
-                            DBObject obj = marshall(value);
-                            obj.removeField("_id");  //Do not store ID embedded!
-                            v = obj;
-                        }
-                    } else if (morphium.isAnnotationPresentInHierarchy(fld.getType(), Embedded.class)) {
-                        if (value != null) {
-                            v = marshall(value);
-                        }
-                    } else {
-                        v = value;
-                        if (v != null) {
-                            if (v instanceof Map) {
-                                //create MongoDBObject-Map
-                                v = createDBMap((Map) v);
-                            } else if (v instanceof List) {
-                                v = createDBList((List) v);
-                            } else if (v instanceof Iterable) {
-                                ArrayList lst = new ArrayList();
-                                for (Object i : (Iterable) v) {
-                                    lst.add(i);
-                                }
-                                v = createDBList(lst);
-                            } else if (v.getClass().isEnum()) {
-                                v = ((Enum) v).name();
+                    if (getId(value) == null) {
+                        //not stored yet
+                        if (r.automaticStore()) {
+                            //TODO: this could cause an endless loop!
+                            if (morphium == null) {
+                                log.fatal("Could not store - no Morphium set!");
+                            } else {
+                                morphium.storeNoCache(value);
                             }
+                        } else {
+                            throw new IllegalArgumentException("Reference to be stored, that is null!");
                         }
+
+
                     }
+                    //DBRef ref = new DBRef(morphium.getDatabase(), value.getClass().getName(), getId(value));
+                    v = getId(value);
                 }
-                if (v == null) {
-                    if (fld.isAnnotationPresent(NotNull.class)) {
-                        throw new IllegalArgumentException("Value is null - but must not (NotNull-Annotation to" + o.getClass().getSimpleName() + ")! Field: " + fName);
-                    }
-                    if (!fld.isAnnotationPresent(UseIfnull.class)) {
-                        //Do not put null-Values into dbo => not storing null-Values to db
-                        continue;
+            }
+        } else {
+
+            //check, what type field has
+
+            //Store Entities recursively
+            //TODO: Fix recursion - this could cause a loop!
+            if (p.getKind() == EntityModel.Kind.ENTITY) {
+                if (value != null) {
+                    DBObject obj = marshall(value);
+                    obj.removeField("_id");  //Do not store ID embedded!
+                    v = obj;
+                }
+            } else if (p.getKind() == EntityModel.Kind.EMBEDDED) {
+                if (value != null) {
+                    v = marshall(value);
+                }
+            } else {
+                v = value;
+                if (v != null) {
+                    if (v instanceof Map) {
+                        //create MongoDBObject-Map
+                        v = createDBMap((Map) v);
+                    } else if (v instanceof List) {
+                        v = createDBList((List) v);
+                    } else if (v instanceof Iterable) {
+                        ArrayList lst = new ArrayList();
+                        for (Object i : (Iterable) v) {
+                            lst.add(i);
+                        }
+                        v = createDBList(lst);
+                    } else if (v.getClass().isEnum()) {
+                        v = ((Enum) v).name();
                     }
                 }
-                dbo.put(fName, v);
-
-            } catch (IllegalAccessException exc) {
-                log.fatal("Illegal Access to field " + f);
             }
-
         }
-        return dbo;
+        return v;
     }
 
     private BasicDBList createDBList(List v) {
@@ -304,7 +307,7 @@ public class ObjectMapperImpl implements ObjectMapper {
                 if (morphium.isAnnotationPresentInHierarchy(lo.getClass(), Entity.class) ||
                         morphium.isAnnotationPresentInHierarchy(lo.getClass(), Embedded.class)) {
                     DBObject marshall = marshall(lo);
-                    marshall.put("class_name", lo.getClass().getName());
+                    marshall.put("class_name", getEntityModel(lo.getClass()).getTypeName());
                     lst.add(marshall);
                 } else if (lo instanceof List) {
                     lst.add(createDBList((List) lo));
@@ -342,7 +345,7 @@ public class ObjectMapperImpl implements ObjectMapper {
             if (mval != null) {
                 if (morphium.isAnnotationPresentInHierarchy(mval.getClass(), Entity.class) || morphium.isAnnotationPresentInHierarchy(mval.getClass(), Embedded.class)) {
                     DBObject obj = marshall(mval);
-                    obj.put("class_name", mval.getClass().getName());
+                    obj.put("class_name", getEntityModel(mval.getClass()).getTypeName());
                     mval = obj;
                 } else if (mval instanceof Map) {
                     mval = createDBMap((Map) mval);
@@ -362,6 +365,14 @@ public class ObjectMapperImpl implements ObjectMapper {
 
     @Override
     public <T> T unmarshall(Class<T> cls, DBObject o) {
+        if (o instanceof EntityDecoder.DecodedObject && ((EntityDecoder.DecodedObject) o).getEntity() != null) {
+            //already decoded
+            Object ret = ((EntityDecoder.DecodedObject) o).getEntity();
+            if (!getRealClass(cls).isInstance(ret)) {
+                throw new IllegalArgumentException("Document was decoded as " + ret.getClass().getName() + " - not " + cls.getName());
+            }
+            return (T) ret;
+        }
         try {
             if (o.get("class_name") != null || o.get("className") != null) {
                 if (log.isDebugEnabled()) {
@@ -372,7 +383,7 @@ public class ObjectMapperImpl implements ObjectMapper {
                     if (cN == null) {
                         cN = (String) o.get("className");
                     }
-                    cls = (Class<T>) Class.forName(cN);
+                    cls = (Class<T>) getClassForTypeName(cN);
                 } catch (ClassNotFoundException e) {
                     throw new RuntimeException(e);
                 }
@@ -388,102 +399,29 @@ public class ObjectMapperImpl implements ObjectMapper {
 
             T ret = cls.newInstance();
 
-            List<String> flds = getFields(cls);
-
-            for (String f : flds) {
-                Field fld = getField(cls, f);
-                if (Modifier.isStatic(fld.getModifiers())) {
-                    //skip static fields
-                    continue;
-                }
-
-                Object value = null;
-                if (!fld.getType().isAssignableFrom(Map.class) && !fld.getType().isAssignableFrom(List.class) && fld.isAnnotationPresent(Reference.class)) {
-                    //A reference - only id stored
-                    Reference reference = fld.getAnnotation(Reference.class);
-                    if (morphium == null) {
-                        log.fatal("Morphium not set - could not de-reference!");
-                    } else {
-                        ObjectId id = null;
-                        if (o.get(f) instanceof ObjectId) {
-                            id = (ObjectId) o.get(f);
-                        } else {
-                            DBRef ref = (DBRef) o.get(f);
-                            if (ref != null) {
-                                id = (ObjectId) ref.getId();
-                                if (!ref.getRef().equals(fld.getType().getName())) {
-                                    log.warn("Reference to different object?! - continuing anyway");
-
-                                }
-                            }
-                        }
-                        if (id != null) {
-                            if (reference.lazyLoading()) {
-                                List<String> lst = getFields(fld.getType(), Id.class);
-                                if (lst.size() == 0)
-                                    throw new IllegalArgumentException("Referenced object does not have an ID? Is it an Entity?");
-                                value = morphium.createLazyLoadedEntity(fld.getType(), id);
-                            } else {
-//                                Query q = morphium.createQueryFor(fld.getType());
-//                                q.f("_id").eq(id);
-                                value = morphium.findById(fld.getType(), id);
-                            }
-                        } else {
-                            value = null;
-                        }
-
-                    }
-                } else if (fld.isAnnotationPresent(Id.class)) {
-                    value = (ObjectId) o.get("_id");
-                } else if (morphium.isAnnotationPresentInHierarchy(fld.getType(), Entity.class) || morphium.isAnnotationPresentInHierarchy(fld.getType(), Embedded.class)) {
-                    //entity! embedded
-                    if (o.get(f) != null) {
-                        value = unmarshall(fld.getType(), (DBObject) o.get(f));
-                    } else {
-                        value = null;
+            EntityModel model = getEntityModel(cls);
+            Map<EntityModel.Property, Object> pending = null;
+            //static fields are skipped
+            for (EntityModel.Property p : model.getStoredProperties()) {
+                if (p.isLazy() && o.get(p.getName()) != null) {
+                    //unmarshalled on first access
+                    if (pending == null) {
+                        pending = new HashMap<EntityModel.Property, Object>();
                     }
-                } else if (fld.getType().isAssignableFrom(Map.class)) {
-                    BasicDBObject map = (BasicDBObject) o.get(f);
-                    value = createMap(map);
-                } else if (fld.getType().isAssignableFrom(List.class) || fld.getType().isArray()) {
-                    BasicDBList l = (BasicDBList) o.get(f);
-                    List lst = new ArrayList();
-                    if (l != null) {
-                        fillList(fld, l, lst);
-                        if (fld.getType().isArray()) {
-                            Object arr = Array.newInstance(fld.getType().getComponentType(), lst.size());
-                            for (int i = 0; i < lst.size(); i++) {
-                                Array.set(arr, i, lst.get(i));
-                            }
-                            value = arr;
-                        } else {
-                            value = lst;
-                        }
-                    } else {
-                        value = l;
-                    }
-                } else if (fld.getType().isEnum()) {
-                    if (o.get(f) != null) {
-                        value = Enum.valueOf((Class<? extends Enum>) fld.getType(), (String) o.get(f));
-                    }
-                } else {
-                    value = o.get(f);
+                    pending.put(p, o);
+                    continue;
                 }
-                setValue(ret, value, f);
+                setValue(ret, unmarshallValue(p, o), p);
             }
 
-            if (morphium.isAnnotationPresentInHierarchy(cls, Entity.class)) {
-                flds = getFields(cls, Id.class);
-                if (flds.isEmpty()) {
+            if (model.isEntity()) {
+                if (model.getIdProperty() == null) {
                     throw new RuntimeException("Error - class does not have an ID field!");
                 }
 
-                getField(cls, flds.get(0)).set(ret, o.get("_id"));
+                model.getIdProperty().getAccessor().set(ret, o.get("_id"));
             }
-            if (morphium.isAnnotationPresentInHierarchy(cls, PartialUpdate.class) || cls.isInstance(PartiallyUpdateable.class)) {
-                return morphium.createPartiallyUpdateableEntity(ret);
-            }
-            return ret;
+            return complete(model, ret, pending, null);
         } catch (InstantiationException e) {
             throw new RuntimeException(e);
         } catch (IllegalAccessException e) {
@@ -494,6 +432,133 @@ public class ObjectMapperImpl implements ObjectMapper {
 
     }
 
+    @Override
+    public DBDecoderFactory getDecoderFactory(Class<?> cls) {
+        EntityModel model = getEntityModel(getRealClass(cls));
+        if (!model.isEntity() || !EntityDecoder.isDecodable(model)) {
+            return null;
+        }
+        return EntityDecoder.factory(this, model);
+    }
+
+    @Override
+    public DBObject wrapForEncoder(Object o) {
+        EntityModel model = getEntityModel(getRealClass(o.getClass()));
+        if (!model.isEntity() || model.getIdProperty() == null || !EntityEncoder.isEncodable(model)) {
+            return null;
+        }
+        o = getRealObject(o);
+        return new EntityEncoder.EntityObject(this, o, model.getIdProperty().getAccessor().get(o));
+    }
+
+    @Override
+    public DBEncoderFactory getEncoderFactory() {
+        return encoderFactory;
+    }
+
+    /**
+     * @return the value of the property, read from the document
+     */
+    Object unmarshallValue(EntityModel.Property p, DBObject o) {
+        String f = p.getName();
+        Field fld = p.getField();
+
+        Object value = null;
+        EntityModel.Kind kind = p.getKind();
+        if (kind == EntityModel.Kind.REFERENCE) {
+            //A reference - only id stored
+            Reference reference = p.getReference();
+            if (morphium == null) {
+                log.fatal("Morphium not set - could not de-reference!");
+            } else {
+                ObjectId id = null;
+                if (o.get(f) instanceof ObjectId) {
+                    id = (ObjectId) o.get(f);
+                } else {
+                    DBRef ref = (DBRef) o.get(f);
+                    if (ref != null) {
+                        id = (ObjectId) ref.getId();
+                        if (!ref.getRef().equals(fld.getType().getName())) {
+                            log.warn("Reference to different object?! - continuing anyway");
+
+                        }
+                    }
+                }
+                if (id != null) {
+                    if (reference.lazyLoading()) {
+                        if (getEntityModel(fld.getType()).getIdProperty() == null)
+                            throw new IllegalArgumentException("Referenced object does not have an ID? Is it an Entity?");
+                        value = morphium.createLazyLoadedEntity(fld.getType(), id);
+                    } else {
+//                                Query q = morphium.createQueryFor(fld.getType());
+//                                q.f("_id").eq(id);
+                        value = morphium.findById(fld.getType(), id);
+                    }
+                } else {
+                    value = null;
+                }
+
+            }
+        } else if (kind == EntityModel.Kind.ID) {
+            value = (ObjectId) o.get("_id");
+        } else if (kind == EntityModel.Kind.ENTITY || kind == EntityModel.Kind.EMBEDDED) {
+            //entity! embedded
+            if (o.get(f) != null) {
+                value = unmarshall(fld.getType(), (DBObject) o.get(f));
+            } else {
+                value = null;
+            }
+        } else if (kind == EntityModel.Kind.MAP) {
+            BasicDBObject map = (BasicDBObject) o.get(f);
+            value = createMap(map);
+        } else if (kind == EntityModel.Kind.LIST) {
+            BasicDBList l = (BasicDBList) o.get(f);
+            List lst = new ArrayList();
+            if (l != null) {
+                fillList(fld, l, lst);
+                if (fld.getType().isArray()) {
+                    Object arr = Array.newInstance(fld.getType().getComponentType(), lst.size());
+                    for (int i = 0; i < lst.size(); i++) {
+                        Array.set(arr, i, lst.get(i));
+                    }
+                    value = arr;
+                } else {
+                    value = lst;
+                }
+            } else {
+                value = l;
+            }
+        } else if (kind == EntityModel.Kind.ENUM) {
+            if (o.get(f) != null) {
+                value = Enum.valueOf((Class<? extends Enum>) fld.getType(), (String) o.get(f));
+            }
+        } else {
+            value = o.get(f);
+        }
+        return value;
+    }
+
+    /**
+     * last step of unmarshalling: creates the proxy for partial updates or lazy fields, if necessary
+     *
+     * @param pending    - raw values of @Lazy properties, see LazyFieldsProxy. May be null
+     * @param collection - collection read from, for de-referencing lazy values. May be null
+     */
+    <T> T complete(EntityModel model, T ret, Map<EntityModel.Property, Object> pending, DBCollection collection) {
+        Class<?> cls = model.getType();
+        if (morphium.isAnnotationPresentInHierarchy(cls, PartialUpdate.class) || cls.isInstance(PartiallyUpdateable.class)) {
+            if (pending != null) {
+                //no lazy fields for partial updates - there can be only one proxy
+                new LazyFieldsProxy<T>(this, model, ret, pending, collection).__getDeref();
+            }
+            return morphium.createPartiallyUpdateableEntity(ret);
+        }
+        if (pending != null && !pending.isEmpty()) {
+            return (T) Enhancer.create(cls, new Class[]{Serializable.class}, new LazyFieldsProxy<T>(this, model, ret, pending, collection));
+        }
+        return ret;
+    }
+
     private Object createMap(BasicDBObject map) {
         Object value;
         if (map != null) {
@@ -508,7 +573,7 @@ public class ObjectMapperImpl implements ObjectMapper {
                             cn = (String) ((BasicDBObject) val).get("className");
                         }
                         try {
-                            Class ecls = Class.forName(cn);
+                            Class ecls = getClassForTypeName(cn);
                             map.put(n, unmarshall(ecls, (DBObject) map.get(n)));
                         } catch (ClassNotFoundException e) {
                             throw new RuntimeException(e);
@@ -540,7 +605,7 @@ public class ObjectMapperImpl implements ObjectMapper {
                         cn = (String) ((BasicDBObject) li).get("className");
                     }
                     try {
-                        Class ecls = Class.forName(cn);
+                        Class ecls = getClassForTypeName(cn);
                         mapValue.add(unmarshall(ecls, (DBObject) li));
                     } catch (ClassNotFoundException e) {
                         throw new RuntimeException(e);
@@ -567,7 +632,7 @@ public class ObjectMapperImpl implements ObjectMapper {
                         cn = (String) ((BasicDBObject) val).get("className");
                     }
                     try {
-                        Class ecls = Class.forName(cn);
+                        Class ecls = getClassForTypeName(cn);
                         toFillIn.add(unmarshall(ecls, (DBObject) val));
                     } catch (ClassNotFoundException e) {
                         throw new RuntimeException(e);
@@ -588,17 +653,17 @@ public class ObjectMapperImpl implements ObjectMapper {
                 try {
                     DBRef ref = (DBRef) val;
                     ObjectId id = (ObjectId) ref.getId();
-                    Class clz = Class.forName(ref.getRef());
-                    List<String> idFlds = getFields(clz, Id.class);
+                    Class clz = getClassForTypeName(ref.getRef());
+                    EntityModel.Property idProperty = getEntityModel(clz).getIdProperty();
                     Reference reference = forField != null ? forField.getAnnotation(Reference.class) : null;
 
                     if (reference != null && reference.lazyLoading()) {
-                        if (idFlds.size() == 0)
+                        if (idProperty == null)
                             throw new IllegalArgumentException("Referenced object does not have an ID? Is it an Entity?");
                         toFillIn.add(morphium.createLazyLoadedEntity(clz, id));
                     } else {
                         Query q = morphium.createQueryFor(clz);
-                        q = q.f(idFlds.get(0)).eq(id);
+                        q = q.f(idProperty.getName()).eq(id);
                         toFillIn.add(q.get());
                     }
                 } catch (ClassNotFoundException e) {
@@ -616,30 +681,26 @@ public class ObjectMapperImpl implements ObjectMapper {
         if (o == null) {
             throw new IllegalArgumentException("Object cannot be null");
         }
-        Class<?> cls = getRealClass(o.getClass());
-        List<String> flds = getFields(cls, Id.class);
-        if (flds == null || flds.isEmpty()) {
+        EntityModel.Property p = getEntityModel(o.getClass()).getIdProperty();
+        if (p == null) {
             throw new IllegalArgumentException("Object has no id defined: " + o.getClass().getSimpleName());
         }
-        Field f = getField(cls, flds.get(0)); //first Id
-        if (f == null) {
-            throw new IllegalArgumentException("Object ID field not found " + o.getClass().getSimpleName());
+        if (!(p.getType().equals(ObjectId.class))) {
+            throw new IllegalArgumentException("ID sould be of type ObjectId");
         }
-        try {
-            if (!(f.getType().equals(ObjectId.class))) {
-                throw new IllegalArgumentException("ID sould be of type ObjectId");
-            }
+        if (o instanceof Factory && ((Factory) o).getCallback(0) instanceof LazyFieldsProxy) {
+            //the id is never lazy - no need to unmarshall the other fields
+            o = ((LazyFieldsProxy) ((Factory) o).getCallback(0)).getReference();
+        } else {
             o = getRealObject(o);
-            if (o != null) {
-                return (ObjectId) f.get(o);
-            } else {
-                log.warn("Illegal reference?");
-            }
-
-            return null;
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
         }
+        if (o != null) {
+            return (ObjectId) p.getAccessor().get(o);
+        } else {
+            log.warn("Illegal reference?");
+        }
+
+        return null;
     }
 
     /**
@@ -690,58 +751,88 @@ public class ObjectMapperImpl implements ObjectMapper {
      * @return
      */
     public List<String> getFields(Class cls, Class<? extends Annotation>... annotations) {
-        List<String> ret = new Vector<String>();
-        Class sc = cls;
-        sc = getRealClass(sc);
-        Entity entity = morphium.getAnnotationFromHierarchy(sc, Entity.class); //(Entity) sc.getAnnotation(Entity.class);
-        Embedded embedded = morphium.getAnnotationFromHierarchy(sc, Embedded.class);//(Embedded) sc.getAnnotation(Embedded.class);
-        if (embedded != null && entity != null) {
-            log.warn("Class " + cls.getName() + " does have both @Entity and @Embedded Annotations - not allowed! Assuming @Entity is right");
-        }
-
-        if (embedded == null && entity == null) {
+        EntityModel model = getEntityModel(cls);
+        if (!model.isEntity() && !model.isEmbedded()) {
             throw new IllegalArgumentException("This class " + cls.getName() + " does not have @Entity or @Embedded set, not even in hierachy - illegal!");
         }
-        boolean tcc = entity == null ? embedded.translateCamelCase() : entity.translateCamelCase();
-        //getting class hierachy
-        List<Field> fld = getAllFields(cls);
-        for (Field f : fld) {
-            if (annotations.length > 0) {
-                boolean found = false;
-                for (Class<? extends Annotation> a : annotations) {
-                    if (f.isAnnotationPresent(a)) {
-                        found = true;
-                        break;
+        if (annotations.length == 0) {
+            return model.getFieldNames();
+        }
+        if (annotations.length == 1) {
+            List<EntityModel.Property> props = model.getProperties(annotations[0]);
+            List<String> ret = new ArrayList<String>(props.size());
+            for (EntityModel.Property p : props) {
+                ret.add(p.getName());
+            }
+            return ret;
+        }
+        List<String> ret = new ArrayList<String>();
+        for (EntityModel.Property p : model.getProperties()) {
+            for (Class<? extends Annotation> a : annotations) {
+                if (p.isAnnotationPresent(a)) {
+                    ret.add(p.getName());
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public EntityModel getEntityModel(Class<?> clz) {
+        EntityModel ret = models.get(clz);
+        if (ret == null) {
+            Class<?> cls = getRealClass(clz);
+            ret = models.get(cls);
+            if (ret == null) {
+                ret = new EntityModel(cls, getAllFields(cls), this, morphium);
+                if (ret.isEntity() && ret.isEmbedded()) {
+                    log.warn("Class " + cls.getName() + " does have both @Entity and @Embedded Annotations - not allowed! Assuming @Entity is right");
+                }
+                if (ret.getTypeId() != null) {
+                    Class<?> other = classByTypeId.putIfAbsent(ret.getTypeId(), cls);
+                    if (other != null && other != cls) {
+                        throw new IllegalArgumentException("typeId " + ret.getTypeId() + " is used by " + other.getName() + " and " + cls.getName());
                     }
                 }
-                if (!found) {
-                    //no annotation found
-                    continue;
+                EntityModel existing = models.putIfAbsent(cls, ret);
+                if (existing != null) {
+                    ret = existing;
                 }
             }
-            if (f.isAnnotationPresent(Reference.class) && !".".equals(f.getAnnotation(Reference.class).fieldName())) {
-                ret.add(f.getAnnotation(Reference.class).fieldName());
-                continue;
-            }
-            if (f.isAnnotationPresent(Property.class) && !".".equals(f.getAnnotation(Property.class).fieldName())) {
-                ret.add(f.getAnnotation(Property.class).fieldName());
-                continue;
-            }
-//            if (f.isAnnotationPresent(Id.class)) {
-//                ret.add(f.getName());
-//                continue;
-//            }
-            if (f.isAnnotationPresent(Transient.class)) {
-                continue;
+            if (clz != cls) {
+                models.putIfAbsent(clz, ret);
             }
+        }
+        return ret;
+    }
 
-            if (tcc) {
-                ret.add(convertCamelCase(f.getName()));
-            } else {
-                ret.add(f.getName());
-            }
+    @Override
+    public void registerType(Class<?>... types) {
+        for (Class<?> cls : types) {
+            getEntityModel(cls);
         }
+    }
 
+    /**
+     * resolves a class_name stored in a document (or the collection of a DBRef): a typeId of a registered class or a
+     * class name. Classes found by name are cached.
+     */
+    public Class<?> getClassForTypeName(String name) throws ClassNotFoundException {
+        Class<?> ret = classByTypeId.get(name);
+        if (ret == null) {
+            ret = classByName.get(name);
+        }
+        if (ret == null) {
+            try {
+                ret = Class.forName(name);
+            } catch (ClassNotFoundException e) {
+                throw new ClassNotFoundException("Unknown type " + name + " - if it is a typeId, its class needs to be registered (see MorphiumConfig.addType())", e);
+            }
+            if (classByName.size() < MAX_CACHED_CLASSES) {
+                classByName.put(name, ret);
+            }
+        }
         return ret;
     }
 
@@ -750,7 +841,7 @@ public class ObjectMapperImpl implements ObjectMapper {
         if (sc.getName().contains("$$EnhancerByCGLIB$$")) {
 
             try {
-                sc = (Class<T>) Class.forName(sc.getName().substring(0, sc.getName().indexOf("$$")));
+                sc = (Class<T>) getClassForTypeName(sc.getName().substring(0, sc.getName().indexOf("$$")));
             } catch (Exception e) {
                 //TODO: Implement Handling
                 throw new RuntimeException(e);
@@ -761,43 +852,14 @@ public class ObjectMapperImpl implements ObjectMapper {
 
     @Override
     public String getFieldName(Class clz, String field) {
-        Class cls = getRealClass(clz);
         if (field.contains(".")) {
             //searching for a sub-element?
             //no check possible
             return field;
         }
-        Field f = getField(cls, field);
-        if (f == null) throw new RuntimeException("Field not found " + field + " in cls: " + clz.getName());
-        if (f.isAnnotationPresent(Property.class)) {
-            Property p = f.getAnnotation(Property.class);
-            if (p.fieldName() != null && !p.fieldName().equals(".")) {
-                return p.fieldName();
-            }
-        }
-
-        if (f.isAnnotationPresent(Reference.class)) {
-            Reference p = f.getAnnotation(Reference.class);
-            if (p.fieldName() != null && !p.fieldName().equals(".")) {
-                return p.fieldName();
-            }
-        }
-        if (f.isAnnotationPresent(Id.class)) {
-            return "_id";
-        }
-
-
-        String fieldName = f.getName();
-        Entity ent = morphium.getAnnotationFromHierarchy(cls, Entity.class); //(Entity) cls.getAnnotation(Entity.class);
-        Embedded emb = morphium.getAnnotationFromHierarchy(cls, Embedded.class);//(Embedded) cls.getAnnotation(Embedded.class);
-        if (ent != null && ent.translateCamelCase()) {
-            fieldName = convertCamelCase(fieldName);
-        } else if (emb != null && emb.translateCamelCase()) {
-            fieldName = convertCamelCase(fieldName);
-        }
-
-        return fieldName;
-
+        EntityModel.Property p = getEntityModel(clz).getProperty(field);
+        if (p == null) throw new RuntimeException("Field not found " + field + " in cls: " + clz.getName());
+        return p.getMongoName();
     }
 
     @Override
@@ -810,50 +872,8 @@ public class ObjectMapperImpl implements ObjectMapper {
      * @return field, if found, null else
      */
     public Field getField(Class clz, String fld) {
-        Class cls = getRealClass(clz);
-        List<Field> flds = getAllFields(cls);
-        for (Field f : flds) {
-            if (f.isAnnotationPresent(Property.class) && f.getAnnotation(Property.class).fieldName() != null && !".".equals(f.getAnnotation(Property.class).fieldName())) {
-                if (f.getAnnotation(Property.class).fieldName().equals(fld)) {
-                    f.setAccessible(true);
-                    return f;
-                }
-            }
-            if (f.isAnnotationPresent(Reference.class) && f.getAnnotation(Reference.class).fieldName() != null && !".".equals(f.getAnnotation(Reference.class).fieldName())) {
-                if (f.getAnnotation(Reference.class).fieldName().equals(fld)) {
-                    f.setAccessible(true);
-                    return f;
-                }
-            }
-            if (f.isAnnotationPresent(Aliases.class)) {
-                Aliases aliases = f.getAnnotation(Aliases.class);
-                String[] v = aliases.value();
-                for (String field : v) {
-                    if (field.equals(fld)) {
-                        f.setAccessible(true);
-                        return f;
-                    }
-                }
-            }
-            if (fld.equals("_id")) {
-                if (f.isAnnotationPresent(Id.class)) {
-                    f.setAccessible(true);
-                    return f;
-                }
-            }
-            if (f.getName().equals(fld)) {
-                f.setAccessible(true);
-                return f;
-            }
-            if (convertCamelCase(f.getName()).equals(fld)) {
-                f.setAccessible(true);
-                return f;
-            }
-
-
-        }
-
-        return null;
+        EntityModel.Property p = getEntityModel(clz).getProperty(fld);
+        return p == null ? null : p.getField();
     }
 
 
@@ -875,15 +895,10 @@ public class ObjectMapperImpl implements ObjectMapper {
         if (o == null) {
             return null;
         }
-        try {
-            Field f = getField(o.getClass(), fld);
-            if (!Modifier.isStatic(f.getModifiers())) {
-                o = getRealObject(o);
-                return f.get(o);
-            }
-        } catch (IllegalAccessException e) {
-            log.fatal("Illegal access to field " + fld + " of type " + o.getClass().getSimpleName());
-
+        EntityModel.Property p = getEntityModel(o.getClass()).getProperty(fld);
+        if (!p.isStatic()) {
+            o = getRealObject(o);
+            return p.getAccessor().get(o);
         }
         return null;
     }
@@ -893,30 +908,14 @@ public class ObjectMapperImpl implements ObjectMapper {
         if (o == null) {
             return;
         }
-        try {
-            Field f = getField(getRealClass(o.getClass()), fld);
-            if (!Modifier.isStatic(f.getModifiers())) {
-                o = getRealObject(o);
-                try {
-                    f.set(o, value);
-                } catch (Exception e) {
-                    if (value == null) {
-                        try {
-                            //try to set 0 instead
-                            f.set(o, 0);
-                        } catch (Exception e1) {
-                            //Still not working? Maybe boolean?
-                            f.set(o, false);
-                        }
-                    } else {
-                        throw new RuntimeException("could not set field " + fld + ": Field has type " + f.getType().toString() + " got type " + value.getClass().toString());
-                    }
+        setValue(o, value, getEntityModel(o.getClass()).getProperty(fld));
+    }
 
-                }
-            }
-        } catch (IllegalAccessException e) {
-            log.fatal("Illegal access to field " + fld + " of toype " + o.getClass().getSimpleName());
-            return;
+    void setValue(Object o, Object value, EntityModel.Property p) {
+        if (!p.isStatic()) {
+            o = getRealObject(o);
+            //primitives are set to 0 resp. false, if value is null
+            p.getAccessor().set(o, value);
         }
     }
 
@@ -10,5 +10,10 @@ package de.caluga.morphium;
 public interface ProfilingListener {
     public void readAccess(Query query, long time, ReadAccessType t);
 
+    /**
+     * @param o - what was written: the document(s) as created by ObjectMapper.marshall() for stores, the update or
+     *          query otherwise. Entities written directly by the encoder are marshalled for this call only - this
+     *          costs time, while profiling listeners are registered.
+     */
     public void writeAccess(Class type, Object o, long time, boolean isNew, WriteAccessType t);
 }
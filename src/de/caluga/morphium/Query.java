@@ -5,6 +5,7 @@ import org.bson.types.ObjectId;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 /**
  * User: Stpehan Bösebeck
@@ -97,6 +98,35 @@ public interface Query<T> extends Cloneable {
 
     public Query<T> sort(Enum... naturalOrder);
 
+    /**
+     * only read the given fields (java or mongo name) in asList() and get() - all other fields of the returned
+     * entities are not set. The id is always read.
+     * Partially read objects are cached separately. Do not store them, missing fields would be overwritten!
+     *
+     * @param fields
+     * @return
+     */
+    public Query<T> project(String... fields);
+
+    public Query<T> project(Enum... fields);
+
+    /**
+     * read all fields but the given ones in asList() and get() - can't be combined with project()
+     *
+     * @param fields
+     * @return
+     */
+    public Query<T> exclude(String... fields);
+
+    public Query<T> exclude(Enum... fields);
+
+    /**
+     * the fields to be read, as sent to mongo
+     *
+     * @return null, if all fields are read
+     */
+    public DBObject getProjection();
+
     /**
      * set an order - Key: FieldName (java or Mongo-Name), Value: Integer: -1 reverse, 1 standard
      * deprectaed, use sort instead (more like the maongodb-commands)... used for backward compatibility.
@@ -124,6 +154,13 @@ public interface Query<T> extends Cloneable {
      */
     public long countAll();  //not taking limit and skip into account!
 
+    /**
+     * countAll() executed in background, see MorphiumConfig.getAsyncReadThreads(). The query may be changed afterwards
+     *
+     * @return
+     */
+    public Future<Long> countAllAsync();
+
     /**
      * needed for creation of the query representation tree
      *
@@ -152,6 +189,31 @@ public interface Query<T> extends Cloneable {
      */
     public List<T> asList();
 
+    /**
+     * asList() executed in background, see MorphiumConfig.getAsyncReadThreads() - results are cached as usual.
+     * The query may be changed afterwards
+     *
+     * @return
+     */
+    public Future<List<T>> asListAsync();
+
+    /**
+     * iterate over the result without reading it into memory completely - not cached.
+     * Same as asIterable(0)
+     *
+     * @return
+     */
+    public MorphiumIterator<T> asIterable();
+
+    /**
+     * iterate over the result, reading batchSize documents from mongo at once - not cached.
+     * Close the iterator if the iteration is stopped before the end
+     *
+     * @param batchSize - 0 for the default of mongo
+     * @return
+     */
+    public MorphiumIterator<T> asIterable(int batchSize);
+
 
     /**
      * get only 1 result (first one in result list)
@@ -160,6 +222,13 @@ public interface Query<T> extends Cloneable {
      */
     public T get();
 
+    /**
+     * get() executed in background, see MorphiumConfig.getAsyncReadThreads(). The query may be changed afterwards
+     *
+     * @return
+     */
+    public Future<T> getAsync();
+
     /**
      * returns one object that matches to id
      *
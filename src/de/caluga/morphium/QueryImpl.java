@@ -4,11 +4,15 @@ import com.mongodb.*;
 import de.caluga.morphium.annotations.*;
 import de.caluga.morphium.annotations.ReadPreference;
 import de.caluga.morphium.annotations.caching.Cache;
+import de.caluga.morphium.cache.CacheKey;
 import de.caluga.morphium.secure.Permission;
 import org.bson.types.ObjectId;
 
-import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 
 /**
  * User: Stpehan Bösebeck
@@ -17,6 +21,12 @@ import java.util.*;
  * <p/>
  */
 public class QueryImpl<T> implements Query<T>, Cloneable {
+    /**
+     * set while a thread of the decoder pool unmarshalls - queries run by it (e.g. references) must not wait for the
+     * pool again
+     */
+    private static final ThreadLocal<Boolean> decoding = new ThreadLocal<Boolean>();
+
     private String where;
     private Class<T> type;
     private ObjectMapper mapper;
@@ -27,6 +37,7 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
 
     private int limit = 0, skip = 0;
     private Map<String, Integer> order;
+    private Map<String, Integer> fieldList;
 
     private Morphium morphium;
 
@@ -92,19 +103,30 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
     }
 
     @Override
-    public List<T> complexQuery(DBObject query, Map<String, Integer> sort, int skip, int limit) {
+    public List<T> complexQuery(final DBObject query, final Map<String, Integer> sort, final int skip, final int limit) {
         if (morphium.accessDenied(type, Permission.READ)) {
             throw new RuntimeException("Access denied!");
         }
-
-        String ck = morphium.getCacheKey(query, sort, skip, limit);
-        if (morphium.isCached(type, ck)) {
-            return morphium.getFromCache(type, ck);
+        morphium.inc(StatisticKeys.READS);
+        Cache cc = morphium.getAnnotationFromHierarchy(type, Cache.class);
+        if (cc == null || !cc.readCache()) {
+            morphium.inc(StatisticKeys.NO_CACHED_READS);
+            return loadComplex(query, sort, skip, limit);
         }
+        return readThrough(morphium.getCacheKey(query, sort, skip, limit), new Callable<List<T>>() {
+            @Override
+            public List<T> call() {
+                return loadComplex(query, sort, skip, limit);
+            }
+        });
+    }
+
+    private List<T> loadComplex(DBObject query, Map<String, Integer> sort, int skip, int limit) {
         long start = System.currentTimeMillis();
         DBCollection c = morphium.getDatabase().getCollection(morphium.getConfig().getMapper().getCollectionName(type));
         setReadPreference(c);
         DBCursor cursor = c.find(query);
+        setDecoder(cursor);
         if (sort != null) {
             DBObject srt = new BasicDBObject();
             srt.putAll(sort);
@@ -125,6 +147,40 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
         return ret;
     }
 
+    /**
+     * results are decoded directly into entities, if the mapper supports it
+     */
+    private void setDecoder(DBCursor cursor) {
+        DBDecoderFactory f = mapper.getDecoderFactory(type);
+        if (f != null) {
+            cursor.setDecoderFactory(f);
+        }
+    }
+
+    /**
+     * read using the cache, counting hits and misses. Concurrent misses of the same key only load once.
+     *
+     * @param loader - must not depend on the state of this query, as it might be called later for refreshing
+     */
+    private <R> List<R> readThrough(CacheKey ck, final Callable<List<R>> loader) {
+        final Thread caller = Thread.currentThread();
+        final boolean[] missed = new boolean[1];
+        List<R> ret = morphium.getOrLoad(type, ck, new Callable<List<R>>() {
+            @Override
+            public List<R> call() throws Exception {
+                morphium.inc(StatisticKeys.CMISS);
+                if (Thread.currentThread() == caller) {
+                    missed[0] = true;
+                }
+                return loader.call();
+            }
+        });
+        if (!missed[0]) {
+            morphium.inc(StatisticKeys.CHITS);
+        }
+        return ret;
+    }
+
     @Override
     public T complexQueryOne(DBObject query) {
         return complexQueryOne(query, null, 0);
@@ -192,15 +248,15 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
             cf = f.substring(0, f.indexOf("."));
             //TODO: check field name completely => person.name, check type Person for field name
         }
-        Field field = mapper.getField(type, cf);
-        if (field == null) {
+        EntityModel.Property p = mapper.getEntityModel(type).getProperty(cf);
+        if (p == null) {
             throw new IllegalArgumentException("Unknown Field " + f);
         }
 
-        if (field.isAnnotationPresent(Id.class)) {
+        if (p.isId()) {
             f = "_id";
-        } else {
-            f = mapper.getFieldName(type, f); //handling of aliases
+        } else if (!f.contains(".")) {
+            f = p.getMongoName(); //handling of aliases
         }
         MongoField<T> fld = morphium.createMongoField(); //new MongoFieldImpl<T>();
         fld.setFieldString(f);
@@ -279,11 +335,100 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
         return sort(m);
     }
 
+    @Override
+    public Query<T> project(String... fields) {
+        return addFields(1, fields);
+    }
+
+    @Override
+    public Query<T> project(Enum... fields) {
+        return addFields(1, names(fields));
+    }
+
+    @Override
+    public Query<T> exclude(String... fields) {
+        return addFields(0, fields);
+    }
+
+    @Override
+    public Query<T> exclude(Enum... fields) {
+        return addFields(0, names(fields));
+    }
+
+    private String[] names(Enum... fields) {
+        String[] ret = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            ret[i] = fields[i].name();
+        }
+        return ret;
+    }
+
+    private Query<T> addFields(int include, String... fields) {
+        if (fieldList == null) {
+            fieldList = new LinkedHashMap<String, Integer>();
+        }
+        for (String f : fields) {
+            String fld = mapper.getFieldName(type, f);
+            if (!fld.equals("_id") && fieldList.containsValue(1 - include)) {
+                //only _id may be excluded when projecting
+                for (Map.Entry<String, Integer> e : fieldList.entrySet()) {
+                    if (!e.getKey().equals("_id") && e.getValue() != include) {
+                        throw new IllegalArgumentException("Cannot combine project() and exclude() - field " + f);
+                    }
+                }
+            }
+            fieldList.put(fld, include);
+        }
+        return this;
+    }
+
+    @Override
+    public DBObject getProjection() {
+        if (fieldList == null || fieldList.isEmpty()) {
+            return null;
+        }
+        BasicDBObject ret = new BasicDBObject();
+        ret.putAll(fieldList);
+        return ret;
+    }
+
     @Override
     public long countAll() {
+        checkReadAccess();
+        return count();
+    }
+
+    @Override
+    public Future<Long> countAllAsync() {
+        //access is checked by the calling thread
+        checkReadAccess();
+        final QueryImpl<T> q = copy();
+        return morphium.getReaderPool().submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return q.count();
+            }
+        });
+    }
+
+    private void checkReadAccess() {
         if (morphium.accessDenied(type, Permission.READ)) {
             throw new RuntimeException("Access denied!");
         }
+    }
+
+    /**
+     * @return copy of this query for background execution
+     */
+    private QueryImpl<T> copy() {
+        try {
+            return (QueryImpl<T>) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private long count() {
         morphium.inc(StatisticKeys.READS);
 
         long start = System.currentTimeMillis();
@@ -366,38 +511,83 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
 
     @Override
     public List<T> asList() {
-        if (morphium.accessDenied(type, Permission.READ)) {
-            throw new RuntimeException("Access denied!");
-        }
+        checkReadAccess();
+        return readList();
+    }
+
+    @Override
+    public Future<List<T>> asListAsync() {
+        checkReadAccess();
+        final QueryImpl<T> q = copy();
+        return morphium.getReaderPool().submit(new Callable<List<T>>() {
+            @Override
+            public List<T> call() {
+                return q.readList();
+            }
+        });
+    }
+
+    private List<T> readList() {
         morphium.inc(StatisticKeys.READS);
         Cache c = morphium.getAnnotationFromHierarchy(type, Cache.class); //type.getAnnotation(Cache.class);
         boolean useCache = c != null && c.readCache();
 
-        String ck = morphium.getCacheKey(this);
-        if (useCache) {
-            if (morphium.isCached(type, ck)) {
-                morphium.inc(StatisticKeys.CHITS);
-                return morphium.getFromCache(type, ck);
-            }
-            morphium.inc(StatisticKeys.CMISS);
-        } else {
+        final DBObject qobj = toQueryObject();
+        final Map<String, Integer> sort = getSortCopy();
+        final int sk = skip;
+        final int lim = limit;
+        final DBObject fields = getProjection();
+        if (!useCache) {
             morphium.inc(StatisticKeys.NO_CACHED_READS);
-
+            return loadList(qobj, fields, sort, sk, lim);
         }
+        return readThrough(getCacheKey(qobj, fields, sort, sk, lim), new Callable<List<T>>() {
+            @Override
+            public List<T> call() {
+                return loadList(qobj, fields, sort, sk, lim);
+            }
+        });
+    }
+
+    /**
+     * results with projection are cached separately - they must not be returned for queries for complete objects
+     */
+    private CacheKey getCacheKey(DBObject qobj, DBObject fields, Map<String, Integer> sort, int sk, int lim) {
+        CacheKey ret = morphium.getCacheKey(qobj, sort, sk, lim);
+        return fields == null ? ret : ret.projection(fields);
+    }
+
+    /**
+     * @return copy of the sort order, loading must not depend on later changes of this query
+     */
+    private Map<String, Integer> getSortCopy() {
+        return order == null ? null : new LinkedHashMap<String, Integer>(order);
+    }
+
+    private List<T> loadList(DBObject qobj, DBObject fields, Map<String, Integer> sort, int sk, int lim) {
         long start = System.currentTimeMillis();
         DBCollection collection = morphium.getDatabase().getCollection(mapper.getCollectionName(type));
         setReadPreference(collection);
-        DBCursor query = collection.find(toQueryObject());
-        if (skip > 0) {
-            query.skip(skip);
+        DBCursor query = collection.find(qobj, fields);
+        int threshold = morphium.getConfig().getParallelDecodingThreshold();
+        //results limited below the threshold and nested queries of the decoder pool are decoded inline
+        boolean parallel = threshold > 0 && decoding.get() == null && (lim <= 0 || lim >= threshold);
+        if (parallel) {
+            //decoded later, maybe in parallel
+            query.setDecoderFactory(RawDocumentDecoder.FACTORY);
+        } else {
+            setDecoder(query);
         }
-        if (limit > 0) {
-            query.limit(limit);
+        if (sk > 0) {
+            query.skip(sk);
         }
-        if (order != null) {
+        if (lim > 0) {
+            query.limit(lim);
+        }
+        if (sort != null) {
             BasicDBObject srt = new BasicDBObject();
-            for (String k : order.keySet()) {
-                srt.append(k, order.get(k));
+            for (String k : sort.keySet()) {
+                srt.append(k, sort.get(k));
             }
             query.sort(new BasicDBObject(srt));
         }
@@ -406,97 +596,245 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
         List<T> ret = new ArrayList<T>();
 
         morphium.fireProfilingReadEvent(this, System.currentTimeMillis() - start, ReadAccessType.AS_LIST);
+        if (parallel) {
+            return unmarshallParallel(it, collection, fields != null, threshold);
+        }
         while (it.hasNext()) {
-            DBObject o = it.next();
-            T unmarshall = mapper.unmarshall(type, o);
-            ret.add(unmarshall);
-
-            updateLastAccess(o, unmarshall);
-
-            morphium.firePostLoadEvent(unmarshall);
+            ret.add(unmarshallLoaded(it.next(), fields != null));
         }
 
 
-        if (useCache) {
-            morphium.addToCache(ck, type, ret);
-        }
         return ret;
     }
 
-    private void updateLastAccess(DBObject o, T unmarshall) {
-        if (morphium.isAnnotationPresentInHierarchy(type, StoreLastAccess.class)) {
-            List<String> lst = mapper.getFields(type, LastAccess.class);
-            for (String ctf : lst) {
-                Field f = mapper.getField(type, ctf);
-                if (f != null) {
-                    try {
-                        f.set(unmarshall, System.currentTimeMillis());
-                    } catch (IllegalAccessException e) {
-                        System.out.println("Could not set modification time");
+    /**
+     * read the raw documents - if there are more than threshold, they are unmarshalled in batches by the decoder
+     * pool while reading, otherwise by the calling thread. If the queue of the pool is full, the calling thread
+     * unmarshalls the batch before reading on. The order is kept.
+     */
+    private List<T> unmarshallParallel(Iterator<DBObject> it, DBCollection collection, boolean partial, int threshold) {
+        List<byte[]> docs = new ArrayList<byte[]>();
+        while (it.hasNext() && docs.size() < threshold) {
+            docs.add(((RawDocumentDecoder.RawDocument) it.next()).getData());
+        }
+        if (docs.size() < threshold) {
+            //small result, not worth it
+            return unmarshallRaw(docs, collection, partial);
+        }
 
-                    }
+        ThreadPoolExecutor pool = morphium.getDecoderPool();
+        int batchSize = Math.max(1, threshold / pool.getMaximumPoolSize());
+        List<Future<List<T>>> batches = new ArrayList<Future<List<T>>>();
+        for (int i = 0; i < docs.size(); i += batchSize) {
+            batches.add(submitRaw(pool, new ArrayList<byte[]>(docs.subList(i, Math.min(docs.size(), i + batchSize))), collection, partial));
+        }
+        docs = new ArrayList<byte[]>(batchSize);
+        while (it.hasNext()) {
+            docs.add(((RawDocumentDecoder.RawDocument) it.next()).getData());
+            if (docs.size() == batchSize) {
+                batches.add(submitRaw(pool, docs, collection, partial));
+                docs = new ArrayList<byte[]>(batchSize);
+            }
+        }
+
+        //the rest is unmarshalled while the pool is busy
+        List<T> rest = unmarshallRaw(docs, collection, partial);
+        List<T> ret = new ArrayList<T>();
+        for (Future<List<T>> f : batches) {
+            try {
+                ret.addAll(f.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
                 }
+                throw new RuntimeException(e.getCause());
             }
-            lst = mapper.getFields(type, LastAccessBy.class);
-            for (String ctf : lst) {
-                Field f = mapper.getField(type, ctf);
+        }
+        ret.addAll(rest);
+        return ret;
+    }
+
+    private Future<List<T>> submitRaw(ThreadPoolExecutor pool, final List<byte[]> docs, final DBCollection collection, final boolean partial) {
+        return pool.submit(new Callable<List<T>>() {
+            @Override
+            public List<T> call() {
+                decoding.set(Boolean.TRUE);
                 try {
-                    f.set(o, morphium.getConfig().getSecurityMgr().getCurrentUserId());
-                } catch (IllegalAccessException e) {
-//                    logger.error("Could not set changed by",e);
+                    return unmarshallRaw(docs, collection, partial);
+                } finally {
+                    decoding.remove();
                 }
+            }
+        });
+    }
+
+    private List<T> unmarshallRaw(List<byte[]> docs, DBCollection collection, boolean partial) {
+        DBDecoderFactory f = mapper.getDecoderFactory(type);
+        DBDecoder decoder = f == null ? DefaultDBDecoder.FACTORY.create() : f.create();
+        List<T> ret = new ArrayList<T>(docs.size());
+        for (byte[] d : docs) {
+            ret.add(unmarshallLoaded(decoder.decode(d, collection), partial));
+        }
+        return ret;
+    }
+
+    /**
+     * unmarshall a loaded document, update the access fields and fire the post load event
+     *
+     * @param partial - read with a projection
+     */
+    T unmarshallLoaded(DBObject o, boolean partial) {
+        T unmarshall = mapper.unmarshall(type, o);
+        updateLastAccess(o, unmarshall, partial);
+        morphium.firePostLoadEvent(unmarshall);
+        return unmarshall;
+    }
+
+    Morphium getMorphium() {
+        return morphium;
+    }
+
+    @Override
+    public MorphiumIterator<T> asIterable() {
+        return asIterable(0);
+    }
+
+    @Override
+    public MorphiumIterator<T> asIterable(int batchSize) {
+        if (morphium.accessDenied(type, Permission.READ)) {
+            throw new RuntimeException("Access denied!");
+        }
+        morphium.inc(StatisticKeys.READS);
+        morphium.inc(StatisticKeys.NO_CACHED_READS);
+        DBObject fields = getProjection();
+        DBCollection collection = morphium.getDatabase().getCollection(mapper.getCollectionName(type));
+        setReadPreference(collection);
+        DBCursor cursor = collection.find(toQueryObject(), fields);
+        setDecoder(cursor);
+        if (skip > 0) {
+            cursor.skip(skip);
+        }
+        if (limit > 0) {
+            cursor.limit(limit);
+        }
+        if (order != null) {
+            BasicDBObject srt = new BasicDBObject();
+            for (String k : order.keySet()) {
+                srt.append(k, order.get(k));
+            }
+            cursor.sort(srt);
+        }
+        MorphiumIteratorImpl<T> ret = new MorphiumIteratorImpl<T>(this, cursor, fields != null);
+        ret.setBatchSize(batchSize);
+        return ret;
+    }
 
+    /**
+     * @param partial - object was read with a projection, only the access fields may be stored
+     */
+    private void updateLastAccess(DBObject o, T unmarshall, boolean partial) {
+        if (morphium.isAnnotationPresentInHierarchy(type, StoreLastAccess.class)) {
+            EntityModel model = mapper.getEntityModel(type);
+            //may be a proxy
+            Object real = mapper.getRealObject(unmarshall);
+            for (EntityModel.Property ctf : model.getProperties(LastAccess.class)) {
+                ctf.getAccessor().set(real, System.currentTimeMillis());
+            }
+            for (EntityModel.Property ctf : model.getProperties(LastAccessBy.class)) {
+                ctf.getAccessor().set(real, morphium.getConfig().getSecurityMgr().getCurrentUserId());
             }
             //Storing access timestamps
-            morphium.store(unmarshall);
+            if (partial) {
+                List<String> flds = new ArrayList<String>();
+                for (EntityModel.Property ctf : model.getProperties(LastAccess.class)) {
+                    flds.add(ctf.getName());
+                }
+                for (EntityModel.Property ctf : model.getProperties(LastAccessBy.class)) {
+                    flds.add(ctf.getName());
+                }
+                morphium.updateUsingFields(unmarshall, flds.toArray(new String[flds.size()]));
+            } else {
+                morphium.store(unmarshall);
+            }
         }
     }
 
     @Override
     public T getById(ObjectId id) {
-        List<String> flds = mapper.getFields(type, Id.class);
-        if (flds == null || flds.isEmpty()) {
+        EntityModel.Property p = mapper.getEntityModel(type).getIdProperty();
+        if (p == null) {
             throw new RuntimeException("Type does not have an ID-Field? " + type.getSimpleName());
         }
         //should only be one
-        String f = flds.get(0);
+        String f = p.getName();
         Query<T> q = q().f(f).eq(id); //prepare
         return q.get();
     }
 
+    @Override
+    public Future<T> getAsync() {
+        final QueryImpl<T> q = copy();
+        return morphium.getReaderPool().submit(new Callable<T>() {
+            @Override
+            public T call() {
+                return q.get();
+            }
+        });
+    }
+
     @Override
     public T get() {
         Cache c = morphium.getAnnotationFromHierarchy(type, Cache.class); //type.getAnnotation(Cache.class);
         boolean readCache = c != null && c.readCache();
-        String ck = morphium.getCacheKey(this);
+        final DBObject qobj = toQueryObject();
+        final Map<String, Integer> sort = getSortCopy();
+        final int sk = skip;
+        final DBObject fields = getProjection();
         morphium.inc(StatisticKeys.READS);
+        List<T> lst;
         if (readCache) {
-            if (morphium.isCached(type, ck)) {
-                morphium.inc(StatisticKeys.CHITS);
-                List<T> lst = morphium.getFromCache(type, ck);
-                if (lst == null || lst.isEmpty()) {
-                    return null;
-                } else {
-                    return lst.get(0);
+            //only the first match is loaded - cached separately, asList() must not get it
+            CacheKey k = getCacheKey(qobj, fields, sort, sk, limit);
+            k = k.variant(k.getVariant() == null ? "first" : k.getVariant() + " first");
+            lst = readThrough(k, new Callable<List<T>>() {
+                @Override
+                public List<T> call() {
+                    return loadOne(qobj, fields, sort, sk);
                 }
-
-            }
-            morphium.inc(StatisticKeys.CMISS);
+            });
         } else {
             morphium.inc(StatisticKeys.NO_CACHED_READS);
+            lst = loadOne(qobj, fields, sort, sk);
+        }
+        if (lst == null || lst.isEmpty()) {
+            return null;
         }
+        return lst.get(0);
+    }
+
+    /**
+     * @return list containing the first match, null if there is none (not cached)
+     */
+    private List<T> loadOne(DBObject qobj, DBObject fields, Map<String, Integer> sort, int sk) {
         long start = System.currentTimeMillis();
         DBCollection coll = morphium.getDatabase().getCollection(mapper.getCollectionName(type));
         setReadPreference(coll);
-        DBCursor srch = coll.find(toQueryObject());
+        DBCursor srch = coll.find(qobj, fields);
+        setDecoder(srch);
         srch.limit(1);
-        if (skip != 0) {
-            srch = srch.skip(skip);
+        if (sk != 0) {
+            srch = srch.skip(sk);
         }
-        if (order != null) {
+        if (sort != null) {
             BasicDBObject srt = new BasicDBObject();
-            for (String k : order.keySet()) {
-                srt.append(k, order.get(k));
+            for (String k : sort.keySet()) {
+                srt.append(k, sort.get(k));
             }
             srch.sort(new BasicDBObject(srt));
         }
@@ -513,51 +851,47 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
         if (ret != null) {
             T unmarshall = mapper.unmarshall(type, ret);
             morphium.firePostLoadEvent(unmarshall);
-            updateLastAccess(ret, unmarshall);
+            updateLastAccess(ret, unmarshall, fields != null);
 
             lst.add((T) unmarshall);
-            if (readCache) {
-                morphium.addToCache(ck, type, lst);
-            }
-            return unmarshall;
         }
-
-        if (readCache) {
-            morphium.addToCache(ck, type, lst);
-        }
-        return null;
+        return lst;
     }
 
     @Override
     public List<ObjectId> idList() {
         Cache c = morphium.getAnnotationFromHierarchy(type, Cache.class);//type.getAnnotation(Cache.class);
         boolean readCache = c != null && c.readCache();
-        List<ObjectId> ret = new ArrayList<ObjectId>();
-        String ck = morphium.getCacheKey(this);
-        ck += " idlist";
+        final DBObject qobj = toQueryObject();
+        final Map<String, Integer> sort = getSortCopy();
+        final int sk = skip;
+        final int lim = limit;
         morphium.inc(StatisticKeys.READS);
         if (readCache) {
-
-            if (morphium.isCached(type, ck)) {
-                morphium.inc(StatisticKeys.CHITS);
-                //casts are not nice... any idea how to change that?
-                return (List<ObjectId>) morphium.getFromCache(type, ck);
-            }
-            morphium.inc(StatisticKeys.CMISS);
-        } else {
-            morphium.inc(StatisticKeys.NO_CACHED_READS);
+            return readThrough(morphium.getCacheKey(qobj, sort, sk, lim).variant("idlist"), new Callable<List<ObjectId>>() {
+                @Override
+                public List<ObjectId> call() {
+                    return loadIds(qobj, sort, sk, lim);
+                }
+            });
         }
+        morphium.inc(StatisticKeys.NO_CACHED_READS);
+        return loadIds(qobj, sort, sk, lim);
+    }
+
+    private List<ObjectId> loadIds(DBObject qobj, Map<String, Integer> sort, int sk, int lim) {
+        List<ObjectId> ret = new ArrayList<ObjectId>();
         long start = System.currentTimeMillis();
         DBCollection collection = morphium.getDatabase().getCollection(mapper.getCollectionName(type));
         setReadPreference(collection);
-        DBCursor query = collection.find(toQueryObject(), new BasicDBObject("_id", 1)); //only get IDs
-        if (order != null) {
-            query.sort(new BasicDBObject(order));
+        DBCursor query = collection.find(qobj, new BasicDBObject("_id", 1)); //only get IDs
+        if (sort != null) {
+            query.sort(new BasicDBObject(sort));
         }
-        if (skip > 0) {
-            query.skip(skip);
+        if (sk > 0) {
+            query.skip(sk);
         }
-        if (limit > 0) {
+        if (lim > 0) {
             query.limit(0);
         }
         Iterator<DBObject> it = query.iterator();
@@ -568,9 +902,6 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
         }
         long dur = System.currentTimeMillis() - start;
         morphium.fireProfilingReadEvent(this, dur, ReadAccessType.ID_LIST);
-        if (readCache) {
-            morphium.addToCache(ck, type, ret);
-        }
         return ret;
     }
 
@@ -587,9 +918,13 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
                 ret.norQueries.addAll(norQueries);
             }
             if (order != null) {
-                ret.order = new Hashtable<String, Integer>();
+                //keep the sort order
+                ret.order = new LinkedHashMap<String, Integer>();
                 ret.order.putAll(order);
             }
+            if (fieldList != null) {
+                ret.fieldList = new LinkedHashMap<String, Integer>(fieldList);
+            }
             if (orQueries != null) {
                 ret.orQueries = new Vector<Query<T>>();
                 ret.orQueries.addAll(orQueries);
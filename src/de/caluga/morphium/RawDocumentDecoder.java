@@ -0,0 +1,52 @@
+package de.caluga.morphium;
+
+import com.mongodb.*;
+import org.bson.io.Bits;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Does not decode documents at all, just keeps the BSON data - for decoding them later in another thread (see
+ * MorphiumConfig.getParallelDecodingThreshold())
+ */
+class RawDocumentDecoder extends DefaultDBDecoder {
+    static final DBDecoderFactory FACTORY = new DBDecoderFactory() {
+        @Override
+        public DBDecoder create() {
+            return new RawDocumentDecoder();
+        }
+    };
+
+    @Override
+    public DBObject decode(InputStream in, DBCollection collection) throws IOException {
+        byte[] len = new byte[4];
+        Bits.readFully(in, len);
+        int size = Bits.readInt(len);
+        byte[] data = new byte[size];
+        System.arraycopy(len, 0, data, 0, 4);
+        Bits.readFully(in, data, 4, size - 4);
+        return decode(data, collection);
+    }
+
+    @Override
+    public DBObject decode(byte[] b, DBCollection collection) {
+        return new RawDocument(b);
+    }
+
+    /**
+     * the document as read from mongo - it contains no values
+     */
+    static class RawDocument extends BasicDBObject {
+        private static final long serialVersionUID = 1L;
+        private final transient byte[] data;
+
+        private RawDocument(byte[] data) {
+            this.data = data;
+        }
+
+        byte[] getData() {
+            return data;
+        }
+    }
+}
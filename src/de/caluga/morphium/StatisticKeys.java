@@ -8,5 +8,5 @@ package de.caluga.morphium;
  */
 public enum StatisticKeys {
 
-    WRITES, WRITES_CACHED, READS, CHITS, CMISS, NO_CACHED_READS, CHITSPERC, CMISSPERC, CACHE_ENTRIES, WRITE_BUFFER_ENTRIES
+    WRITES, WRITES_CACHED, READS, CHITS, CMISS, NO_CACHED_READS, CHITSPERC, CMISSPERC, CACHE_ENTRIES, CACHE_MEMORY, WRITE_BUFFER_ENTRIES
 }
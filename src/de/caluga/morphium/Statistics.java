@@ -1,7 +1,5 @@
 package de.caluga.morphium;
 
-import de.caluga.morphium.cache.CacheElement;
-
 import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.Map;
@@ -18,13 +16,12 @@ public class Statistics extends Hashtable<String, Double> {
             super.put(et.getKey().name(), (double) et.getValue().get());
         }
         double entries = 0;
-        Hashtable<Class<? extends Object>, Hashtable<String, CacheElement>> cc = morphium.cloneCache();
-        for (Map.Entry<Class<? extends Object>, Hashtable<String, CacheElement>> en : cc.entrySet()) {
-            Hashtable<String, CacheElement> lst = en.getValue();
-            entries += lst.size();
-            super.put("X-Entries for: " + en.getKey().getName(), (double) lst.size());
+        for (Map.Entry<Class<?>, Integer> en : morphium.getCache().getSizes().entrySet()) {
+            entries += en.getValue();
+            super.put("X-Entries for: " + en.getKey().getName(), (double) en.getValue());
         }
         super.put(StatisticKeys.CACHE_ENTRIES.name(), entries);
+        super.put(StatisticKeys.CACHE_MEMORY.name(), (double) morphium.getCache().getEstimatedMemory());
 
         entries = 0;
 
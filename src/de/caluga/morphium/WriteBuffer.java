@@ -0,0 +1,317 @@
+package de.caluga.morphium;
+
+import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
+
+import java.util.*;
+
+/**
+ * Write behind buffer for types with @Cache(writeCache=true). Stored objects are kept until
+ * MorphiumConfig.getWriteBatchSize() objects are waiting or the oldest one waits for
+ * MorphiumConfig.getWriteCacheTimeout() ms, then all of them are written with one storeNoCacheList() by a background
+ * thread.
+ * <p/>
+ * Writes are coalesced: an object stored again while waiting is written only once, with the state it has when it is
+ * flushed. Objects are identified by type and id, new objects (no id yet) and partial update proxies by instance.
+ * <p/>
+ * The buffer holds at most MorphiumConfig.getWriteBufferSize() objects, if it is full the WriteBufferPolicy decides.
+ * <p/>
+ * Objects being written (in flight) are tracked: an object written directly (CALLER_RUNS, or after close()) or deleted
+ * waits until a batch containing an older state of it is written - otherwise the older state could overwrite the
+ * newer one resp. bring the deleted object back.
+ */
+final class WriteBuffer {
+    private static final Logger log = Logger.getLogger(WriteBuffer.class);
+
+    private final Morphium morphium;
+    private final LinkedHashMap<Object, Object> pending = new LinkedHashMap<Object, Object>();
+    /**
+     * objects taken from the buffer, but not written yet: key -> number of batches containing it
+     */
+    private final Map<Object, Integer> inFlight = new HashMap<Object, Integer>();
+    private int inFlightCount = 0;
+    /**
+     * threads currently writing a batch - they must not wait for their own batch (e.g. deleting in a listener)
+     */
+    private final Set<Thread> writers = new HashSet<Thread>();
+    /**
+     * time the oldest pending object was added
+     */
+    private long oldest = 0;
+    private boolean closed = false;
+    private Thread flusher;
+
+    WriteBuffer(Morphium morphium) {
+        this.morphium = morphium;
+    }
+
+    /**
+     * add the object to the buffer - replaces a pending write of the same object
+     */
+    void add(Object o) {
+        MorphiumConfig cfg = morphium.getConfig();
+        Object key = keyOf(o);
+        boolean callerRuns = false;
+        synchronized (this) {
+            while (!closed && !pending.containsKey(key) && pending.size() >= Math.max(1, cfg.getWriteBufferSize())) {
+                if (cfg.getWriteBufferPolicy() == WriteBufferPolicy.CALLER_RUNS) {
+                    callerRuns = true;
+                    break;
+                }
+                if (cfg.getWriteBufferPolicy() == WriteBufferPolicy.DROP_OLDEST) {
+                    Iterator<Object> it = pending.values().iterator();
+                    Object dropped = it.next();
+                    it.remove();
+                    log.warn("Write buffer full - dropping write of " + dropped.getClass().getSimpleName() + " " + morphium.getId(dropped));
+                    continue;
+                }
+                //BLOCK - flusher is woken up, as the buffer is full
+                notifyAll();
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for the write buffer", e);
+                }
+            }
+            if (closed) {
+                callerRuns = true;
+            }
+            if (callerRuns) {
+                //an older state of the object must not overwrite this one
+                awaitWritten(o);
+            } else {
+                boolean first = pending.isEmpty();
+                if (first) {
+                    oldest = System.currentTimeMillis();
+                }
+                //re-adding moves the object to the end
+                pending.remove(key);
+                pending.put(key, o);
+                startFlusher();
+                if (first || pending.size() >= flushSize()) {
+                    //flusher waits for the timeout of the first object or writes the batch
+                    notifyAll();
+                }
+            }
+        }
+        if (callerRuns) {
+            morphium.storeNoCache(o);
+        }
+    }
+
+    /**
+     * drop a pending write, e.g. because the object was deleted. If the object is being written, waits until that is
+     * finished, so it can be deleted afterwards
+     */
+    synchronized void remove(Object o) {
+        if (pending.remove(keyOf(o)) != null || pending.remove(new InstanceKey(o)) != null) {
+            notifyAll();
+        }
+        awaitWritten(o);
+    }
+
+    /**
+     * wait until no batch containing the object is being written. Needs to be called synchronized
+     */
+    private void awaitWritten(Object o) {
+        if (writers.contains(Thread.currentThread())) {
+            //called while writing a batch - would wait for itself
+            return;
+        }
+        Object key = keyOf(o);
+        //new objects are in flight by instance, they get their id while being written
+        Object instance = new InstanceKey(o);
+        while (inFlight.containsKey(key) || inFlight.containsKey(instance)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for the write buffer", e);
+            }
+        }
+    }
+
+    /**
+     * @return number of objects not written yet
+     */
+    synchronized int size() {
+        return pending.size() + inFlightCount;
+    }
+
+    /**
+     * write all pending objects in the calling thread
+     */
+    void flush() {
+        Map<Object, Object> batch;
+        synchronized (this) {
+            batch = drain();
+        }
+        write(batch);
+    }
+
+    /**
+     * stop the background thread and write everything still pending. Objects stored afterwards are written directly
+     */
+    void close() {
+        Thread t;
+        synchronized (this) {
+            closed = true;
+            t = flusher;
+            notifyAll();
+        }
+        if (t != null) {
+            try {
+                t.join(morphium.getConfig().getWriteCacheTimeout() + 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    private void startFlusher() {
+        if (flusher != null) {
+            return;
+        }
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "morphium_write_buffer");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private void flushLoop() {
+        while (true) {
+            Map<Object, Object> batch;
+            synchronized (this) {
+                while (!closed && pending.size() < flushSize()) {
+                    long wait = 0;
+                    if (!pending.isEmpty()) {
+                        wait = oldest + morphium.getConfig().getWriteCacheTimeout() - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            break;
+                        }
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    //rest is written by close()
+                    return;
+                }
+                batch = drain();
+            }
+            write(batch);
+        }
+    }
+
+    /**
+     * take all pending objects, they are in flight afterwards. Needs to be called synchronized
+     *
+     * @return key -> object
+     */
+    private Map<Object, Object> drain() {
+        Map<Object, Object> ret = new LinkedHashMap<Object, Object>(pending);
+        pending.clear();
+        for (Object k : ret.keySet()) {
+            Integer n = inFlight.get(k);
+            inFlight.put(k, n == null ? 1 : n + 1);
+        }
+        inFlightCount += ret.size();
+        //buffer is empty, blocked writers may continue
+        notifyAll();
+        return ret;
+    }
+
+    private void write(Map<Object, Object> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            writers.add(Thread.currentThread());
+        }
+        try {
+            morphium.storeNoCacheList(new ArrayList<Object>(batch.values()));
+        } catch (Exception e) {
+            log.error("Could not write " + batch.size() + " buffered objects", e);
+        } finally {
+            synchronized (this) {
+                writers.remove(Thread.currentThread());
+                for (Object k : batch.keySet()) {
+                    Integer n = inFlight.remove(k);
+                    if (n != null && n > 1) {
+                        inFlight.put(k, n - 1);
+                    }
+                }
+                inFlightCount -= batch.size();
+                //objects waiting for this batch may be written resp. deleted now
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return number of pending objects, which are written without waiting for the timeout
+     */
+    private int flushSize() {
+        MorphiumConfig cfg = morphium.getConfig();
+        return Math.max(1, Math.min(cfg.getWriteBatchSize(), cfg.getWriteBufferSize()));
+    }
+
+    private Object keyOf(Object o) {
+        ObjectId id = morphium.getId(o);
+        if (id == null || o instanceof PartiallyUpdateable) {
+            return new InstanceKey(o);
+        }
+        return new IdKey(morphium.getConfig().getMapper().getRealClass(o.getClass()), id);
+    }
+
+    private static final class IdKey {
+        private final Class<?> type;
+        private final ObjectId id;
+
+        private IdKey(Class<?> type, ObjectId id) {
+            this.type = type;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof IdKey)) {
+                return false;
+            }
+            IdKey k = (IdKey) o;
+            return type.equals(k.type) && id.equals(k.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + id.hashCode();
+        }
+    }
+
+    private static final class InstanceKey {
+        private final Object instance;
+
+        private InstanceKey(Object instance) {
+            this.instance = instance;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof InstanceKey && ((InstanceKey) o).instance == instance;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(instance);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package de.caluga.morphium;
+
+/**
+ * Defines, what happens if an object is stored while the write buffer of <code>@Cache(writeCache=true)</code> types
+ * is full (see <code>MorphiumConfig.setWriteBufferSize()</code>)
+ */
+public enum WriteBufferPolicy {
+    /**
+     * the storing thread waits until the buffer was flushed
+     */
+    BLOCK,
+    /**
+     * the object waiting longest is dropped - it is not written at all
+     */
+    DROP_OLDEST,
+    /**
+     * the object is written by the storing thread, bypassing the buffer
+     */
+    CALLER_RUNS
+}
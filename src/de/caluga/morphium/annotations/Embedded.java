@@ -26,4 +26,9 @@ public @interface Embedded {
      */
 
     boolean polymorph() default false;
+
+    /**
+     * short id stored as class_name instead of the full class name - see Entity.typeId()
+     */
+    String typeId() default ".";
 }
@@ -35,5 +35,12 @@ public @interface Entity {
      */
     boolean polymorph() default false;
 
+    /**
+     * short id stored as class_name instead of the full class name, for polymorph types. Only valid for the
+     * annotated class itself, subclasses need an own id. The class needs to be registered with the ObjectMapper
+     * before documents containing the id are read - see MorphiumConfig.addType() resp. ObjectMapper.registerType().
+     */
+    String typeId() default ".";
+
     Class<? extends NameProvider> nameProvider() default DefaultNameProvider.class;
 }
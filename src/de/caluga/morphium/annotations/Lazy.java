@@ -0,0 +1,22 @@
+package de.caluga.morphium.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Mark this field to be unmarshalled on first access only - useful for large lists, maps or embedded objects, which
+ * are not needed on every read. Entities having lazy fields are returned as proxy, the value is converted when its
+ * getter is called (the name of the getter determines the field, like for setters in @PartialUpdate). Calling any
+ * other method, except getters and setters of other fields, converts all lazy fields.
+ * <p/>
+ * Not used for @PartialUpdate entities and the @Id.
+ *
+ * @author stephan
+ */
+@Target({ElementType.FIELD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Lazy {
+
+}
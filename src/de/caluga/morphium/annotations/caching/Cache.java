@@ -14,10 +14,23 @@ import static java.lang.annotation.ElementType.TYPE;
 /**
  * Define the caching configuration of a given MongoDbObject. The options are as follows:
  * timeout: int timout in ms when a cache entry becomes invalid
- * maxEntries: default -1 means unlimited (Only limited by Memory, uses SoftReferences!)
+ * maxEntries: default -1 means unlimited (Only limited by Memory, see maxBytes and MorphiumConfig.maxCacheMemory)
+ * maxBytes: limit of the estimated heap size of all cached results of this type in bytes, default -1 (unlimited)
+ * maxObjects: limit of the number of objects in all cached results of this type, default -1 (unlimited)
  * clearOnWrite: clear cache if one element is written
- * strategy: when using fixed number of entries, define how to remove additional entries
+ * strategy: when using fixed number of entries, define how to remove additional entries. Entries are removed when
+ * adding new ones to the cache, expired entries are removed by the housekeeper
  * readCache: use cache for reading
+ * normalized: query results only store the ids, objects are stored once in the id cache. Saves memory if objects are
+ * part of many results, but the result list is rebuilt on every cache hit. Default false
+ * offHeap: store results in the off heap cache tier as well, if configured (MorphiumConfig.offHeapCacheSize). Results
+ * are stored as BSON there and unmarshalled on every hit - useful for large, read mostly types. Default false
+ * refreshAhead: percentage of the timeout. If a cached result older than that is read, it is reloaded in background, the
+ * cached result is returned in the meantime. So hot results are never expired. Default 0 (disabled)
+ * staleWhileRevalidate: grace period in ms after the timeout. Expired results are still returned during that time, while
+ * they are reloaded in background (once). Default 0 (disabled)
+ * negativeTimeout: time in ms to cache "not found" for get() and findById(). Should be shorter than timeout, as
+ * objects might be created in the meantime. Default 0 (not found is not cached)
  * writeCache: use cache for writing (schedule write as background job), default false
  *
  * @author stephan
@@ -37,12 +50,26 @@ public @interface Cache {
 
     int maxEntries() default -1;
 
+    long maxBytes() default -1;
+
+    int maxObjects() default -1;
+
     ClearStrategy strategy() default ClearStrategy.FIFO;
 
     boolean writeCache() default false;
 
     boolean readCache() default true;
 
+    boolean normalized() default false;
+
+    boolean offHeap() default false;
+
+    int refreshAhead() default 0;
+
+    int staleWhileRevalidate() default 0;
+
+    int negativeTimeout() default 0;
+
     SyncCacheStrategy syncCache() default SyncCacheStrategy.NONE;
 
 }
\ No newline at end of file
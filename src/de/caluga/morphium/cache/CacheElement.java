@@ -4,22 +4,43 @@
  */
 package de.caluga.morphium.cache;
 
+import org.bson.types.ObjectId;
+
 import java.util.List;
 
 /**
  * @author stephan
+ *         <p/>
+ *         A cached result. In normalized mode only the ids of the result are stored, the objects are kept in the
+ *         id cache - getFound() returns null then.
  */
 public class CacheElement<T> {
 
     private long created;
-    private List<T> found;
-    private long lru;
+    private volatile List<T> found;
+    private volatile long lru;
+    private long estimatedSize;
+    private CacheKey key;
+    private ObjectId[] ids;
+    private boolean normalized;
+    private boolean negative;
+    //not synchronized - only an approximation
+    private volatile int hits;
 
     public CacheElement(List<T> found) {
         this.found = found;
         created = System.currentTimeMillis();
     }
 
+    /**
+     * normalized element, only holding the ids of the result
+     */
+    public CacheElement(ObjectId[] ids) {
+        this.ids = ids;
+        normalized = true;
+        created = System.currentTimeMillis();
+    }
+
     public List<T> getFound() {
         lru = System.currentTimeMillis();
 
@@ -44,4 +65,73 @@ public class CacheElement<T> {
     public void setLru(long lru) {
         this.lru = lru;
     }
+
+    /**
+     * estimated heap size of the results in bytes, only calculated, if there is a memory budget for the cache
+     *
+     * @return
+     */
+    public long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    public void setEstimatedSize(long estimatedSize) {
+        this.estimatedSize = estimatedSize;
+    }
+
+    /**
+     * @return number of objects in this result
+     */
+    public int getObjectCount() {
+        if (found != null) return found.size();
+        return ids == null ? 0 : ids.length;
+    }
+
+    /**
+     * @return the cache key this element is stored for
+     */
+    public CacheKey getKey() {
+        return key;
+    }
+
+    public void setKey(CacheKey key) {
+        this.key = key;
+    }
+
+    /**
+     * @return ids of the objects in this result, in the order of the result. Null, if the result does not contain entities
+     */
+    public ObjectId[] getIds() {
+        return ids;
+    }
+
+    public void setIds(ObjectId[] ids) {
+        this.ids = ids;
+    }
+
+    public boolean isNormalized() {
+        return normalized;
+    }
+
+    /**
+     * @return number of cache hits of this result, approximately
+     */
+    public int getHits() {
+        return hits;
+    }
+
+    public void hit() {
+        hits++;
+    }
+
+    /**
+     * @return true, if this is the cached "not found" of a lookup - see <code>@Cache.negativeTimeout</code>
+     */
+    public boolean isNegative() {
+        return negative;
+    }
+
+    public void setNegative(boolean negative) {
+        this.negative = negative;
+    }
 }
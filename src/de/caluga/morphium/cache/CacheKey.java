@@ -0,0 +1,325 @@
+package de.caluga.morphium.cache;
+
+import org.bson.BSONObject;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Key of a cached query result: query, sort, skip and limit, optionally a variant (e.g. for id lists or results of
+ * queries with a projection, which contain partially filled entities).
+ * <p/>
+ * The query is stored as a canonical, immutable tree: the field map of the query and operator documents (like
+ * <code>{$gt:1, $lt:10}</code>) become sorted maps, so equality does not depend on the order the conditions were
+ * added. The operands of $and, $or and $nor are ordered by hash code (and string representation, if the hash codes
+ * are equal), as the order of the conditions does not matter either. Embedded documents used as values keep their
+ * order, as mongo compares them field by field - <code>{a:1, b:2}</code> does not match <code>{b:2, a:1}</code>. Lists
+ * and the sort specification keep their order as well. The hash code is calculated once on creation - no JSON
+ * serialization necessary.
+ * <p/>
+ * The original query object and sort map are kept, so the query can be executed again (e.g. when warming up the
+ * cache). They must not be changed after the key was created.
+ */
+public final class CacheKey {
+    private static final String PROJECTION = "fields:";
+    private static final Set<String> COMMUTATIVE = new HashSet<String>(Arrays.asList("$and", "$or", "$nor"));
+    private static final Comparator<Object> BY_HASH = new Comparator<Object>() {
+        @Override
+        public int compare(Object o1, Object o2) {
+            int h1 = o1 == null ? 0 : o1.hashCode();
+            int h2 = o2 == null ? 0 : o2.hashCode();
+            if (h1 != h2) {
+                return h1 < h2 ? -1 : 1;
+            }
+            //total order - otherwise the order of colliding conditions would depend on the order they were added
+            return String.valueOf(o1).compareTo(String.valueOf(o2));
+        }
+    };
+
+    private final Object query;
+    private final List<Object> sort;
+    private final int skip;
+    private final int limit;
+    private final String variant;
+    private final int hash;
+
+    private final BSONObject queryObject;
+    private final Map<String, Integer> sortMap;
+
+    public CacheKey(BSONObject queryObject, Map<String, Integer> sort, int skip, int limit) {
+        this(queryObject, sort, skip, limit, null);
+    }
+
+    public CacheKey(BSONObject queryObject, Map<String, Integer> sort, int skip, int limit, String variant) {
+        this.queryObject = queryObject;
+        this.sortMap = sort;
+        this.query = canonicalQuery(queryObject);
+        if (sort == null || sort.isEmpty()) {
+            this.sort = Collections.emptyList();
+        } else {
+            List<Object> s = new ArrayList<Object>(sort.size() * 2);
+            for (Map.Entry<String, Integer> e : sort.entrySet()) {
+                s.add(e.getKey());
+                s.add(e.getValue());
+            }
+            this.sort = Collections.unmodifiableList(s);
+        }
+        this.skip = skip;
+        this.limit = limit;
+        this.variant = variant;
+
+        int h = query == null ? 0 : query.hashCode();
+        h = 31 * h + this.sort.hashCode();
+        h = 31 * h + skip;
+        h = 31 * h + limit;
+        h = 31 * h + (variant == null ? 0 : variant.hashCode());
+        hash = h;
+    }
+
+    /**
+     * @return same query, other variant
+     */
+    public CacheKey variant(String v) {
+        return new CacheKey(queryObject, sortMap, skip, limit, v);
+    }
+
+    /**
+     * @param fields - the projection, see Query.getProjection()
+     * @return same query, returning only the given fields
+     */
+    public CacheKey projection(BSONObject fields) {
+        return variant(PROJECTION + canonicalQuery(fields));
+    }
+
+    /**
+     * @return true, if the results only contain some fields - these must not be used as complete objects
+     */
+    public boolean isProjection() {
+        return variant != null && variant.startsWith(PROJECTION);
+    }
+
+    /**
+     * query document (or projection): fields are sorted
+     */
+    private static Object canonicalQuery(Object o) {
+        if (!isDocument(o)) {
+            return canonicalValue(o);
+        }
+        TreeMap<String, Object> ret = new TreeMap<String, Object>();
+        for (Map.Entry<String, Object> e : entries(o)) {
+            String k = e.getKey();
+            ret.put(k, k.startsWith("$") ? canonicalOperator(k, e.getValue()) : canonicalCondition(e.getValue()));
+        }
+        return Collections.unmodifiableMap(ret);
+    }
+
+    /**
+     * condition of a field: either an operator document like <code>{$gt:1}</code>, which is sorted, or a value
+     */
+    private static Object canonicalCondition(Object o) {
+        if (isDocument(o)) {
+            List<Map.Entry<String, Object>> entries = entries(o);
+            boolean operators = !entries.isEmpty();
+            for (Map.Entry<String, Object> e : entries) {
+                if (!e.getKey().startsWith("$")) {
+                    operators = false;
+                    break;
+                }
+            }
+            if (operators) {
+                TreeMap<String, Object> ret = new TreeMap<String, Object>();
+                for (Map.Entry<String, Object> e : entries) {
+                    ret.put(e.getKey(), canonicalOperator(e.getKey(), e.getValue()));
+                }
+                return Collections.unmodifiableMap(ret);
+            }
+        }
+        return canonicalValue(o);
+    }
+
+    private static Object canonicalOperator(String op, Object value) {
+        if (COMMUTATIVE.contains(op) && (value instanceof List || value instanceof Object[])) {
+            List<Object> sorted = new ArrayList<Object>();
+            for (Object c : value instanceof List ? (List<?>) value : Arrays.asList((Object[]) value)) {
+                sorted.add(canonicalQuery(c));
+            }
+            Collections.sort(sorted, BY_HASH);
+            return Collections.unmodifiableList(sorted);
+        }
+        if (op.equals("$elemMatch")) {
+            return canonicalQuery(value);
+        }
+        if (op.equals("$not")) {
+            return canonicalCondition(value);
+        }
+        return canonicalValue(value);
+    }
+
+    /**
+     * plain value - embedded documents keep the order of their fields
+     */
+    private static Object canonicalValue(Object o) {
+        if (o == null) return null;
+        if (o instanceof List || o instanceof Object[]) {
+            List<?> lst = o instanceof List ? (List<?>) o : Arrays.asList((Object[]) o);
+            List<Object> ret = new ArrayList<Object>(lst.size());
+            for (Object e : lst) {
+                ret.add(canonicalValue(e));
+            }
+            return Collections.unmodifiableList(ret);
+        }
+        if (isDocument(o)) {
+            List<Object> ret = new ArrayList<Object>();
+            for (Map.Entry<String, Object> e : entries(o)) {
+                ret.add(e.getKey());
+                ret.add(canonicalValue(e.getValue()));
+            }
+            return new Document(ret);
+        }
+        if (o instanceof Pattern) {
+            //Pattern does not implement equals
+            return new Regex((Pattern) o);
+        }
+        return o;
+    }
+
+    private static boolean isDocument(Object o) {
+        return o instanceof Map || o instanceof BSONObject;
+    }
+
+    /**
+     * @return fields of the document in their order
+     */
+    private static List<Map.Entry<String, Object>> entries(Object o) {
+        List<Map.Entry<String, Object>> ret = new ArrayList<Map.Entry<String, Object>>();
+        if (o instanceof Map) {
+            for (Map.Entry e : ((Map<?, ?>) o).entrySet()) {
+                ret.add(new AbstractMap.SimpleImmutableEntry<String, Object>(String.valueOf(e.getKey()), e.getValue()));
+            }
+        } else {
+            BSONObject b = (BSONObject) o;
+            for (String k : b.keySet()) {
+                ret.add(new AbstractMap.SimpleImmutableEntry<String, Object>(k, b.get(k)));
+            }
+        }
+        return ret;
+    }
+
+    public BSONObject getQueryObject() {
+        return queryObject;
+    }
+
+    public Map<String, Integer> getSort() {
+        return sortMap;
+    }
+
+    public int getSkip() {
+        return skip;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public String getVariant() {
+        return variant;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CacheKey)) return false;
+        CacheKey k = (CacheKey) o;
+        if (hash != k.hash || skip != k.skip || limit != k.limit) return false;
+        if (variant == null ? k.variant != null : !variant.equals(k.variant)) return false;
+        if (!sort.equals(k.sort)) return false;
+        return query == null ? k.query == null : query.equals(k.query);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append(query);
+        b.append(" l:");
+        b.append(limit);
+        b.append(" s:");
+        b.append(skip);
+        if (!sort.isEmpty()) {
+            b.append(" sort:");
+            b.append(sort);
+        }
+        if (variant != null) {
+            b.append(" ");
+            b.append(variant);
+        }
+        return b.toString();
+    }
+
+    /**
+     * embedded document, the order of the fields is significant
+     */
+    private static final class Document {
+        //field names and values, alternating
+        private final List<Object> fields;
+
+        private Document(List<Object> fields) {
+            this.fields = Collections.unmodifiableList(fields);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Document && fields.equals(((Document) o).fields);
+        }
+
+        @Override
+        public int hashCode() {
+            return fields.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder b = new StringBuilder("{");
+            for (int i = 0; i < fields.size(); i += 2) {
+                if (i > 0) {
+                    b.append(", ");
+                }
+                b.append(fields.get(i));
+                b.append("=");
+                b.append(fields.get(i + 1));
+            }
+            b.append("}");
+            return b.toString();
+        }
+    }
+
+    private static final class Regex {
+        private final String pattern;
+        private final int flags;
+
+        private Regex(Pattern p) {
+            pattern = p.pattern();
+            flags = p.flags();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Regex)) return false;
+            return flags == ((Regex) o).flags && pattern.equals(((Regex) o).pattern);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * pattern.hashCode() + flags;
+        }
+
+        @Override
+        public String toString() {
+            return "/" + pattern + "/" + flags;
+        }
+    }
+}
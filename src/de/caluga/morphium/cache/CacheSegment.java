@@ -0,0 +1,318 @@
+package de.caluga.morphium.cache;
+
+import de.caluga.morphium.annotations.caching.Cache;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache entries of one type. Entries are spread over several stripes, each one being a LinkedHashMap guarded by its
+ * own lock. Stripes keep their entries in eviction order (access order for LRU, insertion order otherwise), so
+ * the victim of each stripe is its first entry. When the segment exceeds maxEntries on insert, the victims of all
+ * stripes are compared and the oldest one is evicted (for RANDOM a random entry of a random stripe) - this
+ * only costs a constant number of steps, no matter how many entries are cached.
+ * <p/>
+ * All entries of a type share the same timeout, so insertion order is also expiry order. Each insert is recorded in
+ * a queue, the housekeeper only polls the expired head of it. The queue only holds key and creation time, never the
+ * element itself - evicted elements are not kept reachable until they would have expired. An entry is only expired,
+ * if the element currently cached for the key is not newer than the queue entry, so queue entries of removed or
+ * replaced elements are skipped when they are polled.
+ * <p/>
+ * If maxBytes or maxObjects are set, the estimated size resp. the number of objects of all results is limited as
+ * well. When evicting because of that, the age of each victim is weighted by its size, so large old results are
+ * removed first.
+ */
+class CacheSegment {
+    private static final int STRIPES = 16;
+    private static final int RANDOM_SAMPLE = 8;
+
+    private final Stripe[] stripes;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong objects = new AtomicLong();
+    private final ConcurrentLinkedQueue<Expiry> expiryQueue = new ConcurrentLinkedQueue<Expiry>();
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long maxObjects;
+    private final Cache.ClearStrategy strategy;
+    private final Random random = new Random();
+
+    CacheSegment(int maxEntries, Cache.ClearStrategy strategy) {
+        this(maxEntries, -1, -1, strategy);
+    }
+
+    CacheSegment(int maxEntries, long maxBytes, long maxObjects, Cache.ClearStrategy strategy) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxObjects = maxObjects;
+        this.strategy = strategy == null ? Cache.ClearStrategy.FIFO : strategy;
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(this.strategy.equals(Cache.ClearStrategy.LRU));
+        }
+    }
+
+    private Stripe getStripe(CacheKey k) {
+        int h = k.hashCode();
+        h ^= (h >>> 16);
+        return stripes[(h & 0x7fffffff) % STRIPES];
+    }
+
+    CacheElement get(CacheKey k) {
+        Stripe s = getStripe(k);
+        synchronized (s) {
+            return s.entries.get(k);
+        }
+    }
+
+    /**
+     * adds the element, evicting other entries if maxEntries is exceeded
+     *
+     * @return the evicted (or replaced) elements, never null
+     */
+    List<CacheElement> put(CacheKey k, CacheElement e) {
+        Stripe s = getStripe(k);
+        CacheElement old;
+        synchronized (s) {
+            old = s.entries.put(k, e);
+        }
+        List<CacheElement> ret = new ArrayList<CacheElement>();
+        bytes.addAndGet(e.getEstimatedSize());
+        objects.addAndGet(e.getObjectCount());
+        if (old == null) {
+            size.incrementAndGet();
+        } else {
+            bytes.addAndGet(-old.getEstimatedSize());
+            objects.addAndGet(-old.getObjectCount());
+            ret.add(old);
+        }
+        expiryQueue.add(new Expiry(k, e.getCreated()));
+        while (true) {
+            boolean bySize = (maxBytes > 0 && bytes.get() > maxBytes) || (maxObjects > 0 && objects.get() > maxObjects);
+            if (!bySize && (maxEntries <= 0 || size.get() <= maxEntries)) {
+                break;
+            }
+            CacheElement ev = evict(e, bySize);
+            if (ev == null) break;
+            ret.add(ev);
+        }
+        return ret;
+    }
+
+    /**
+     * @return false, if the element alone exceeds maxBytes or maxObjects of this segment
+     */
+    boolean fits(CacheElement e) {
+        return (maxBytes <= 0 || e.getEstimatedSize() <= maxBytes) && (maxObjects <= 0 || e.getObjectCount() <= maxObjects);
+    }
+
+    CacheElement remove(CacheKey k) {
+        Stripe s = getStripe(k);
+        CacheElement ret;
+        synchronized (s) {
+            ret = s.entries.remove(k);
+        }
+        if (ret != null) {
+            removed(ret);
+        }
+        return ret;
+    }
+
+    private void removed(CacheElement e) {
+        size.decrementAndGet();
+        bytes.addAndGet(-e.getEstimatedSize());
+        objects.addAndGet(-e.getObjectCount());
+    }
+
+    /**
+     * removes the entry only, if it is still the given element
+     */
+    boolean remove(CacheKey k, CacheElement e) {
+        Stripe s = getStripe(k);
+        synchronized (s) {
+            if (s.entries.get(k) != e) {
+                return false;
+            }
+            s.entries.remove(k);
+        }
+        removed(e);
+        return true;
+    }
+
+    /**
+     * removes the entry only, if it was created at or before the given time
+     *
+     * @return the removed element, null if there is none or it is newer
+     */
+    private CacheElement removeCreatedBefore(CacheKey k, long created) {
+        Stripe s = getStripe(k);
+        CacheElement ret;
+        synchronized (s) {
+            ret = s.entries.get(k);
+            if (ret == null || ret.getCreated() > created) {
+                return null;
+            }
+            s.entries.remove(k);
+        }
+        removed(ret);
+        return ret;
+    }
+
+    /**
+     * removes all entries older than maxAge ms
+     *
+     * @return the removed elements
+     */
+    List<CacheElement> expire(long maxAge) {
+        List<CacheElement> ret = new ArrayList<CacheElement>();
+        long now = System.currentTimeMillis();
+        while (true) {
+            Expiry head = expiryQueue.peek();
+            if (head == null || now - head.created <= maxAge) {
+                break;
+            }
+            if (expiryQueue.poll() != head) {
+                //polled concurrently
+                continue;
+            }
+            CacheElement e = removeCreatedBefore(head.key, head.created);
+            if (e != null) {
+                ret.add(e);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * evict one entry, because the cache as a whole is too large
+     *
+     * @param keep - element, that must not be evicted (the one just added)
+     * @return the evicted element, null if there is none
+     */
+    CacheElement evictForMemory(CacheElement keep) {
+        return evict(keep, true);
+    }
+
+    private CacheElement evict(CacheElement keep, boolean bySize) {
+        if (strategy.equals(Cache.ClearStrategy.RANDOM)) {
+            int start = random.nextInt(STRIPES);
+            for (int i = 0; i < STRIPES; i++) {
+                Stripe s = stripes[(start + i) % STRIPES];
+                CacheKey victim = null;
+                CacheElement ret = null;
+                synchronized (s) {
+                    if (s.entries.isEmpty()) continue;
+                    int steps = random.nextInt(Math.min(s.entries.size(), RANDOM_SAMPLE));
+                    for (Map.Entry<CacheKey, CacheElement> en : s.entries.entrySet()) {
+                        if (en.getValue() != keep) {
+                            victim = en.getKey();
+                            ret = en.getValue();
+                        }
+                        if (steps-- <= 0 && victim != null) break;
+                    }
+                    if (victim != null) {
+                        s.entries.remove(victim);
+                    }
+                }
+                if (victim != null) {
+                    removed(ret);
+                    return ret;
+                }
+            }
+            return null;
+        }
+
+        boolean lru = strategy.equals(Cache.ClearStrategy.LRU);
+        long now = System.currentTimeMillis();
+        //sample the eldest entry of every stripe
+        Stripe victim = null;
+        double best = -1;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                CacheElement e = s.getEldest(keep);
+                if (e == null) continue;
+                double score = now - (lru ? e.getLru() : e.getCreated()) + 1;
+                if (bySize) {
+                    score = score * Math.max(1, e.getEstimatedSize() > 0 ? e.getEstimatedSize() : e.getObjectCount());
+                }
+                if (score > best) {
+                    best = score;
+                    victim = s;
+                }
+            }
+        }
+        if (victim == null) {
+            return null;
+        }
+        CacheElement ret;
+        synchronized (victim) {
+            ret = victim.removeEldest(keep);
+        }
+        if (ret != null) {
+            removed(ret);
+        }
+        return ret;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * @return estimated size of all cached results in bytes
+     */
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return a copy of all entries
+     */
+    Map<CacheKey, CacheElement> snapshot() {
+        Map<CacheKey, CacheElement> ret = new HashMap<CacheKey, CacheElement>();
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                ret.putAll(s.entries);
+            }
+        }
+        return ret;
+    }
+
+    private static class Stripe {
+        private final LinkedHashMap<CacheKey, CacheElement> entries;
+
+        private Stripe(boolean accessOrder) {
+            entries = new LinkedHashMap<CacheKey, CacheElement>(16, 0.75f, accessOrder);
+        }
+
+        private CacheElement getEldest(CacheElement skip) {
+            for (CacheElement e : entries.values()) {
+                if (e != skip) return e;
+            }
+            return null;
+        }
+
+        private CacheElement removeEldest(CacheElement skip) {
+            for (Iterator<CacheElement> it = entries.values().iterator(); it.hasNext(); ) {
+                CacheElement e = it.next();
+                if (e != skip) {
+                    it.remove();
+                    return e;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class Expiry {
+        private final CacheKey key;
+        private final long created;
+
+        private Expiry(CacheKey key, long created) {
+            this.key = key;
+            this.created = created;
+        }
+    }
+}
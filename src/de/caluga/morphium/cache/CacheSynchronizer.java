@@ -1,5 +1,7 @@
 package de.caluga.morphium.cache;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
 import de.caluga.morphium.ConfigElement;
 import de.caluga.morphium.Morphium;
 import de.caluga.morphium.MorphiumStorageListener;
@@ -358,22 +360,21 @@ public class CacheSynchronizer implements MorphiumStorageListener<Object>, Messa
                         if (c.readCache()) {
                             try {
                                 firePreClearEvent(cls, m);
-                                Hashtable<Class<? extends Object>, Hashtable<ObjectId, Object>> idCache = morphium.cloneIdCache();
                                 for (String a : m.getAdditional()) {
                                     ObjectId id = new ObjectId(a);
-                                    if (idCache.get(cls) != null) {
-                                        if (idCache.get(cls).get(id) != null) {
-                                            //Object is updated in place!
-                                            if (c.syncCache().equals(Cache.SyncCacheStrategy.REMOVE_ENTRY_FROM_TYPE_CACHE)) {
-                                                morphium.removeEntryFromCache(cls, id);
-                                            } else {
-                                                morphium.reread(idCache.get(cls).get(id));
-
-                                            }
+                                    if (c.syncCache().equals(Cache.SyncCacheStrategy.REMOVE_ENTRY_FROM_TYPE_CACHE)) {
+                                        //only touches results containing the id
+                                        morphium.removeEntryFromCache(cls, id);
+                                    } else if (morphium.getCache().getFromIDCache(cls, id) != null) {
+                                        //replace object in all cached results
+                                        DBObject dbo = morphium.getDatabase().getCollection(morphium.getConfig().getMapper().getCollectionName(cls)).findOne(new BasicDBObject("_id", id));
+                                        if (dbo == null) {
+                                            morphium.removeEntryFromCache(cls, id);
+                                        } else {
+                                            morphium.getCache().updateEntry(cls, morphium.getConfig().getMapper().unmarshall(cls, dbo));
                                         }
                                     }
                                 }
-                                morphium.setIdCache(idCache);
                                 answer.setMsg("cache cleared for type: " + m.getValue());
                                 firePostClearEvent(cls, m);
                             } catch (CacheSyncVetoException e) {
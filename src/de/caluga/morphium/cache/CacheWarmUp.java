@@ -0,0 +1,215 @@
+package de.caluga.morphium.cache;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+import de.caluga.morphium.Morphium;
+import de.caluga.morphium.Query;
+import org.apache.log4j.Logger;
+import org.bson.BSONObject;
+import org.bson.io.BasicOutputBuffer;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warms up the cache after startup, so that not all reads hit mongo at once. Either the cache keys of a snapshot are
+ * replayed, or a list of query templates is executed. The queries run in background, at most
+ * <code>MorphiumConfig.cacheWarmUpThreads</code> in parallel. isWarm() returns true, when all of them are finished.
+ * <p/>
+ * A snapshot contains the most used cache keys (by number of hits), one BSON document per key: type, query, sort,
+ * skip and limit. BSON keeps the types of the query values (e.g. long, date, ObjectId), so the replayed queries are
+ * cached with the same keys. Only the keys are stored, not the results. Id lists and cached "not found" results are
+ * not part of the snapshot.
+ */
+public class CacheWarmUp {
+    private static final Logger log = Logger.getLogger(CacheWarmUp.class);
+
+    private final Morphium morphium;
+    private int pending = 0;
+
+    public CacheWarmUp(Morphium m) {
+        morphium = m;
+    }
+
+    /**
+     * write the most used cache keys to the file
+     *
+     * @param max - maximum number of keys
+     */
+    public void writeSnapshot(File f, int max) throws IOException {
+        List<Object[]> hot = new ArrayList<Object[]>();
+        MorphiumCache cache = morphium.getCache();
+        for (Class<?> type : cache.getCachedTypes()) {
+            for (CacheElement e : cache.getCacheElements(type).values()) {
+                CacheKey k = e.getKey();
+                if (k == null || k.getVariant() != null || k.getQueryObject() == null || e.isNegative()) continue;
+                hot.add(new Object[]{type, e});
+            }
+        }
+        Collections.sort(hot, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] o1, Object[] o2) {
+                int h1 = ((CacheElement) o1[1]).getHits();
+                int h2 = ((CacheElement) o2[1]).getHits();
+                return h1 > h2 ? -1 : (h1 == h2 ? 0 : 1);
+            }
+        });
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+        DefaultDBEncoder enc = new DefaultDBEncoder();
+        try {
+            for (int i = 0; i < hot.size() && i < max; i++) {
+                CacheElement e = (CacheElement) hot.get(i)[1];
+                CacheKey k = e.getKey();
+                BasicDBObject doc = new BasicDBObject("type", ((Class<?>) hot.get(i)[0]).getName());
+                doc.append("query", k.getQueryObject());
+                if (k.getSort() != null) {
+                    doc.append("sort", new BasicDBObject(k.getSort()));
+                }
+                doc.append("skip", k.getSkip());
+                doc.append("limit", k.getLimit());
+                doc.append("hits", e.getHits());
+                BasicOutputBuffer buf = new BasicOutputBuffer();
+                enc.writeObject(buf, doc);
+                buf.pipe(out);
+            }
+        } finally {
+            out.close();
+        }
+        log.info("Stored " + Math.min(max, hot.size()) + " cache keys in " + f.getAbsolutePath());
+    }
+
+    /**
+     * run the queries of the snapshot in background. Entries for unknown types are skipped
+     */
+    public void replay(File f) throws IOException {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        DefaultDBDecoder dec = new DefaultDBDecoder();
+        try {
+            byte[] len = new byte[4];
+            while (in.read(len, 0, 1) == 1) {
+                in.readFully(len, 1, 3);
+                //BSON documents start with their length, little endian
+                byte[] data = new byte[(len[0] & 0xff) | (len[1] & 0xff) << 8 | (len[2] & 0xff) << 16 | (len[3] & 0xff) << 24];
+                System.arraycopy(len, 0, data, 0, 4);
+                in.readFully(data, 4, data.length - 4);
+                DBObject doc = dec.decode(data, (DBCollection) null);
+                Class<?> type;
+                try {
+                    type = Class.forName((String) doc.get("type"));
+                } catch (ClassNotFoundException e) {
+                    log.warn("Skipping cache key of unknown type " + doc.get("type"));
+                    continue;
+                }
+                final Query<?> q = morphium.createQueryFor(type);
+                final DBObject query = (DBObject) doc.get("query");
+                final Map<String, Integer> sort = toSortMap((BSONObject) doc.get("sort"));
+                final int skip = ((Number) doc.get("skip")).intValue();
+                final int limit = ((Number) doc.get("limit")).intValue();
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        q.complexQuery(query, sort, skip, limit);
+                    }
+                });
+            }
+        } finally {
+            in.close();
+        }
+        log.info("Warming up cache with " + tasks.size() + " queries from " + f.getAbsolutePath());
+        run(tasks);
+    }
+
+    /**
+     * run the queries in background, results are cached as usual. The queries must not be changed afterwards
+     */
+    public void warmUp(List<? extends Query<?>> templates) {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (final Query<?> q : templates) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    q.asList();
+                }
+            });
+        }
+        run(tasks);
+    }
+
+    private Map<String, Integer> toSortMap(BSONObject o) {
+        if (o == null) return null;
+        Map<String, Integer> ret = new LinkedHashMap<String, Integer>();
+        for (String k : o.keySet()) {
+            ret.put(k, ((Number) o.get(k)).intValue());
+        }
+        return ret;
+    }
+
+    private void run(List<Runnable> tasks) {
+        if (tasks.isEmpty()) return;
+        synchronized (this) {
+            pending += tasks.size();
+        }
+        int threads = Math.max(1, morphium.getConfig().getCacheWarmUpThreads());
+        ThreadPoolExecutor ex = new ThreadPoolExecutor(threads, threads, 1000L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "cache_warmup");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        for (final Runnable r : tasks) {
+            ex.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        r.run();
+                    } catch (Exception e) {
+                        log.warn("Warm up query failed: " + e.getMessage());
+                    } finally {
+                        done();
+                    }
+                }
+            });
+        }
+        ex.shutdown();
+    }
+
+    private synchronized void done() {
+        pending--;
+        if (pending == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return true, if no warm up queries are pending
+     */
+    public synchronized boolean isWarm() {
+        return pending == 0;
+    }
+
+    /**
+     * wait until all warm up queries are finished
+     *
+     * @param timeout - max time to wait in ms
+     * @return true, if the cache is warm
+     */
+    public synchronized boolean waitUntilWarm(long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while (pending > 0) {
+            long w = end - System.currentTimeMillis();
+            if (w <= 0) return false;
+            wait(w);
+        }
+        return true;
+    }
+}
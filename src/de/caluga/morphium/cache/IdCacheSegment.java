@@ -0,0 +1,141 @@
+package de.caluga.morphium.cache;
+
+import org.bson.types.ObjectId;
+
+import java.util.*;
+
+/**
+ * Id cache of one type: id -> object, together with the cached results referencing this id. This is the reverse index
+ * of the query cache - all results containing an object can be found without scanning the cache. An id stays in
+ * the cache as long as it is referenced by at least one result.
+ * <p/>
+ * Ids are spread over several stripes, each one guarded by its own lock.
+ */
+class IdCacheSegment {
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes;
+
+    IdCacheSegment() {
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe getStripe(ObjectId id) {
+        int h = id.hashCode();
+        h ^= (h >>> 16);
+        return stripes[(h & 0x7fffffff) % STRIPES];
+    }
+
+    /**
+     * @return the cached object, null if the id is not cached or was only part of an id list
+     */
+    Object get(ObjectId id) {
+        Stripe s = getStripe(id);
+        synchronized (s) {
+            Entry e = s.entries.get(id);
+            return e == null ? null : e.value;
+        }
+    }
+
+    /**
+     * adds a reference from the result to the id
+     *
+     * @param value - the object, replaces the cached one. If null, only the reference is added
+     */
+    void add(ObjectId id, Object value, CacheElement ref) {
+        Stripe s = getStripe(id);
+        synchronized (s) {
+            Entry e = s.entries.get(id);
+            if (e == null) {
+                e = new Entry();
+                s.entries.put(id, e);
+            }
+            if (value != null) {
+                e.value = value;
+            }
+            e.refs.add(ref);
+        }
+    }
+
+    /**
+     * replaces the cached object, if the id is cached
+     *
+     * @return all results referencing the id, never null
+     */
+    Set<CacheElement> replace(ObjectId id, Object value) {
+        Stripe s = getStripe(id);
+        synchronized (s) {
+            Entry e = s.entries.get(id);
+            if (e == null) return Collections.emptySet();
+            e.value = value;
+            Set<CacheElement> ret = Collections.newSetFromMap(new IdentityHashMap<CacheElement, Boolean>());
+            ret.addAll(e.refs);
+            return ret;
+        }
+    }
+
+    /**
+     * removes the reference from the result to the id. If it was the last one, the id is removed.
+     */
+    void release(ObjectId id, CacheElement ref) {
+        Stripe s = getStripe(id);
+        synchronized (s) {
+            Entry e = s.entries.get(id);
+            if (e == null) return;
+            e.refs.remove(ref);
+            if (e.refs.isEmpty()) {
+                s.entries.remove(id);
+            }
+        }
+    }
+
+    /**
+     * removes the id
+     *
+     * @return all results referencing it, never null
+     */
+    Set<CacheElement> remove(ObjectId id) {
+        Stripe s = getStripe(id);
+        synchronized (s) {
+            Entry e = s.entries.remove(id);
+            if (e == null) return Collections.emptySet();
+            return e.refs;
+        }
+    }
+
+    /**
+     * @return a copy of all results referencing the id, never null
+     */
+    Set<CacheElement> getReferences(ObjectId id) {
+        Stripe s = getStripe(id);
+        synchronized (s) {
+            Entry e = s.entries.get(id);
+            if (e == null) return Collections.emptySet();
+            Set<CacheElement> ret = Collections.newSetFromMap(new IdentityHashMap<CacheElement, Boolean>());
+            ret.addAll(e.refs);
+            return ret;
+        }
+    }
+
+    int size() {
+        int ret = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                ret += s.entries.size();
+            }
+        }
+        return ret;
+    }
+
+    private static class Stripe {
+        private final HashMap<ObjectId, Entry> entries = new HashMap<ObjectId, Entry>();
+    }
+
+    private static class Entry {
+        private Object value;
+        private final Set<CacheElement> refs = Collections.newSetFromMap(new IdentityHashMap<CacheElement, Boolean>());
+    }
+}
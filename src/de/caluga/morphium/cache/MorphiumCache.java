@@ -0,0 +1,133 @@
+package de.caluga.morphium.cache;
+
+import de.caluga.morphium.Morphium;
+import org.bson.types.ObjectId;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Cache engine used by Morphium for query results and the id cache. Implementations need to be threadsafe,
+ * as all reading threads access the cache concurrently. Configure the implementation to use
+ * in <code>MorphiumConfig.setCacheClass()</code>, default is <code>MorphiumCacheImpl</code>.
+ * <p/>
+ * The query cache is organized by type: cache key (query, sort, skip and limit - see CacheKey) -> CacheElement (list
+ * of results).
+ * All results, which are entities, are also put into the id cache (type: id -> object).
+ * <p/>
+ * Types marked with <code>@Cache(normalized=true)</code> may be stored as id lists only, the objects are then kept
+ * once in the id cache.
+ */
+public interface MorphiumCache {
+
+    public void setMorphium(Morphium m);
+
+    public Morphium getMorphium();
+
+    /**
+     * add a list of results to the cache
+     *
+     * @param k    - cache key
+     * @param type - type of the results
+     * @param ret  - the results
+     */
+    public <T> void addToCache(CacheKey k, Class<? extends T> type, List<T> ret);
+
+    /**
+     * @return true, if there is a result for this key stored in cache
+     */
+    public boolean isCached(Class<?> type, CacheKey k);
+
+    /**
+     * @return the cached result, null if not cached. For normalized results, this might also be null if isCached()
+     *         returned true, as objects might have been removed in between
+     */
+    public <T> List<T> getFromCache(Class<? extends T> type, CacheKey k);
+
+    /**
+     * read through: returns the cached result, or loads it with the loader and adds it to the cache. Concurrent calls
+     * for the same key do not load in parallel, they wait for the load already running. If
+     * <code>@Cache.refreshAhead</code> is set and the cached result is older than that percentage of the timeout,
+     * it is reloaded in background and the cached result is returned in the meantime. The same happens for expired
+     * results during the grace period <code>@Cache.staleWhileRevalidate</code>.
+     *
+     * @param loader - loads the result. Might be called later from another thread (refresh), so it must not depend
+     *               on state changed after this call. If it returns null (nothing found), nothing is cached -
+     *               unless <code>@Cache.negativeTimeout</code> is set, then an empty result is cached for that time
+     * @return the result, null or empty if the loader returned null
+     */
+    public <T> List<T> getOrLoad(Class<? extends T> type, CacheKey k, Callable<List<T>> loader);
+
+    /**
+     * @return the object with the given id, if it is part of a cached result. Null otherwise
+     */
+    public <T> T getFromIDCache(Class<? extends T> type, ObjectId id);
+
+    /**
+     * remove all cached results and ids for the given type
+     *
+     * @param cls
+     */
+    public void clearCachefor(Class<?> cls);
+
+    /**
+     * remove all cached results containing the object with the given id, and the object from the id cache
+     *
+     * @param cls
+     * @param id
+     */
+    public void removeEntryFromCache(Class<?> cls, ObjectId id);
+
+    /**
+     * replace the object with the given one (same id) in the id cache and in all cached results containing it. Results
+     * are not changed, if the object is not cached. Lists already returned by getFromCache are not modified.
+     *
+     * @param cls
+     * @param updated - the current version of the object
+     */
+    public void updateEntry(Class<?> cls, Object updated);
+
+    /**
+     * remove one cached result, and its objects from the id cache
+     *
+     * @param cls
+     * @param k
+     */
+    public void removeFromCache(Class<?> cls, CacheKey k);
+
+    /**
+     * remove all cached results of the given type, which are older than maxAge. Called by the housekeeper
+     *
+     * @param type
+     * @param maxAge - in ms
+     */
+    public void expire(Class<?> type, long maxAge);
+
+    /**
+     * clear the whole cache
+     */
+    public void resetCache();
+
+    /**
+     * @return all types with results in cache
+     */
+    public Set<Class<?>> getCachedTypes();
+
+    /**
+     * @return a copy of the cached results of the given type - key -> element. Normalized elements only contain the ids
+     */
+    public Map<CacheKey, CacheElement> getCacheElements(Class<?> type);
+
+    /**
+     * @return number of cached results by type
+     */
+    public Map<Class<?>, Integer> getSizes();
+
+    /**
+     * @return estimated heap size of all cached results in bytes. Only calculated if a memory budget is set
+     * (<code>@Cache.maxBytes</code> or <code>MorphiumConfig.maxCacheMemory</code>), 0 otherwise
+     */
+    public long getEstimatedMemory();
+}
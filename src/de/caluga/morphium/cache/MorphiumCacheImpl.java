@@ -0,0 +1,608 @@
+package de.caluga.morphium.cache;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+import de.caluga.morphium.Morphium;
+import de.caluga.morphium.annotations.caching.Cache;
+import org.bson.io.BasicOutputBuffer;
+import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Default cache engine. Every type gets its own segment for the query cache (lock striped, see CacheSegment) and
+ * one for the id cache (see IdCacheSegment). Adding, reading and removing entries only touches the corresponding
+ * entry - no copies of the cache are created, so this performs well under concurrent read heavy load.
+ * <p/>
+ * The id cache knows all results containing an id, so removing an entry only touches the results containing it.
+ * An object stays in the id cache as long as one result references it. For types with
+ * <code>@Cache(normalized=true)</code> the results only store the ids, the objects are stored once in the id cache
+ * and the result list is rebuilt on every read. If an object is missing (e.g. removed by removeEntryFromCache), the
+ * result is dropped and treated as not cached.
+ * <p/>
+ * maxEntries and strategy of the @Cache-Annotation are enforced when adding results, the housekeeper only needs to
+ * remove expired entries.
+ * <p/>
+ * Memory budgets: if <code>@Cache.maxBytes</code> or <code>MorphiumConfig.maxCacheMemory</code> are set, the heap size
+ * of each result is estimated (see ObjectSizeEstimator) when it is added. Results larger than the budget are not cached
+ * at all. If the whole cache exceeds maxCacheMemory, entries of the largest segments are evicted.
+ * <p/>
+ * Off heap tier: if <code>MorphiumConfig.offHeapCacheSize</code> is set, results of types with
+ * <code>@Cache(offHeap=true)</code> are stored as BSON in an OffHeapStore - depending on the OffHeapSpillPolicy either
+ * all results or those evicted from (or too large for) the heap cache. If a result is not found on heap, it is
+ * unmarshalled from there. Results read off heap are not moved back to the heap cache. Invalidation and expiry
+ * apply to both tiers.
+ * <p/>
+ * Loading (getOrLoad): there is at most one load per key running at a time, all other threads missing the same key
+ * wait for its result - so an expired hot result causes only one query. Refreshing ahead uses the same mechanism, the
+ * reload runs in a small pool of background threads. If the pool is busy, the refresh is skipped. Types with
+ * <code>@Cache(staleWhileRevalidate=...)</code> are refreshed the same way when read after their timeout, the housekeeper
+ * keeps them for the grace period. "Not found" results (<code>@Cache.negativeTimeout</code>) are stored as empty
+ * results, which are dropped on read after the negative timeout.
+ */
+public class MorphiumCacheImpl implements MorphiumCache {
+    private static final Logger log = Logger.getLogger(MorphiumCacheImpl.class);
+    private static final int OFF_HEAP_BLOCK_SIZE = 1024;
+
+    private final ConcurrentHashMap<Class<?>, CacheSegment> cache;
+    private final ConcurrentHashMap<Class<?>, IdCacheSegment> idCache;
+    private final ConcurrentHashMap<Class<?>, ConcurrentHashMap<CacheKey, FutureTask<?>>> loading;
+    private final ThreadPoolExecutor refresher;
+    private Morphium morphium;
+    private OffHeapStore offHeap;
+
+    public MorphiumCacheImpl() {
+        cache = new ConcurrentHashMap<Class<?>, CacheSegment>();
+        idCache = new ConcurrentHashMap<Class<?>, IdCacheSegment>();
+        loading = new ConcurrentHashMap<Class<?>, ConcurrentHashMap<CacheKey, FutureTask<?>>>();
+        refresher = new ThreadPoolExecutor(2, 2, 10000L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(100), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "cache_refresh");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        refresher.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void setMorphium(Morphium m) {
+        morphium = m;
+        if (m.getConfig().getOffHeapCacheSize() > 0) {
+            offHeap = new OffHeapStore(m.getConfig().getOffHeapCacheSize(), OFF_HEAP_BLOCK_SIZE);
+        }
+    }
+
+    @Override
+    public Morphium getMorphium() {
+        return morphium;
+    }
+
+    private CacheSegment getSegment(Class<?> type) {
+        CacheSegment seg = cache.get(type);
+        if (seg == null) {
+            Cache c = morphium.getAnnotationFromHierarchy(type, Cache.class);
+            if (c != null) {
+                seg = new CacheSegment(c.maxEntries(), c.maxBytes(), c.maxObjects(), c.strategy());
+            } else {
+                seg = new CacheSegment(-1, Cache.ClearStrategy.FIFO);
+            }
+            CacheSegment existing = cache.putIfAbsent(type, seg);
+            if (existing != null) {
+                seg = existing;
+            }
+        }
+        return seg;
+    }
+
+    private IdCacheSegment getIdSegment(Class<?> type) {
+        IdCacheSegment seg = idCache.get(type);
+        if (seg == null) {
+            seg = new IdCacheSegment();
+            IdCacheSegment existing = idCache.putIfAbsent(type, seg);
+            if (existing != null) {
+                seg = existing;
+            }
+        }
+        return seg;
+    }
+
+    @Override
+    public <T> void addToCache(CacheKey k, Class<? extends T> type, List<T> ret) {
+        addToCache(k, type, ret, false);
+    }
+
+    /**
+     * @param negative - the empty result of a lookup, which found nothing. Only valid for
+     *                 <code>@Cache.negativeTimeout</code>
+     */
+    private <T> void addToCache(CacheKey k, Class<? extends T> type, List<T> ret, boolean negative) {
+        if (k == null) {
+            return;
+        }
+        //ids of the result - either entities or an id list
+        ObjectId[] ids = null;
+        boolean entities = false;
+        //partial objects are only kept in the result, never as objects by id
+        boolean partial = k.isProjection();
+        if (ret != null && !ret.isEmpty()) {
+            entities = morphium.getConfig().getMapper().isEntity(ret.get(0));
+            if (entities || ret.get(0) instanceof ObjectId) {
+                ids = new ObjectId[ret.size()];
+                for (int i = 0; i < ret.size(); i++) {
+                    T record = ret.get(i);
+                    if (record == null) continue;
+                    ids[i] = entities ? morphium.getConfig().getMapper().getId(record) : (ObjectId) record;
+                }
+            }
+        }
+        CacheElement<T> e;
+        if (ret != null && !partial && isNormalized(type) && (entities || ret.isEmpty()) && !containsNull(ids)) {
+            e = new CacheElement<T>(ids == null ? new ObjectId[0] : ids);
+        } else {
+            e = new CacheElement<T>(ret);
+            e.setIds(ids);
+        }
+        e.setKey(k);
+        e.setNegative(negative);
+        e.setLru(System.currentTimeMillis());
+        CacheSegment seg = getSegment(type);
+        long maxMemory = morphium.getConfig().getMaxCacheMemory();
+        if (maxMemory > 0 || isSizeLimited(type)) {
+            e.setEstimatedSize(e.isNormalized() ? ObjectSizeEstimator.estimate(Arrays.asList(e.getIds())) : ObjectSizeEstimator.estimate(ret));
+            if (!seg.fits(e) || (maxMemory > 0 && e.getEstimatedSize() > maxMemory)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Result too large for cache: " + e.getEstimatedSize() + " bytes, type " + type.getName());
+                }
+                if (isOffHeap(type)) {
+                    spill(type, e);
+                }
+                return;
+            }
+        }
+        if (ids != null) {
+            IdCacheSegment idSeg = getIdSegment(type);
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == null) continue;
+                idSeg.add(ids[i], entities && !partial ? ret.get(i) : null, e);
+            }
+        }
+        List<CacheElement> removed = seg.put(k, e);
+        boolean offHeapType = isOffHeap(type);
+        if (offHeapType && morphium.getConfig().getOffHeapSpillPolicy().equals(OffHeapSpillPolicy.ALL)) {
+            spill(type, e);
+        }
+        for (CacheElement r : removed) {
+            release(type, r);
+            if (offHeapType && !k.equals(r.getKey())) {
+                evicted(type, r);
+            }
+        }
+        if (maxMemory > 0) {
+            evictForMemory(maxMemory, e);
+        }
+    }
+
+    private boolean containsNull(ObjectId[] ids) {
+        if (ids == null) return false;
+        for (ObjectId id : ids) {
+            if (id == null) return true;
+        }
+        return false;
+    }
+
+    private boolean isOffHeap(Class<?> type) {
+        if (offHeap == null) return false;
+        Cache c = morphium.getAnnotationFromHierarchy(type, Cache.class);
+        return c != null && c.offHeap();
+    }
+
+    /**
+     * element was evicted from heap cache
+     */
+    private void evicted(Class<?> type, CacheElement e) {
+        if (morphium.getConfig().getOffHeapSpillPolicy().equals(OffHeapSpillPolicy.EVICTED)) {
+            spill(type, e);
+        }
+    }
+
+    /**
+     * store result off heap - only lists of entities (or empty ones) can be stored
+     */
+    private void spill(Class<?> type, CacheElement e) {
+        List found = e.getFound();
+        if (e.isNormalized() || e.isNegative() || found == null) return;
+        if (!found.isEmpty() && e.getIds() == null) return;
+        BasicOutputBuffer buf = new BasicOutputBuffer();
+        DefaultDBEncoder enc = new DefaultDBEncoder();
+        for (Object o : found) {
+            if (o == null) return;
+            enc.writeObject(buf, morphium.getConfig().getMapper().marshall(o));
+        }
+        Cache c = morphium.getAnnotationFromHierarchy(type, Cache.class);
+        if (!offHeap.put(type, e.getKey(), buf.toByteArray(), found.size(), e.getIds(), e.getCreated(), c.strategy().equals(Cache.ClearStrategy.LRU))) {
+            log.debug("Result too large for off heap cache");
+        }
+    }
+
+    private <T> List<T> getFromOffHeap(Class<? extends T> type, CacheKey k) {
+        Cache c = morphium.getAnnotationFromHierarchy(type, Cache.class);
+        OffHeapStore.Stored st = offHeap.get(type, k, c.timeout());
+        if (st == null) return null;
+        DefaultDBDecoder dec = new DefaultDBDecoder();
+        List<T> ret = new ArrayList<T>(st.count);
+        int pos = 0;
+        for (int i = 0; i < st.count; i++) {
+            //BSON documents start with their length, little endian
+            int len = (st.data[pos] & 0xff) | (st.data[pos + 1] & 0xff) << 8 | (st.data[pos + 2] & 0xff) << 16 | (st.data[pos + 3] & 0xff) << 24;
+            DBObject dbo = dec.decode(Arrays.copyOfRange(st.data, pos, pos + len), (DBCollection) null);
+            ret.add(morphium.getConfig().getMapper().unmarshall(type, dbo));
+            pos += len;
+        }
+        return ret;
+    }
+
+    private boolean isNormalized(Class<?> type) {
+        Cache c = morphium.getAnnotationFromHierarchy(type, Cache.class);
+        return c != null && c.normalized();
+    }
+
+    private boolean isSizeLimited(Class<?> type) {
+        Cache c = morphium.getAnnotationFromHierarchy(type, Cache.class);
+        return c != null && (c.maxBytes() > 0 || c.maxObjects() > 0);
+    }
+
+    /**
+     * evict entries from the largest segments, until the whole cache fits into maxMemory
+     */
+    private void evictForMemory(long maxMemory, CacheElement keep) {
+        Set<Class<?>> exhausted = new HashSet<Class<?>>();
+        while (getEstimatedMemory() > maxMemory) {
+            Class<?> largest = null;
+            CacheSegment seg = null;
+            for (Map.Entry<Class<?>, CacheSegment> es : cache.entrySet()) {
+                if (exhausted.contains(es.getKey())) continue;
+                if (seg == null || es.getValue().getBytes() > seg.getBytes()) {
+                    largest = es.getKey();
+                    seg = es.getValue();
+                }
+            }
+            if (seg == null) return;
+            CacheElement ev = seg.evictForMemory(keep);
+            if (ev == null) {
+                //only the new element left
+                exhausted.add(largest);
+                continue;
+            }
+            release(largest, ev);
+            if (isOffHeap(largest)) {
+                evicted(largest, ev);
+            }
+        }
+    }
+
+    /**
+     * remove the references of a removed result from the id cache
+     */
+    private void release(Class<?> cls, CacheElement e) {
+        if (e == null || e.getIds() == null) return;
+        IdCacheSegment ids = idCache.get(cls);
+        if (ids == null) return;
+        for (ObjectId id : e.getIds()) {
+            if (id != null) {
+                ids.release(id, e);
+            }
+        }
+    }
+
+    @Override
+    public boolean isCached(Class<?> type, CacheKey k) {
+        CacheSegment seg = cache.get(type);
+        CacheElement e = seg == null ? null : seg.get(k);
+        if (e != null) {
+            return e.isNormalized() || e.getFound() != null;
+        }
+        return isOffHeap(type) && offHeap.contains(type, k);
+    }
+
+    @Override
+    public <T> List<T> getFromCache(Class<? extends T> type, CacheKey k) {
+        CacheSegment seg = cache.get(type);
+        CacheElement<T> e = seg == null ? null : seg.get(k);
+        if (e == null) {
+            return isOffHeap(type) ? this.<T>getFromOffHeap(type, k) : null;
+        }
+        if (e.isNegative() && System.currentTimeMillis() - e.getCreated() > getNegativeTimeout(type)) {
+            if (seg.remove(k, e)) {
+                release(type, e);
+            }
+            return null;
+        }
+        e.setLru(System.currentTimeMillis());
+        e.hit();
+        if (!e.isNormalized()) {
+            return e.getFound();
+        }
+        IdCacheSegment idSeg = idCache.get(type);
+        List<T> ret = new ArrayList<T>(e.getIds().length);
+        for (ObjectId id : e.getIds()) {
+            Object o = idSeg == null ? null : idSeg.get(id);
+            if (o == null) {
+                //object was removed from cache - result is not valid anymore
+                if (seg.remove(k, e)) {
+                    release(type, e);
+                }
+                return null;
+            }
+            ret.add((T) o);
+        }
+        return ret;
+    }
+
+    private int getNegativeTimeout(Class<?> type) {
+        Cache c = morphium.getAnnotationFromHierarchy(type, Cache.class);
+        return c == null ? 0 : c.negativeTimeout();
+    }
+
+    @Override
+    public <T> List<T> getOrLoad(final Class<? extends T> type, final CacheKey k, final Callable<List<T>> loader) {
+        Cache c = morphium.getAnnotationFromHierarchy(type, Cache.class);
+        CacheSegment seg = cache.get(type);
+        CacheElement cached = seg == null ? null : seg.get(k);
+        if (cached != null && c != null && c.timeout() > 0) {
+            long age = System.currentTimeMillis() - cached.getCreated();
+            if (c.staleWhileRevalidate() > 0 && age > c.timeout()) {
+                if (age > (long) c.timeout() + c.staleWhileRevalidate()) {
+                    //too old to be served stale
+                    if (seg.remove(k, cached)) {
+                        release(type, cached);
+                    }
+                } else {
+                    refresh(type, k, loader);
+                }
+            } else if (c.refreshAhead() > 0 && age * 100 >= (long) c.timeout() * c.refreshAhead()) {
+                refresh(type, k, loader);
+            }
+        }
+        List<T> ret = getFromCache(type, k);
+        if (ret != null) {
+            return ret;
+        }
+        ConcurrentHashMap<CacheKey, FutureTask<?>> inFlight = getLoading(type);
+        while (true) {
+            FutureTask<List<T>> task = new FutureTask<List<T>>(new Callable<List<T>>() {
+                @Override
+                public List<T> call() throws Exception {
+                    //might have been added since the first lookup
+                    List<T> ret = getFromCache(type, k);
+                    if (ret != null) {
+                        return ret;
+                    }
+                    ret = loader.call();
+                    store(k, type, ret);
+                    return ret;
+                }
+            });
+            FutureTask<List<T>> running = (FutureTask<List<T>>) inFlight.putIfAbsent(k, task);
+            if (running == null) {
+                running = task;
+                try {
+                    task.run();
+                } finally {
+                    inFlight.remove(k, task);
+                }
+            }
+            try {
+                return running.get();
+            } catch (CancellationException e) {
+                //refresh could not be scheduled - try again
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private ConcurrentHashMap<CacheKey, FutureTask<?>> getLoading(Class<?> type) {
+        ConcurrentHashMap<CacheKey, FutureTask<?>> ret = loading.get(type);
+        if (ret == null) {
+            ret = new ConcurrentHashMap<CacheKey, FutureTask<?>>();
+            ConcurrentHashMap<CacheKey, FutureTask<?>> existing = loading.putIfAbsent(type, ret);
+            if (existing != null) {
+                ret = existing;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * add the loaded result to the cache. If there is none, an empty result is cached, if
+     * <code>@Cache.negativeTimeout</code> is set
+     */
+    private <T> void store(CacheKey k, Class<? extends T> type, List<T> ret) {
+        if (ret != null) {
+            addToCache(k, type, ret);
+        } else if (getNegativeTimeout(type) > 0) {
+            addToCache(k, type, Collections.<T>emptyList(), true);
+        }
+    }
+
+    /**
+     * reload the result in background, the cached one is still returned until then. Only one load per key runs at a
+     * time, if the pool is busy the refresh is skipped.
+     */
+    private <T> void refresh(final Class<? extends T> type, final CacheKey k, final Callable<List<T>> loader) {
+        final ConcurrentHashMap<CacheKey, FutureTask<?>> inFlight = getLoading(type);
+        final FutureTask<List<T>> task = new FutureTask<List<T>>(new Callable<List<T>>() {
+            @Override
+            public List<T> call() throws Exception {
+                List<T> ret = loader.call();
+                store(k, type, ret);
+                return ret;
+            }
+        });
+        if (inFlight.putIfAbsent(k, task) != null) {
+            //already loading
+            return;
+        }
+        try {
+            refresher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                        task.get();
+                    } catch (Exception ex) {
+                        log.error("Refreshing cache entry failed: " + k, ex);
+                    } finally {
+                        inFlight.remove(k, task);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            task.cancel(false);
+            inFlight.remove(k, task);
+            log.debug("Refresh pool busy - not refreshing " + k);
+        }
+    }
+
+    @Override
+    public <T> T getFromIDCache(Class<? extends T> type, ObjectId id) {
+        IdCacheSegment seg = idCache.get(type);
+        if (seg == null || id == null) return null;
+        return (T) seg.get(id);
+    }
+
+    @Override
+    public void clearCachefor(Class<?> cls) {
+        cache.remove(cls);
+        idCache.remove(cls);
+        if (offHeap != null) {
+            offHeap.clear(cls);
+        }
+    }
+
+    @Override
+    public void removeEntryFromCache(Class<?> cls, ObjectId id) {
+        if (offHeap != null && id != null) {
+            offHeap.removeId(cls, id);
+        }
+        IdCacheSegment ids = idCache.get(cls);
+        if (ids == null || id == null) return;
+        CacheSegment seg = cache.get(cls);
+        for (CacheElement e : ids.remove(id)) {
+            if (seg != null && seg.remove(e.getKey(), e)) {
+                release(cls, e);
+            }
+        }
+    }
+
+    @Override
+    public void updateEntry(Class<?> cls, Object updated) {
+        if (updated == null) return;
+        ObjectId id = morphium.getConfig().getMapper().getId(updated);
+        if (offHeap != null && id != null) {
+            //stored as BSON - not patched, just removed
+            offHeap.removeId(cls, id);
+        }
+        IdCacheSegment ids = idCache.get(cls);
+        if (ids == null || id == null) return;
+        CacheSegment seg = cache.get(cls);
+        for (CacheElement e : ids.replace(id, updated)) {
+            if (e.getKey() != null && e.getKey().isProjection()) {
+                //the updated object is complete - can't be patched into a partial result
+                if (seg != null && seg.remove(e.getKey(), e)) {
+                    release(cls, e);
+                }
+                continue;
+            }
+            if (e.isNormalized() || e.getFound() == null || e.getIds() == null) continue;
+            synchronized (e) {
+                List lst = new ArrayList(e.getFound());
+                ObjectId[] elementIds = e.getIds();
+                for (int i = 0; i < elementIds.length && i < lst.size(); i++) {
+                    if (id.equals(elementIds[i]) && !(lst.get(i) instanceof ObjectId)) {
+                        lst.set(i, updated);
+                    }
+                }
+                e.setFound(lst);
+            }
+        }
+    }
+
+    @Override
+    public void removeFromCache(Class<?> cls, CacheKey k) {
+        if (offHeap != null) {
+            offHeap.remove(cls, k);
+        }
+        CacheSegment seg = cache.get(cls);
+        if (seg == null) return;
+        release(cls, seg.remove(k));
+    }
+
+    @Override
+    public void expire(Class<?> type, long maxAge) {
+        if (offHeap != null) {
+            offHeap.expire(type, maxAge);
+        }
+        CacheSegment seg = cache.get(type);
+        if (seg == null) return;
+        for (CacheElement e : seg.expire(maxAge)) {
+            release(type, e);
+        }
+    }
+
+    @Override
+    public void resetCache() {
+        cache.clear();
+        idCache.clear();
+        if (offHeap != null) {
+            offHeap.clear();
+        }
+    }
+
+    @Override
+    public Set<Class<?>> getCachedTypes() {
+        return Collections.unmodifiableSet(cache.keySet());
+    }
+
+    @Override
+    public Map<CacheKey, CacheElement> getCacheElements(Class<?> type) {
+        CacheSegment seg = cache.get(type);
+        if (seg == null) {
+            return Collections.emptyMap();
+        }
+        return seg.snapshot();
+    }
+
+    @Override
+    public Map<Class<?>, Integer> getSizes() {
+        Map<Class<?>, Integer> ret = new HashMap<Class<?>, Integer>();
+        for (Map.Entry<Class<?>, CacheSegment> es : cache.entrySet()) {
+            ret.put(es.getKey(), es.getValue().size());
+        }
+        return ret;
+    }
+
+    @Override
+    public long getEstimatedMemory() {
+        long ret = 0;
+        for (CacheSegment seg : cache.values()) {
+            ret += seg.getBytes();
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,143 @@
+package de.caluga.morphium.cache;
+
+import org.bson.types.ObjectId;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimates the retained heap size of cached results. This is only an approximation (64bit JVM, no alignment
+ * tricks), good enough to keep cache budgets. Large lists are not walked completely: a sample of the elements is
+ * estimated and the average is extrapolated. Objects are followed up to a fixed depth, every object is only
+ * counted once.
+ */
+public class ObjectSizeEstimator {
+    private static final int HEADER = 16;
+    private static final int REF = 8;
+    private static final int MAX_DEPTH = 8;
+    private static final int SAMPLE_SIZE = 16;
+
+    private static final ConcurrentHashMap<Class<?>, Field[]> fieldCache = new ConcurrentHashMap<Class<?>, Field[]>();
+
+    /**
+     * estimated size of the list and all its elements
+     *
+     * @param lst
+     * @return size in bytes
+     */
+    public static long estimate(List<?> lst) {
+        if (lst == null) return 0;
+        long ret = HEADER + 16 + (long) lst.size() * REF;
+        int sz = lst.size();
+        if (sz == 0) return ret;
+        int step = sz <= SAMPLE_SIZE ? 1 : sz / SAMPLE_SIZE;
+        long sampled = 0;
+        int count = 0;
+        for (int i = 0; i < sz; i += step) {
+            sampled += estimate(lst.get(i), new IdentityHashMap<Object, Boolean>(), 0);
+            count++;
+        }
+        return ret + sampled / count * sz;
+    }
+
+    private static long estimate(Object o, IdentityHashMap<Object, Boolean> visited, int depth) {
+        if (o == null || depth > MAX_DEPTH) return 0;
+        if (visited.put(o, Boolean.TRUE) != null) return 0;
+        Class<?> cls = o.getClass();
+        if (o instanceof String) {
+            return align(HEADER + 24 + 2L * ((String) o).length());
+        }
+        if (o instanceof Number || o instanceof Boolean || o instanceof Character) {
+            return HEADER + 8;
+        }
+        if (o instanceof ObjectId) {
+            return HEADER + 16;
+        }
+        if (o instanceof Date) {
+            return HEADER + 8;
+        }
+        if (cls.isEnum()) {
+            //shared instance
+            return 0;
+        }
+        if (cls.isArray()) {
+            int len = Array.getLength(o);
+            Class<?> ct = cls.getComponentType();
+            if (ct.isPrimitive()) {
+                return align(HEADER + 4 + (long) len * primitiveSize(ct));
+            }
+            long ret = align(HEADER + 4 + (long) len * REF);
+            for (int i = 0; i < len; i++) {
+                ret += estimate(Array.get(o, i), visited, depth + 1);
+            }
+            return ret;
+        }
+        if (o instanceof Collection) {
+            long ret = HEADER + 16 + (long) ((Collection) o).size() * (REF + 16);
+            for (Object e : (Collection) o) {
+                ret += estimate(e, visited, depth + 1);
+            }
+            return ret;
+        }
+        if (o instanceof Map) {
+            long ret = HEADER + 32 + (long) ((Map) o).size() * (REF + 32);
+            for (Map.Entry e : ((Map<?, ?>) o).entrySet()) {
+                ret += estimate(e.getKey(), visited, depth + 1);
+                ret += estimate(e.getValue(), visited, depth + 1);
+            }
+            return ret;
+        }
+        long ret = HEADER;
+        for (Field f : getFields(cls)) {
+            if (f.getType().isPrimitive()) {
+                ret += primitiveSize(f.getType());
+            } else {
+                ret += REF;
+                try {
+                    ret += estimate(f.get(o), visited, depth + 1);
+                } catch (IllegalAccessException e) {
+                    //ignore - only estimating
+                }
+            }
+        }
+        return align(ret);
+    }
+
+    private static Field[] getFields(Class<?> cls) {
+        Field[] ret = fieldCache.get(cls);
+        if (ret != null) return ret;
+        List<Field> lst = new ArrayList<Field>();
+        Class<?> c = cls;
+        while (c != null && !c.equals(Object.class)) {
+            for (Field f : c.getDeclaredFields()) {
+                //proxy callbacks are not part of the cached object
+                if (Modifier.isStatic(f.getModifiers()) || f.getName().startsWith("CGLIB$")) continue;
+                try {
+                    f.setAccessible(true);
+                } catch (RuntimeException e) {
+                    //not accessible - not counted
+                    continue;
+                }
+                lst.add(f);
+            }
+            c = c.getSuperclass();
+        }
+        ret = lst.toArray(new Field[lst.size()]);
+        fieldCache.put(cls, ret);
+        return ret;
+    }
+
+    private static int primitiveSize(Class<?> t) {
+        if (t.equals(long.class) || t.equals(double.class)) return 8;
+        if (t.equals(int.class) || t.equals(float.class)) return 4;
+        if (t.equals(short.class) || t.equals(char.class)) return 2;
+        return 1;
+    }
+
+    private static long align(long sz) {
+        return (sz + 7) & ~7L;
+    }
+}
@@ -0,0 +1,16 @@
+package de.caluga.morphium.cache;
+
+/**
+ * Defines, which results of types with <code>@Cache(offHeap=true)</code> are stored in the off heap cache tier
+ * (see <code>MorphiumConfig.setOffHeapCacheSize()</code>)
+ */
+public enum OffHeapSpillPolicy {
+    /**
+     * results evicted from the heap cache (because of maxEntries or a memory budget) are moved off heap
+     */
+    EVICTED,
+    /**
+     * all results are stored off heap as well when added to the cache
+     */
+    ALL
+}
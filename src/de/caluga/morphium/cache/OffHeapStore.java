@@ -0,0 +1,291 @@
+package de.caluga.morphium.cache;
+
+import org.bson.types.ObjectId;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Second level cache tier outside of the java heap. Cached results are stored as BSON bytes in direct ByteBuffers,
+ * allocated once on creation. The memory is split into blocks of fixed size, a result occupies as many blocks as
+ * necessary - so there is no fragmentation and freeing is just returning the blocks to the free list.
+ * <p/>
+ * If there are not enough free blocks, the oldest entries are evicted (for LRU types the least recently used). On heap
+ * there is only the index: key -> block numbers, and the ids of the objects in each result, so that results can be
+ * invalidated by id.
+ * <p/>
+ * All index operations are synchronized, copying the data of an entry is only synchronized on the entry itself.
+ */
+class OffHeapStore {
+    private static final int MAX_PAGE_SIZE = 32 * 1024 * 1024;
+
+    private final ByteBuffer[] pages;
+    private final int blockSize;
+    private final int blocksPerPage;
+    private final int[] freeBlocks;
+    private int freeCount;
+
+    private final Map<Class<?>, TypeIndex> index = new HashMap<Class<?>, TypeIndex>();
+    private final LinkedHashMap<Entry, Entry> order = new LinkedHashMap<Entry, Entry>();
+    private long used;
+
+    OffHeapStore(long capacity, int blockSize) {
+        this.blockSize = blockSize;
+        long blocks = capacity / blockSize;
+        if (blocks <= 0 || blocks > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid off heap cache size: " + capacity);
+        }
+        blocksPerPage = Math.max(1, MAX_PAGE_SIZE / blockSize);
+        int numPages = (int) ((blocks + blocksPerPage - 1) / blocksPerPage);
+        pages = new ByteBuffer[numPages];
+        for (int i = 0; i < numPages; i++) {
+            long inPage = Math.min(blocksPerPage, blocks - (long) i * blocksPerPage);
+            pages[i] = ByteBuffer.allocateDirect((int) inPage * blockSize);
+        }
+        freeBlocks = new int[(int) blocks];
+        for (int i = 0; i < freeBlocks.length; i++) {
+            freeBlocks[i] = freeBlocks.length - 1 - i;
+        }
+        freeCount = freeBlocks.length;
+    }
+
+    /**
+     * stores the data, replacing an existing entry for the key. Evicts other entries if necessary.
+     *
+     * @param created - creation time of the result, used for expiry
+     * @param lru     - if true, reading the entry moves it to the end of the eviction order
+     * @return false, if the data is too large for the store
+     */
+    boolean put(Class<?> type, CacheKey k, byte[] data, int count, ObjectId[] ids, long created, boolean lru) {
+        int needed = Math.max(1, (data.length + blockSize - 1) / blockSize);
+        if (needed > freeBlocks.length) {
+            return false;
+        }
+        Entry e = new Entry(type, k, data.length, count, ids, created, lru);
+        int[] blocks = new int[needed];
+        synchronized (this) {
+            while (freeCount < needed && !order.isEmpty()) {
+                remove(order.keySet().iterator().next());
+            }
+            if (freeCount < needed) {
+                //blocks in use by concurrent puts
+                return false;
+            }
+            for (int i = 0; i < needed; i++) {
+                blocks[i] = freeBlocks[--freeCount];
+            }
+            used += (long) needed * blockSize;
+        }
+        //blocks are owned by this thread until the entry is published
+        int pos = 0;
+        for (int b : blocks) {
+            int len = Math.min(blockSize, data.length - pos);
+            if (len <= 0) break;
+            ByteBuffer buf = pages[b / blocksPerPage].duplicate();
+            buf.position((b % blocksPerPage) * blockSize);
+            buf.put(data, pos, len);
+            pos += len;
+        }
+        e.blocks = blocks;
+        synchronized (this) {
+            remove(type, k);
+            TypeIndex ti = index.get(type);
+            if (ti == null) {
+                ti = new TypeIndex();
+                index.put(type, ti);
+            }
+            ti.entries.put(k, e);
+            if (ids != null) {
+                for (ObjectId id : ids) {
+                    if (id == null) continue;
+                    Set<Entry> s = ti.byId.get(id);
+                    if (s == null) {
+                        s = new HashSet<Entry>();
+                        ti.byId.put(id, s);
+                    }
+                    s.add(e);
+                }
+            }
+            order.put(e, e);
+        }
+        return true;
+    }
+
+    /**
+     * @param maxAge - entries older than this (ms) are removed and not returned
+     * @return copy of the data, null if not stored
+     */
+    Stored get(Class<?> type, CacheKey k, long maxAge) {
+        Entry e;
+        synchronized (this) {
+            TypeIndex ti = index.get(type);
+            if (ti == null) return null;
+            e = ti.entries.get(k);
+            if (e == null) return null;
+            if (maxAge > 0 && System.currentTimeMillis() - e.created > maxAge) {
+                remove(e);
+                return null;
+            }
+            if (e.lru) {
+                order.remove(e);
+                order.put(e, e);
+            }
+        }
+        byte[] data = new byte[e.length];
+        synchronized (e) {
+            if (e.blocks == null) {
+                //removed concurrently
+                return null;
+            }
+            int pos = 0;
+            for (int b : e.blocks) {
+                int len = Math.min(blockSize, e.length - pos);
+                if (len <= 0) break;
+                ByteBuffer buf = pages[b / blocksPerPage].duplicate();
+                buf.position((b % blocksPerPage) * blockSize);
+                buf.get(data, pos, len);
+                pos += len;
+            }
+        }
+        return new Stored(data, e.count, e.created);
+    }
+
+    synchronized boolean contains(Class<?> type, CacheKey k) {
+        TypeIndex ti = index.get(type);
+        return ti != null && ti.entries.containsKey(k);
+    }
+
+    synchronized void remove(Class<?> type, CacheKey k) {
+        TypeIndex ti = index.get(type);
+        if (ti == null) return;
+        Entry e = ti.entries.get(k);
+        if (e != null) {
+            remove(e);
+        }
+    }
+
+    /**
+     * removes all results of the type containing the object with the given id
+     */
+    synchronized void removeId(Class<?> type, ObjectId id) {
+        TypeIndex ti = index.get(type);
+        if (ti == null) return;
+        Set<Entry> s = ti.byId.get(id);
+        if (s == null) return;
+        for (Entry e : new ArrayList<Entry>(s)) {
+            remove(e);
+        }
+    }
+
+    synchronized void expire(Class<?> type, long maxAge) {
+        TypeIndex ti = index.get(type);
+        if (ti == null) return;
+        long now = System.currentTimeMillis();
+        for (Entry e : new ArrayList<Entry>(ti.entries.values())) {
+            if (now - e.created > maxAge) {
+                remove(e);
+            }
+        }
+    }
+
+    synchronized void clear(Class<?> type) {
+        TypeIndex ti = index.get(type);
+        if (ti == null) return;
+        for (Entry e : new ArrayList<Entry>(ti.entries.values())) {
+            remove(e);
+        }
+        index.remove(type);
+    }
+
+    synchronized void clear() {
+        for (Entry e : new ArrayList<Entry>(order.keySet())) {
+            remove(e);
+        }
+        index.clear();
+    }
+
+    /**
+     * @return off heap memory in use in bytes
+     */
+    synchronized long getUsed() {
+        return used;
+    }
+
+    synchronized int size() {
+        return order.size();
+    }
+
+    private void remove(Entry e) {
+        TypeIndex ti = index.get(e.type);
+        if (ti != null) {
+            if (ti.entries.get(e.key) == e) {
+                ti.entries.remove(e.key);
+            }
+            if (e.ids != null) {
+                for (ObjectId id : e.ids) {
+                    if (id == null) continue;
+                    Set<Entry> s = ti.byId.get(id);
+                    if (s != null) {
+                        s.remove(e);
+                        if (s.isEmpty()) {
+                            ti.byId.remove(id);
+                        }
+                    }
+                }
+            }
+        }
+        order.remove(e);
+        int[] blocks;
+        synchronized (e) {
+            blocks = e.blocks;
+            e.blocks = null;
+        }
+        if (blocks != null) {
+            for (int b : blocks) {
+                freeBlocks[freeCount++] = b;
+            }
+            used -= (long) blocks.length * blockSize;
+        }
+    }
+
+    /**
+     * data of one result
+     */
+    static class Stored {
+        final byte[] data;
+        final int count;
+        final long created;
+
+        Stored(byte[] data, int count, long created) {
+            this.data = data;
+            this.count = count;
+            this.created = created;
+        }
+    }
+
+    private static class TypeIndex {
+        private final HashMap<CacheKey, Entry> entries = new HashMap<CacheKey, Entry>();
+        private final HashMap<ObjectId, Set<Entry>> byId = new HashMap<ObjectId, Set<Entry>>();
+    }
+
+    private static class Entry {
+        private final Class<?> type;
+        private final CacheKey key;
+        private final int length;
+        private final int count;
+        private final ObjectId[] ids;
+        private final long created;
+        private final boolean lru;
+        private int[] blocks;
+
+        private Entry(Class<?> type, CacheKey key, int length, int count, ObjectId[] ids, long created, boolean lru) {
+            this.type = type;
+            this.key = key;
+            this.length = length;
+            this.count = count;
+            this.ids = ids;
+            this.created = created;
+            this.lru = lru;
+        }
+    }
+}
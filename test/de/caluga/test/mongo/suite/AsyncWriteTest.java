@@ -0,0 +1,172 @@
+package de.caluga.test.mongo.suite;
+
+import de.caluga.morphium.MorphiumSingleton;
+import de.caluga.morphium.Query;
+import de.caluga.morphium.StorageAdapter;
+import de.caluga.morphium.secure.MongoSecurityManager;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for storeAsync() and the other asynchronous writes
+ */
+public class AsyncWriteTest extends MongoTest {
+    @Test
+    public void storeAsyncTest() throws Exception {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        List<UncachedObject> lst = new ArrayList<UncachedObject>();
+        for (int i = 1; i <= 100; i++) {
+            UncachedObject o = new UncachedObject();
+            o.setCounter(i);
+            o.setValue("Async " + i);
+            lst.add(o);
+            futures.add(MorphiumSingleton.get().storeAsync(o));
+        }
+        for (Future<Void> f : futures) {
+            f.get();
+        }
+        for (UncachedObject o : lst) {
+            assert (o.getMongoId() != null) : "Id not set";
+        }
+        Query<UncachedObject> q = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+        assert (q.countAll() == 100) : "Not all stored: " + q.countAll();
+
+        //writes to the same object are executed in order
+        UncachedObject o = lst.get(0);
+        futures.clear();
+        for (int i = 0; i < 10; i++) {
+            futures.add(MorphiumSingleton.get().incAsync(o, "counter", 1));
+        }
+        futures.add(MorphiumSingleton.get().setAsync(o, "value", "changed"));
+        for (Future<Void> f : futures) {
+            f.get();
+        }
+        q = q.q().f("value").eq("changed");
+        UncachedObject read = q.get();
+        assert (read != null) : "Not set";
+        assert (read.getCounter() == 11) : "Counter wrong: " + read.getCounter();
+
+        MorphiumSingleton.get().deleteAsync(MorphiumSingleton.get().createQueryFor(UncachedObject.class).f("counter").lte(50)).get();
+        q = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+        assert (q.countAll() == 50) : "Wrong count after delete: " + q.countAll();
+    }
+
+    @Test
+    public void storeListAsyncTest() throws Exception {
+        List<UncachedObject> lst = new ArrayList<UncachedObject>();
+        for (int i = 1; i <= 100; i++) {
+            UncachedObject o = new UncachedObject();
+            o.setCounter(i);
+            o.setValue("Async " + i);
+            lst.add(o);
+        }
+        MorphiumSingleton.get().storeListAsync(lst).get();
+        Query<UncachedObject> q = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+        assert (q.countAll() == 100) : "Not all stored: " + q.countAll();
+
+        //errors are thrown by get()
+        Future<Void> f = MorphiumSingleton.get().setAsync(lst.get(0), "nonexistent", "value");
+        try {
+            f.get();
+            assert (false) : "Error not propagated";
+        } catch (ExecutionException e) {
+            log.info("Got exception as expected: " + e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void newObjectLaneTest() throws Exception {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        StorageAdapter<Object> listener = new StorageAdapter<Object>() {
+            @Override
+            public void postStore(Object r, boolean isNew) {
+                try {
+                    //the id is already set
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                events.add("stored");
+            }
+
+            @Override
+            public void preUpdate(Class<Object> cls, Enum updateType) {
+                events.add("update");
+            }
+        };
+        MorphiumSingleton.get().addListener(listener);
+        try {
+            UncachedObject o = new UncachedObject();
+            o.setCounter(1);
+            Future<Void> stored = MorphiumSingleton.get().storeAsync(o);
+            long end = System.currentTimeMillis() + 5000;
+            while (o.getMongoId() == null && System.currentTimeMillis() < end) {
+                Thread.sleep(1);
+            }
+            assert (o.getMongoId() != null) : "Not stored";
+            //insert not finished yet - the update has to wait for it
+            MorphiumSingleton.get().incAsync(o, "counter", 1).get();
+            stored.get();
+        } finally {
+            MorphiumSingleton.get().removeListener(listener);
+        }
+        assert (events.size() == 2 && events.get(0).equals("stored")) : "Update overtook the insert: " + events;
+    }
+
+    @Test
+    public void accessDeniedTest() throws Exception {
+        UncachedObject o = new UncachedObject();
+        o.setCounter(1);
+        MorphiumSingleton.get().store(o);
+
+        MongoSecurityManager mgr = MorphiumSingleton.getConfig().getSecurityMgr();
+        MorphiumSingleton.getConfig().setSecurityMgr(new DenyingSecurityManager());
+        int denied = 0;
+        try {
+            Query<UncachedObject> q = MorphiumSingleton.get().createQueryFor(UncachedObject.class).f("counter").eq(1);
+            //checked in the calling thread, nothing is queued
+            try {
+                MorphiumSingleton.get().setAsync(o, "value", "denied");
+            } catch (SecurityException e) {
+                denied++;
+            }
+            try {
+                MorphiumSingleton.get().incAsync(o, "counter", 1);
+            } catch (SecurityException e) {
+                denied++;
+            }
+            try {
+                MorphiumSingleton.get().setAsync(q, "value", "denied");
+            } catch (SecurityException e) {
+                denied++;
+            }
+            try {
+                MorphiumSingleton.get().incAsync(q, "counter", 1);
+            } catch (SecurityException e) {
+                denied++;
+            }
+            try {
+                MorphiumSingleton.get().pushAsync(q, "list", "denied");
+            } catch (SecurityException e) {
+                denied++;
+            }
+            try {
+                MorphiumSingleton.get().deleteAsync(q);
+            } catch (SecurityException e) {
+                denied++;
+            }
+        } finally {
+            //Need to reset - otherwise test will fail (clearing of collections)
+            MorphiumSingleton.getConfig().setSecurityMgr(mgr);
+        }
+        assert (denied == 6) : "Not denied: " + (6 - denied);
+        Query<UncachedObject> q = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+        assert (q.countAll() == 1) : "Deleted";
+        assert (q.get().getCounter() == 1 && q.get().getValue() == null) : "Changed";
+    }
+}
@@ -1,7 +1,12 @@
 package de.caluga.test.mongo.suite;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import de.caluga.morphium.BatchWriteException;
 import de.caluga.morphium.MorphiumSingleton;
 import de.caluga.morphium.Query;
+import de.caluga.morphium.StorageAdapter;
+import de.caluga.morphium.WriteBufferPolicy;
 import org.junit.Test;
 
 import java.util.ArrayList;
@@ -48,4 +53,171 @@ public class BulkInsertTest extends MongoTest {
 
     }
 
+    @Test
+    public void bulkUpdate() throws Exception {
+        MorphiumSingleton.get().clearCollection(UncachedObject.class);
+        List<UncachedObject> lst = new ArrayList<UncachedObject>();
+        for (int i = 0; i < 1000; i++) {
+            UncachedObject uc = new UncachedObject();
+            uc.setCounter(i + 1);
+            uc.setValue("nix " + i);
+            lst.add(uc);
+        }
+        MorphiumSingleton.get().storeList(lst);
+
+        int batchSize = MorphiumSingleton.get().getConfig().getWriteBatchSize();
+        MorphiumSingleton.get().getConfig().setWriteBatchSize(300);
+        try {
+            //existing and new objects mixed
+            for (UncachedObject uc : lst) {
+                uc.setValue("updated " + uc.getCounter());
+            }
+            UncachedObject uc = new UncachedObject();
+            uc.setCounter(1001);
+            uc.setValue("updated 1001");
+            lst.add(uc);
+            long start = System.currentTimeMillis();
+            MorphiumSingleton.get().storeList(lst);
+            log.info("updating objects in batches took " + (System.currentTimeMillis() - start) + " ms");
+        } finally {
+            MorphiumSingleton.get().getConfig().setWriteBatchSize(batchSize);
+        }
+        Query<UncachedObject> q = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+        assert (q.countAll() == 1001) : "Wrong number of objects: " + q.countAll();
+        q = q.q();
+        q.f("value").eq("updated 500");
+        assert (q.countAll() == 1) : "Not updated";
+        q = q.q();
+        q.f("value").eq("nix 500");
+        assert (q.countAll() == 0) : "Old value still there";
+    }
+
+    @Test
+    public void writeBuffer() throws Exception {
+        MorphiumSingleton.get().clearCollection(CachedObject.class);
+        List<CachedObject> lst = new ArrayList<CachedObject>();
+        for (int i = 0; i < 100; i++) {
+            CachedObject co = new CachedObject();
+            co.setCounter(i + 1);
+            co.setValue("nix " + i);
+            lst.add(co);
+        }
+        MorphiumSingleton.get().storeList(lst);
+        waitForWrites();
+        for (CachedObject co : lst) {
+            assert (co.getId() != null) : "Id not set";
+        }
+
+        int timeout = MorphiumSingleton.get().getConfig().getWriteCacheTimeout();
+        MorphiumSingleton.get().getConfig().setWriteCacheTimeout(2000);
+        try {
+            //repeated stores of the same object are written once
+            for (int j = 0; j < 10; j++) {
+                for (CachedObject co : lst) {
+                    co.setValue("update " + j + " " + co.getCounter());
+                    MorphiumSingleton.get().store(co);
+                }
+            }
+            assert (MorphiumSingleton.get().writeBufferCount() <= 100) : "Writes not coalesced: " + MorphiumSingleton.get().writeBufferCount();
+            waitForWrites();
+        } finally {
+            MorphiumSingleton.get().getConfig().setWriteCacheTimeout(timeout);
+        }
+        Query<CachedObject> q = MorphiumSingleton.get().createQueryFor(CachedObject.class);
+        assert (q.countAll() == 100) : "Wrong number of objects: " + q.countAll();
+        q.f("value").eq("update 9 50");
+        assert (q.countAll() == 1) : "Last write did not win";
+    }
+
+    @Test
+    public void writeBufferInFlight() throws Exception {
+        MorphiumSingleton.get().clearCollection(CachedObject.class);
+        List<CachedObject> lst = new ArrayList<CachedObject>();
+        for (int i = 0; i < 100; i++) {
+            CachedObject co = new CachedObject();
+            co.setCounter(i + 1);
+            co.setValue("nix " + i);
+            lst.add(co);
+        }
+        MorphiumSingleton.get().storeList(lst);
+        waitForWrites();
+
+        int size = MorphiumSingleton.get().getConfig().getWriteBufferSize();
+        WriteBufferPolicy policy = MorphiumSingleton.get().getConfig().getWriteBufferPolicy();
+        MorphiumSingleton.get().getConfig().setWriteBufferSize(10);
+        MorphiumSingleton.get().getConfig().setWriteBufferPolicy(WriteBufferPolicy.CALLER_RUNS);
+        try {
+            //direct writes must not be overwritten by older states still being written
+            for (int j = 0; j < 5; j++) {
+                for (CachedObject co : lst) {
+                    co.setValue("caller " + j + " " + co.getCounter());
+                    MorphiumSingleton.get().store(co);
+                }
+            }
+            waitForWrites();
+            for (CachedObject co : lst) {
+                Query<CachedObject> q = MorphiumSingleton.get().createQueryFor(CachedObject.class);
+                q.f("value").eq("caller 4 " + co.getCounter());
+                assert (q.countAll() == 1) : "Last write did not win: " + co.getCounter();
+            }
+
+            //deleted objects must not be written back by a batch in flight
+            for (CachedObject co : lst) {
+                co.setValue("deleted");
+                MorphiumSingleton.get().store(co);
+                MorphiumSingleton.get().deleteObject(co);
+            }
+            waitForWrites();
+        } finally {
+            MorphiumSingleton.get().getConfig().setWriteBufferSize(size);
+            MorphiumSingleton.get().getConfig().setWriteBufferPolicy(policy);
+        }
+        Query<CachedObject> q = MorphiumSingleton.get().createQueryFor(CachedObject.class);
+        assert (q.countAll() == 0) : "Deleted objects written back: " + q.countAll();
+    }
+
+    @Test
+    public void bulkUpdatePartialFailure() throws Exception {
+        MorphiumSingleton.get().clearCollection(UncachedObject.class);
+        List<UncachedObject> lst = new ArrayList<UncachedObject>();
+        for (int i = 0; i < 10; i++) {
+            UncachedObject uc = new UncachedObject();
+            uc.setCounter(i);
+            uc.setValue("v" + i);
+            lst.add(uc);
+        }
+        MorphiumSingleton.get().storeList(lst);
+        DBCollection coll = MorphiumSingleton.get().getDatabase().getCollection(MorphiumSingleton.get().getConfig().getMapper().getCollectionName(UncachedObject.class));
+        coll.ensureIndex(new BasicDBObject("value", 1), "unique_value", true);
+        final List<Object> postStored = new ArrayList<Object>();
+        StorageAdapter<Object> listener = new StorageAdapter<Object>() {
+            @Override
+            public void postStore(Object r, boolean isNew) {
+                postStored.add(r);
+            }
+        };
+        MorphiumSingleton.get().addListener(listener);
+        try {
+            for (UncachedObject uc : lst) {
+                uc.setCounter(uc.getCounter() + 100);
+            }
+            //duplicate key in the middle of the batch
+            lst.get(3).setValue("v7");
+            MorphiumSingleton.get().storeList(lst);
+            assert (false) : "No exception thrown";
+        } catch (BatchWriteException e) {
+            assert (e.getFailed().size() == 1) : "Wrong failed objects: " + e.getFailed();
+            assert (e.getFailed().get(0) == lst.get(3)) : "Wrong object failed";
+            assert (e.getErrors().size() == 1) : "Wrong errors: " + e.getErrors();
+        } finally {
+            MorphiumSingleton.get().removeListener(listener);
+            coll.dropIndex("unique_value");
+        }
+        assert (postStored.size() == 9) : "postStore for failed object: " + postStored.size();
+        assert (!postStored.contains(lst.get(3))) : "postStore for failed object";
+        Query<UncachedObject> q = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+        q.f("counter").gte(100);
+        assert (q.countAll() == 9) : "Other objects not written: " + q.countAll();
+    }
+
 }
@@ -0,0 +1,110 @@
+package de.caluga.test.mongo.suite;
+
+import com.mongodb.BasicDBObject;
+import de.caluga.morphium.MorphiumSingleton;
+import de.caluga.morphium.Query;
+import de.caluga.morphium.StatisticKeys;
+import de.caluga.morphium.annotations.Entity;
+import de.caluga.morphium.annotations.Id;
+import de.caluga.morphium.annotations.caching.Cache;
+import de.caluga.morphium.cache.CacheKey;
+import de.caluga.morphium.cache.MorphiumCacheImpl;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the limits of the cache: number of entries and memory budget
+ */
+public class CacheLimitTest extends MongoTest {
+
+    @Test
+    public void memoryBudgetTest() throws Exception {
+        for (int i = 1; i < 200; i++) {
+            CachedObject u = new CachedObject();
+            u.setCounter(i);
+            u.setValue("Counter = " + i);
+            MorphiumSingleton.get().store(u);
+        }
+        waitForWrites();
+
+        long old = MorphiumSingleton.get().getConfig().getMaxCacheMemory();
+        MorphiumSingleton.get().getConfig().setMaxCacheMemory(20000);
+        try {
+            MorphiumSingleton.get().resetCache();
+            for (int i = 1; i < 200; i++) {
+                Query<CachedObject> q = MorphiumSingleton.get().createQueryFor(CachedObject.class);
+                q = q.f("counter").lt(i);
+                List<CachedObject> lst = q.asList();
+                assert (lst.size() == i - 1) : "Size wrong: " + lst.size();
+                assert (MorphiumSingleton.get().getCache().getEstimatedMemory() <= 20000) : "Budget exceeded: " + MorphiumSingleton.get().getCache().getEstimatedMemory();
+            }
+            Double mem = MorphiumSingleton.get().getStatistics().get(StatisticKeys.CACHE_MEMORY.name());
+            assert (mem != null && mem > 0) : "No memory statistics";
+        } finally {
+            MorphiumSingleton.get().getConfig().setMaxCacheMemory(old);
+            MorphiumSingleton.get().resetCache();
+        }
+    }
+
+    @Test
+    public void evictedResultsUnreachableTest() throws Exception {
+        MorphiumCacheImpl cache = new MorphiumCacheImpl();
+        cache.setMorphium(MorphiumSingleton.get());
+        List<WeakReference<List<BudgetObject>>> refs = new ArrayList<WeakReference<List<BudgetObject>>>();
+        for (int i = 0; i < 200; i++) {
+            List<BudgetObject> lst = new ArrayList<BudgetObject>();
+            for (int j = 0; j < 10; j++) {
+                BudgetObject o = new BudgetObject();
+                o.setId(new ObjectId());
+                o.setValue("Value " + i + "/" + j);
+                lst.add(o);
+            }
+            refs.add(new WeakReference<List<BudgetObject>>(lst));
+            cache.addToCache(new CacheKey(new BasicDBObject("i", i), null, 0, 0), BudgetObject.class, lst);
+            assert (cache.getEstimatedMemory() <= 20000) : "Budget exceeded: " + cache.getEstimatedMemory();
+        }
+        int cached = cache.getSizes().get(BudgetObject.class);
+        assert (cached > 0 && cached < 200) : "Wrong number of cached results: " + cached;
+
+        //evicted results must not be referenced by the cache anymore
+        int reachable = 0;
+        for (int tries = 0; tries < 10; tries++) {
+            System.gc();
+            Thread.sleep(100);
+            reachable = 0;
+            for (WeakReference<List<BudgetObject>> r : refs) {
+                if (r.get() != null) reachable++;
+            }
+            if (reachable == cached) break;
+        }
+        assert (reachable == cached) : "Evicted results still reachable: " + (reachable - cached);
+    }
+
+    @Entity
+    @Cache(maxBytes = 20000)
+    public static class BudgetObject {
+        @Id
+        private ObjectId id;
+        private String value;
+
+        public ObjectId getId() {
+            return id;
+        }
+
+        public void setId(ObjectId id) {
+            this.id = id;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public void setValue(String value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package de.caluga.test.mongo.suite;
+
+import com.mongodb.BasicDBObject;
+import de.caluga.morphium.MorphiumSingleton;
+import de.caluga.morphium.Query;
+import de.caluga.morphium.annotations.Entity;
+import de.caluga.morphium.annotations.Id;
+import de.caluga.morphium.annotations.caching.Cache;
+import de.caluga.morphium.cache.CacheKey;
+import de.caluga.morphium.cache.MorphiumCacheImpl;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for loading through the cache (getOrLoad): refresh ahead, stale while revalidate and cached "not found"
+ */
+public class CacheLoadingTest extends MongoTest {
+
+    private MorphiumCacheImpl createCache() {
+        MorphiumCacheImpl cache = new MorphiumCacheImpl();
+        cache.setMorphium(MorphiumSingleton.get());
+        return cache;
+    }
+
+    private CacheKey key() {
+        return new CacheKey(new BasicDBObject("counter", 1), null, 0, 0);
+    }
+
+    /**
+     * loader returning one object, its counter is the number of the load
+     */
+    private <T extends Loaded> Callable<List<T>> loader(final Class<T> type, final AtomicInteger loads) {
+        return new Callable<List<T>>() {
+            @Override
+            public List<T> call() throws Exception {
+                T o = type.newInstance();
+                o.setId(new ObjectId());
+                o.setCounter(loads.incrementAndGet());
+                List<T> ret = new ArrayList<T>();
+                ret.add(o);
+                return ret;
+            }
+        };
+    }
+
+    private void waitFor(AtomicInteger loads, int expected) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (loads.get() < expected && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void refreshAheadTest() throws Exception {
+        MorphiumCacheImpl cache = createCache();
+        AtomicInteger loads = new AtomicInteger();
+        Callable<List<RefreshAheadObject>> loader = loader(RefreshAheadObject.class, loads);
+        long start = System.currentTimeMillis();
+        List<RefreshAheadObject> first = cache.getOrLoad(RefreshAheadObject.class, key(), loader);
+        assert (first.get(0).getCounter() == 1) : "Not loaded";
+        assert (cache.getOrLoad(RefreshAheadObject.class, key(), loader) == first) : "Not cached";
+
+        //older than refreshAhead - the cached result is returned, the reload runs in background
+        Thread.sleep(1700);
+        assert (cache.getOrLoad(RefreshAheadObject.class, key(), loader) == first) : "Did not return the cached result";
+        waitFor(loads, 2);
+        Thread.sleep(100);
+        assert (loads.get() == 2) : "Not refreshed: " + loads.get();
+        List<RefreshAheadObject> refreshed = cache.getOrLoad(RefreshAheadObject.class, key(), loader);
+        assert (System.currentTimeMillis() - start < 3000) : "Test too slow - the entry expired";
+        //reloaded before the timeout - no load in the calling thread
+        assert (refreshed.get(0).getCounter() == 2) : "Refreshed result not cached: " + refreshed.get(0).getCounter();
+        assert (loads.get() == 2) : "Loaded again: " + loads.get();
+    }
+
+    @Test
+    public void failedRefreshTest() throws Exception {
+        MorphiumCacheImpl cache = createCache();
+        final AtomicInteger loads = new AtomicInteger();
+        final Callable<List<RefreshAheadObject>> ok = loader(RefreshAheadObject.class, loads);
+        Callable<List<RefreshAheadObject>> failing = new Callable<List<RefreshAheadObject>>() {
+            @Override
+            public List<RefreshAheadObject> call() throws Exception {
+                if (loads.get() > 0) {
+                    loads.incrementAndGet();
+                    throw new RuntimeException("Refresh failed");
+                }
+                return ok.call();
+            }
+        };
+        List<RefreshAheadObject> first = cache.getOrLoad(RefreshAheadObject.class, key(), failing);
+        Thread.sleep(1700);
+        assert (cache.getOrLoad(RefreshAheadObject.class, key(), failing) == first) : "Did not return the cached result";
+        waitFor(loads, 2);
+        Thread.sleep(100);
+        assert (loads.get() == 2) : "Refresh not run: " + loads.get();
+        //old value kept
+        assert (cache.getFromCache(RefreshAheadObject.class, key()) == first) : "Cached result lost";
+        assert (cache.getOrLoad(RefreshAheadObject.class, key(), failing) == first) : "Cached result lost";
+    }
+
+    @Test
+    public void staleWhileRevalidateTest() throws Exception {
+        final MorphiumCacheImpl cache = createCache();
+        final AtomicInteger loads = new AtomicInteger();
+        final Callable<List<StaleObject>> fast = loader(StaleObject.class, loads);
+        final Callable<List<StaleObject>> slow = new Callable<List<StaleObject>>() {
+            @Override
+            public List<StaleObject> call() throws Exception {
+                Thread.sleep(500);
+                return fast.call();
+            }
+        };
+        List<StaleObject> first = cache.getOrLoad(StaleObject.class, key(), fast);
+        //expired, but within the grace period
+        Thread.sleep(300);
+
+        final CountDownLatch go = new CountDownLatch(1);
+        ExecutorService ex = Executors.newFixedThreadPool(10);
+        try {
+            List<Future<List<StaleObject>>> reads = new ArrayList<Future<List<StaleObject>>>();
+            for (int i = 0; i < 10; i++) {
+                reads.add(ex.submit(new Callable<List<StaleObject>>() {
+                    @Override
+                    public List<StaleObject> call() throws Exception {
+                        go.await();
+                        long start = System.currentTimeMillis();
+                        List<StaleObject> ret = cache.getOrLoad(StaleObject.class, key(), slow);
+                        assert (System.currentTimeMillis() - start < 400) : "Waited for the reload";
+                        return ret;
+                    }
+                }));
+            }
+            go.countDown();
+            for (Future<List<StaleObject>> f : reads) {
+                assert (f.get() == first) : "Stale result not served";
+            }
+        } finally {
+            ex.shutdown();
+        }
+        waitFor(loads, 2);
+        Thread.sleep(100);
+        //exactly one reload
+        assert (loads.get() == 2) : "Wrong number of loads: " + loads.get();
+        List<StaleObject> reloaded = cache.getOrLoad(StaleObject.class, key(), fast);
+        assert (reloaded.get(0).getCounter() == 2) : "Reloaded result not cached";
+
+        //older than timeout and grace period - loaded in the calling thread
+        Thread.sleep(1300);
+        List<StaleObject> lst = cache.getOrLoad(StaleObject.class, key(), fast);
+        assert (lst.get(0).getCounter() == 3) : "Too old result served: " + lst.get(0).getCounter();
+    }
+
+    @Test
+    public void negativeTimeoutTest() throws Exception {
+        MorphiumCacheImpl cache = createCache();
+        final AtomicInteger loads = new AtomicInteger();
+        Callable<List<NegativeObject>> notFound = new Callable<List<NegativeObject>>() {
+            @Override
+            public List<NegativeObject> call() throws Exception {
+                loads.incrementAndGet();
+                return null;
+            }
+        };
+        assert (cache.getOrLoad(NegativeObject.class, key(), notFound) == null) : "Found something";
+        assert (loads.get() == 1) : "Not loaded";
+        //"not found" is cached as empty result
+        List<NegativeObject> lst = cache.getOrLoad(NegativeObject.class, key(), notFound);
+        assert (lst != null && lst.isEmpty()) : "Not found not cached";
+        assert (loads.get() == 1) : "Loaded again: " + loads.get();
+
+        //expired after negativeTimeout, although timeout is much longer
+        Thread.sleep(400);
+        assert (cache.getFromCache(NegativeObject.class, key()) == null) : "Not found still cached";
+        cache.getOrLoad(NegativeObject.class, key(), notFound);
+        assert (loads.get() == 2) : "Not loaded again: " + loads.get();
+
+        //types without negativeTimeout do not cache "not found"
+        loads.set(0);
+        Callable<List<StaleObject>> none = new Callable<List<StaleObject>>() {
+            @Override
+            public List<StaleObject> call() throws Exception {
+                loads.incrementAndGet();
+                return null;
+            }
+        };
+        cache.getOrLoad(StaleObject.class, key(), none);
+        assert (cache.getOrLoad(StaleObject.class, key(), none) == null) : "Not found cached";
+        assert (loads.get() == 2) : "Wrong number of loads: " + loads.get();
+    }
+
+    @Test
+    public void getAndAsListTest() throws Exception {
+        MorphiumSingleton.get().clearCollection(RefreshAheadObject.class);
+        for (int i = 0; i < 5; i++) {
+            RefreshAheadObject o = new RefreshAheadObject();
+            o.setCounter(i);
+            MorphiumSingleton.get().store(o);
+        }
+        final Query<RefreshAheadObject> q = MorphiumSingleton.get().createQueryFor(RefreshAheadObject.class).sort("counter");
+        assert (q.asList().size() == 5) : "Wrong result";
+        assert (q.get().getCounter() == 0) : "Wrong first";
+        assert (q.asList().size() == 5) : "Result of get() returned by asList()";
+
+        //refreshed ahead - get() must not replace the result of asList()
+        Thread.sleep(1700);
+        q.get();
+        Thread.sleep(500);
+        assert (q.asList().size() == 5) : "Result replaced by refresh of get()";
+        q.asList();
+        Thread.sleep(500);
+        assert (q.get().getCounter() == 0) : "Wrong first after refresh";
+
+        //concurrent loads are not coalesced
+        MorphiumSingleton.get().getCache().clearCachefor(RefreshAheadObject.class);
+        ExecutorService ex = Executors.newFixedThreadPool(10);
+        try {
+            List<Future<Integer>> sizes = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 10; i++) {
+                final boolean first = i % 2 == 0;
+                sizes.add(ex.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return first ? (q.get() == null ? 0 : 1) : q.asList().size();
+                    }
+                }));
+            }
+            for (int i = 0; i < 10; i++) {
+                int expected = i % 2 == 0 ? 1 : 5;
+                assert (sizes.get(i).get() == expected) : "Wrong result size: " + sizes.get(i).get();
+            }
+        } finally {
+            ex.shutdown();
+            MorphiumSingleton.get().clearCollection(RefreshAheadObject.class);
+        }
+    }
+
+    public static class Loaded {
+        @Id
+        private ObjectId id;
+        private int counter;
+
+        public ObjectId getId() {
+            return id;
+        }
+
+        public void setId(ObjectId id) {
+            this.id = id;
+        }
+
+        public int getCounter() {
+            return counter;
+        }
+
+        public void setCounter(int counter) {
+            this.counter = counter;
+        }
+    }
+
+    @Entity
+    @Cache(timeout = 3000, refreshAhead = 50)
+    public static class RefreshAheadObject extends Loaded {
+    }
+
+    @Entity
+    @Cache(timeout = 200, staleWhileRevalidate = 1000)
+    public static class StaleObject extends Loaded {
+    }
+
+    @Entity
+    @Cache(timeout = 60000, negativeTimeout = 200)
+    public static class NegativeObject extends Loaded {
+    }
+}
@@ -0,0 +1,167 @@
+package de.caluga.test.mongo.suite;
+
+import com.mongodb.BasicDBObject;
+import de.caluga.morphium.Morphium;
+import de.caluga.morphium.MorphiumSingleton;
+import de.caluga.morphium.annotations.Entity;
+import de.caluga.morphium.annotations.Id;
+import de.caluga.morphium.annotations.caching.Cache;
+import de.caluga.morphium.cache.CacheElement;
+import de.caluga.morphium.cache.CacheKey;
+import de.caluga.morphium.cache.MorphiumCacheImpl;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+/**
+ * Tests for the segmented query cache: eviction by maxEntries and strategy, expiry
+ */
+public class CacheSegmentTest extends MongoTest {
+
+    private MorphiumCacheImpl createCache() {
+        MorphiumCacheImpl cache = new MorphiumCacheImpl();
+        cache.setMorphium(MorphiumSingleton.get());
+        return cache;
+    }
+
+    private CacheKey key(int i) {
+        return new CacheKey(new BasicDBObject("counter", i), null, 0, 0);
+    }
+
+    private <T extends Limited> List<T> result(Class<T> type, int i) throws Exception {
+        T o = type.newInstance();
+        o.setId(new ObjectId());
+        o.setCounter(i);
+        List<T> ret = new ArrayList<T>();
+        ret.add(o);
+        return ret;
+    }
+
+    @Test
+    public void fifoEvictionTest() throws Exception {
+        MorphiumCacheImpl cache = createCache();
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        for (int i = 0; i < 100; i++) {
+            //age is measured in ms
+            Thread.sleep(1);
+            List<FifoObject> lst = result(FifoObject.class, i);
+            ids.add(lst.get(0).getId());
+            cache.addToCache(key(i), FifoObject.class, lst);
+            assert (cache.getSizes().get(FifoObject.class) <= 10) : "maxEntries exceeded: " + cache.getSizes().get(FifoObject.class);
+        }
+        assert (cache.getSizes().get(FifoObject.class) == 10) : "Wrong size: " + cache.getSizes().get(FifoObject.class);
+        //the oldest entries are evicted
+        for (int i = 0; i < 90; i++) {
+            assert (cache.getFromCache(FifoObject.class, key(i)) == null) : "Not evicted: " + i;
+            //objects of evicted results are removed from the id cache
+            assert (cache.getFromIDCache(FifoObject.class, ids.get(i)) == null) : "Still in id cache: " + i;
+        }
+        for (int i = 90; i < 100; i++) {
+            List<FifoObject> lst = cache.getFromCache(FifoObject.class, key(i));
+            assert (lst != null && lst.get(0).getCounter() == i) : "Evicted: " + i;
+            assert (cache.getFromIDCache(FifoObject.class, ids.get(i)) == lst.get(0)) : "Not in id cache: " + i;
+        }
+    }
+
+    @Test
+    public void lruEvictionTest() throws Exception {
+        MorphiumCacheImpl cache = createCache();
+        for (int i = 0; i < 10; i++) {
+            cache.addToCache(key(i), LruObject.class, result(LruObject.class, i));
+        }
+        for (int i = 10; i < 100; i++) {
+            Thread.sleep(1);
+            //keep the first one in use
+            assert (cache.getFromCache(LruObject.class, key(0)) != null) : "Recently used entry evicted at " + i;
+            cache.addToCache(key(i), LruObject.class, result(LruObject.class, i));
+        }
+        assert (cache.getSizes().get(LruObject.class) == 10) : "Wrong size: " + cache.getSizes().get(LruObject.class);
+        assert (cache.getFromCache(LruObject.class, key(1)) == null) : "Least recently used entry not evicted";
+    }
+
+    @Test
+    public void expiryTest() throws Exception {
+        MorphiumCacheImpl cache = createCache();
+        cache.addToCache(key(1), FifoObject.class, result(FifoObject.class, 1));
+        cache.addToCache(key(2), FifoObject.class, result(FifoObject.class, 2));
+        Thread.sleep(100);
+        //replaced - the new element must not be expired with the old one
+        List<FifoObject> replaced = result(FifoObject.class, 3);
+        cache.addToCache(key(1), FifoObject.class, replaced);
+        cache.expire(FifoObject.class, 50);
+        assert (cache.getFromCache(FifoObject.class, key(2)) == null) : "Not expired";
+        assert (cache.getFromCache(FifoObject.class, key(1)) == replaced) : "Replaced element expired";
+        assert (cache.getSizes().get(FifoObject.class) == 1) : "Wrong size: " + cache.getSizes().get(FifoObject.class);
+
+        //removed and added again
+        Thread.sleep(100);
+        cache.removeFromCache(FifoObject.class, key(1));
+        cache.addToCache(key(1), FifoObject.class, replaced);
+        cache.expire(FifoObject.class, 50);
+        assert (cache.getFromCache(FifoObject.class, key(1)) == replaced) : "Re-added element expired";
+
+        Thread.sleep(100);
+        cache.expire(FifoObject.class, 50);
+        assert (cache.getFromCache(FifoObject.class, key(1)) == null) : "Not expired";
+        assert (cache.getSizes().get(FifoObject.class) == 0) : "Wrong size: " + cache.getSizes().get(FifoObject.class);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void deprecatedApiTest() throws Exception {
+        Morphium m = MorphiumSingleton.get();
+        m.resetCache();
+        List<FifoObject> lst = result(FifoObject.class, 1);
+        m.addToCache("legacy key", FifoObject.class, lst);
+        assert (m.getFromCache(FifoObject.class, "legacy key") == lst) : "Not cached by string";
+        m.addToCache(key(2), FifoObject.class, result(FifoObject.class, 2));
+
+        Hashtable<Class<? extends Object>, Hashtable<String, CacheElement>> snapshot = m.cloneCache();
+        assert (snapshot.get(FifoObject.class).size() == 2) : "Wrong snapshot: " + snapshot;
+        assert (snapshot.get(FifoObject.class).get("legacy key").getFound() == lst) : "Wrong key in snapshot";
+        Hashtable<Class<? extends Object>, Hashtable<ObjectId, Object>> ids = m.cloneIdCache();
+        assert (ids.get(FifoObject.class).get(lst.get(0).getId()) == lst.get(0)) : "Not in id snapshot";
+
+        //a snapshot can be set again
+        m.resetCache();
+        m.setCache(snapshot);
+        assert (m.getFromCache(FifoObject.class, "legacy key") == lst) : "Not restored";
+        m.setCache(new Hashtable<Class<? extends Object>, Hashtable<String, CacheElement>>());
+        assert (m.getFromCache(FifoObject.class, "legacy key") == null) : "Not cleared";
+    }
+
+    public static class Limited {
+        @Id
+        private ObjectId id;
+        private int counter;
+
+        public ObjectId getId() {
+            return id;
+        }
+
+        public void setId(ObjectId id) {
+            this.id = id;
+        }
+
+        public int getCounter() {
+            return counter;
+        }
+
+        public void setCounter(int counter) {
+            this.counter = counter;
+        }
+    }
+
+    @Entity
+    @Cache(maxEntries = 10, strategy = Cache.ClearStrategy.FIFO)
+    public static class FifoObject extends Limited {
+    }
+
+    @Entity
+    @Cache(maxEntries = 10, strategy = Cache.ClearStrategy.LRU)
+    public static class LruObject extends Limited {
+    }
+}
@@ -14,6 +14,8 @@ import de.caluga.morphium.messaging.Msg;
 import org.bson.types.ObjectId;
 import org.junit.Test;
 
+import java.util.List;
+
 /**
  * User: Stephan Bösebeck
  * Date: 12.06.12
@@ -168,6 +170,39 @@ public class CacheSyncTest extends MongoTest {
     }
 
 
+    @Test
+    public void updateEntryTest() throws Exception {
+        MorphiumSingleton.get().dropCollection(IdCachedObject.class);
+        for (int i = 0; i < 10; i++) {
+            IdCachedObject o = new IdCachedObject();
+            o.setCounter(i);
+            o.setValue("a value");
+            MorphiumSingleton.get().store(o);
+        }
+        waitForWrites();
+        Query<IdCachedObject> q = MorphiumSingleton.get().createQueryFor(IdCachedObject.class);
+        q = q.f("value").eq("a value").sort("counter");
+        List<IdCachedObject> lst = q.asList();
+        assert (lst.size() == 10) : "Wrong size: " + lst.size();
+        Query<IdCachedObject> other = MorphiumSingleton.get().createQueryFor(IdCachedObject.class);
+        other.f("counter").gt(100).asList();
+        int entries = MorphiumSingleton.get().getCache().getSizes().get(IdCachedObject.class);
+
+        //storing another instance patches the cached result
+        IdCachedObject upd = new IdCachedObject();
+        upd.setId(lst.get(3).getId());
+        upd.setCounter(3);
+        upd.setValue("a value");
+        MorphiumSingleton.get().store(upd);
+        waitForWrites();
+
+        assert (MorphiumSingleton.get().getCache().getSizes().get(IdCachedObject.class) == entries) : "Results were dropped";
+        List<IdCachedObject> cached = q.asList();
+        assert (cached.get(3) == upd) : "Object not replaced";
+        assert (lst.get(3) != upd) : "List returned earlier was modified";
+        assert (MorphiumSingleton.get().findById(IdCachedObject.class, upd.getId()) == upd) : "Id cache not updated";
+    }
+
     @Cache(readCache = true, writeCache = true, syncCache = Cache.SyncCacheStrategy.UPDATE_ENTRY)
     @WriteSafety(waitForJournalCommit = true, level = SafetyLevel.WAIT_FOR_ALL_SLAVES)
     public static class IdCachedObject extends CachedObject {
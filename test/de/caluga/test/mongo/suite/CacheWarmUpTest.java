@@ -0,0 +1,90 @@
+package de.caluga.test.mongo.suite;
+
+import de.caluga.morphium.MorphiumSingleton;
+import de.caluga.morphium.Query;
+import de.caluga.morphium.cache.CacheKey;
+import de.caluga.morphium.cache.CacheWarmUp;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for writing cache snapshots and warming up the cache
+ */
+public class CacheWarmUpTest extends MongoTest {
+
+    private void createTestData() {
+        for (int i = 1; i <= 100; i++) {
+            CachedObject u = new CachedObject();
+            u.setCounter(i);
+            u.setValue("Counter = " + i);
+            MorphiumSingleton.get().store(u);
+        }
+        waitForWrites();
+    }
+
+    @Test
+    public void snapshotTest() throws Exception {
+        createTestData();
+        MorphiumSingleton.get().resetCache();
+        List<CacheKey> keys = new ArrayList<CacheKey>();
+        for (int i = 1; i < 10; i++) {
+            Query<CachedObject> q = MorphiumSingleton.get().createQueryFor(CachedObject.class);
+            q = q.f("counter").lt(i * 10).sort("-counter");
+            q.asList();
+            q.asList();
+            keys.add(MorphiumSingleton.get().getCacheKey(q));
+        }
+        File f = File.createTempFile("cache_snapshot", ".bson");
+        f.deleteOnExit();
+        MorphiumSingleton.get().writeCacheSnapshot(f);
+        assert (f.length() > 0) : "Snapshot empty";
+
+        MorphiumSingleton.get().resetCache();
+        CacheWarmUp w = new CacheWarmUp(MorphiumSingleton.get());
+        w.replay(f);
+        assert (w.waitUntilWarm(10000)) : "Warm up did not finish";
+        for (CacheKey k : keys) {
+            assert (MorphiumSingleton.get().getCache().isCached(CachedObject.class, k)) : "Not cached after replay: " + k;
+        }
+    }
+
+    @Test
+    public void snapshotTypesTest() throws Exception {
+        createTestData();
+        MorphiumSingleton.get().resetCache();
+        //long values must not become integers - the key would differ
+        Query<CachedObject> q = MorphiumSingleton.get().createQueryFor(CachedObject.class);
+        q = q.f("counter").lt(50L);
+        assert (q.asList().size() == 49) : "Wrong result";
+        q.asList();
+        CacheKey k = MorphiumSingleton.get().getCacheKey(q);
+        File f = File.createTempFile("cache_snapshot", ".bson");
+        f.deleteOnExit();
+        MorphiumSingleton.get().writeCacheSnapshot(f);
+
+        MorphiumSingleton.get().resetCache();
+        CacheWarmUp w = new CacheWarmUp(MorphiumSingleton.get());
+        w.replay(f);
+        assert (w.waitUntilWarm(10000)) : "Warm up did not finish";
+        assert (MorphiumSingleton.get().getCache().isCached(CachedObject.class, k)) : "Not cached after replay: " + k;
+    }
+
+    @Test
+    public void templateTest() throws Exception {
+        createTestData();
+        MorphiumSingleton.get().resetCache();
+        List<Query<CachedObject>> templates = new ArrayList<Query<CachedObject>>();
+        for (int i = 1; i < 10; i++) {
+            templates.add(MorphiumSingleton.get().createQueryFor(CachedObject.class).f("counter").eq(i));
+        }
+        MorphiumSingleton.get().warmUpCache(templates);
+        assert (MorphiumSingleton.get().waitForCacheWarmUp(10000)) : "Warm up did not finish";
+        assert (MorphiumSingleton.get().isCacheWarm());
+        for (Query<CachedObject> q : templates) {
+            assert (MorphiumSingleton.get().getCache().isCached(CachedObject.class, MorphiumSingleton.get().getCacheKey(q))) : "Not cached: " + q.toQueryObject();
+        }
+    }
+}
@@ -2,6 +2,8 @@ package de.caluga.test.mongo.suite;
 
 import de.caluga.morphium.MorphiumSingleton;
 import de.caluga.morphium.annotations.Entity;
+import de.caluga.morphium.annotations.caching.Cache;
+import de.caluga.morphium.annotations.caching.NoCache;
 import org.junit.Test;
 
 /**
@@ -32,5 +34,19 @@ public class HierarchyTest extends MongoTest {
         assert (!n.equals("uncached_object")) : "Wrong collection name!";
     }
 
+    @Test
+    public void testAnnotationFromHierarchy() throws Exception {
+        Cache c = MorphiumSingleton.get().getAnnotationFromHierarchy(SmallCacheObject.class, Cache.class);
+        assert (c != null && c.maxEntries() == 7) : "Annotation of subclass not used";
+        assert (MorphiumSingleton.get().getAnnotationFromHierarchy(SmallCacheObject.class, Cache.class) == c) : "Not cached";
+        assert (MorphiumSingleton.get().getAnnotationFromHierarchy(CachedObject.class, Cache.class).maxEntries() == 20000) : "Wrong annotation for super class";
+        assert (MorphiumSingleton.get().isAnnotationPresentInHierarchy(SmallCacheObject.class, Entity.class)) : "Entity not found";
+        assert (!MorphiumSingleton.get().isAnnotationPresentInHierarchy(SmallCacheObject.class, NoCache.class)) : "NoCache found?";
+    }
+
+    @Cache(maxEntries = 7)
+    public static class SmallCacheObject extends CachedObject {
+    }
+
 
 }
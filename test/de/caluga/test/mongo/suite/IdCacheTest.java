@@ -44,4 +44,42 @@ public class IdCacheTest extends MongoTest {
 
         assert (lst.get(0) == c) : "Object changed?!?!?";
     }
+
+    @Test
+    public void normalizedTest() throws Exception {
+        MorphiumSingleton.get().clearCollection(NormalizedCachedObject.class);
+        for (int i = 1; i < 100; i++) {
+            NormalizedCachedObject u = new NormalizedCachedObject();
+            u.setCounter(i);
+            u.setValue("Counter = " + i);
+            MorphiumSingleton.get().store(u);
+        }
+
+        waitForWrites();
+
+        Query<NormalizedCachedObject> q = MorphiumSingleton.get().createQueryFor(NormalizedCachedObject.class);
+        q = q.f("counter").lt(30);
+        List<NormalizedCachedObject> lst = q.asList();
+        assert (lst.size() == 29) : "Size matters! " + lst.size();
+
+        Query<NormalizedCachedObject> q2 = MorphiumSingleton.get().createQueryFor(NormalizedCachedObject.class);
+        q2 = q2.f("counter").lt(10);
+        List<NormalizedCachedObject> lst2 = q2.asList();
+        assert (lst2.size() == 9) : "Size matters! " + lst2.size();
+
+        //objects are only stored once
+        NormalizedCachedObject c = MorphiumSingleton.get().findById(NormalizedCachedObject.class, lst2.get(0).getId());
+        assert (lst2.get(0) == c) : "Object differ?";
+        List<NormalizedCachedObject> cached = q.asList();
+        assert (cached.size() == 29) : "Cached size wrong: " + cached.size();
+        assert (cached.contains(c)) : "Object not in cached result";
+
+        //removing the object invalidates both results, but no others
+        Query<NormalizedCachedObject> q3 = MorphiumSingleton.get().createQueryFor(NormalizedCachedObject.class);
+        q3 = q3.f("counter").gt(90);
+        q3.asList();
+        MorphiumSingleton.get().removeEntryFromCache(NormalizedCachedObject.class, c.getId());
+        assert (MorphiumSingleton.get().getCache().getSizes().get(NormalizedCachedObject.class) == 1) : "Wrong number of cache entries: " + MorphiumSingleton.get().getCache().getSizes().get(NormalizedCachedObject.class);
+        assert (q.asList().size() == 29) : "Reread failed";
+    }
 }
@@ -4,14 +4,14 @@
  */
 package de.caluga.test.mongo.suite;
 
-import de.caluga.morphium.MorphiumSingleton;
-import de.caluga.morphium.Query;
+import de.caluga.morphium.*;
 import org.apache.log4j.Logger;
 import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author stephan
@@ -194,5 +194,55 @@ public class MassCacheTest extends MongoTest {
         printStats();
     }
 
+    @Test
+    public void parallelMissTest() throws Exception {
+        for (int j = 0; j < NO_OBJECTS; j++) {
+            CachedObject o = new CachedObject();
+            o.setCounter(j + 1);
+            o.setValue("Test " + j);
+            MorphiumSingleton.get().store(o);
+        }
+        waitForWrites();
+        MorphiumSingleton.get().resetCache();
+
+        final AtomicInteger reads = new AtomicInteger();
+        ProfilingListener pl = new ProfilingListener() {
+            @Override
+            public void readAccess(Query query, long time, ReadAccessType t) {
+                if (query.getType().equals(CachedObject.class)) {
+                    reads.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void writeAccess(Class type, Object o, long time, boolean isNew, WriteAccessType t) {
+            }
+        };
+        MorphiumSingleton.get().addProfilingListener(pl);
+        try {
+            ArrayList<Thread> thr = new ArrayList<Thread>();
+            for (int i = 0; i < READING_THREADS * 4; i++) {
+                Thread t = new Thread() {
+                    public void run() {
+                        Query<CachedObject> q = MorphiumSingleton.get().createQueryFor(CachedObject.class);
+                        q.f("counter").lt(NO_OBJECTS / 2);
+                        List<CachedObject> lst = q.asList();
+                        assert (lst.size() == NO_OBJECTS / 2 - 1) : "Wrong size: " + lst.size();
+                    }
+                };
+                t.start();
+                thr.add(t);
+            }
+            for (Thread t : thr) {
+                t.join();
+            }
+            //all threads missed at about the same time, but the result might have been cached before some started
+            assert (reads.get() >= 1 && reads.get() < READING_THREADS * 4) : "Not coalesced: " + reads.get() + " reads";
+            log.info("Reads for " + thr.size() + " threads: " + reads.get());
+        } finally {
+            MorphiumSingleton.get().removeProfilingListener(pl);
+        }
+    }
+
 
 }
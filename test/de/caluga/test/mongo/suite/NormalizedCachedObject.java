@@ -0,0 +1,50 @@
+package de.caluga.test.mongo.suite;
+
+import de.caluga.morphium.annotations.Entity;
+import de.caluga.morphium.annotations.Id;
+import de.caluga.morphium.annotations.Index;
+import de.caluga.morphium.annotations.caching.Cache;
+import org.bson.types.ObjectId;
+
+/**
+ * cached object, query results only store the ids
+ */
+@Cache(clearOnWrite = true, maxEntries = 20000, readCache = true, normalized = true, strategy = Cache.ClearStrategy.LRU, timeout = 5000)
+@Entity
+public class NormalizedCachedObject {
+    @Index
+    private String value;
+    @Index
+    private int counter;
+
+    @Id
+    private ObjectId id;
+
+    public int getCounter() {
+        return counter;
+    }
+
+    public void setCounter(int counter) {
+        this.counter = counter;
+    }
+
+    public ObjectId getId() {
+        return id;
+    }
+
+    public void setId(ObjectId id) {
+        this.id = id;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public void setValue(String value) {
+        this.value = value;
+    }
+
+    public String toString() {
+        return "Counter: " + counter + " Value: " + value + " MongoId: " + id;
+    }
+}
@@ -1,9 +1,15 @@
 package de.caluga.test.mongo.suite;
 
-import com.mongodb.BasicDBObject;
-import com.mongodb.DBObject;
-import de.caluga.morphium.MorphiumSingleton;
-import de.caluga.morphium.ObjectMapperImpl;
+import com.mongodb.*;
+import de.caluga.morphium.*;
+import de.caluga.morphium.annotations.Entity;
+import de.caluga.morphium.annotations.Id;
+import de.caluga.morphium.annotations.LastChange;
+import de.caluga.morphium.annotations.Lazy;
+import de.caluga.morphium.secure.DefaultSecurityManager;
+import net.sf.cglib.proxy.Factory;
+import org.bson.BSON;
+import org.bson.io.BasicOutputBuffer;
 import org.bson.types.ObjectId;
 import org.junit.Test;
 
@@ -228,4 +234,328 @@ public class ObjectMapperTest extends MongoTest {
         }
 
     }
+
+    @Test
+    public void entityModelTest() {
+        ObjectMapperImpl om = new ObjectMapperImpl(MorphiumSingleton.get());
+        EntityModel model = om.getEntityModel(ComplexObject.class);
+        assert (model == om.getEntityModel(ComplexObject.class)) : "Model not cached";
+        assert (model.isEntity() && !model.isEmbedded()) : "Wrong type";
+        assert (model.getIdProperty().getName().equals("id")) : "Wrong id: " + model.getIdProperty();
+        assert (model.getProperty("_id") == model.getIdProperty()) : "_id not found";
+        assert (model.getProperty("last_changed") == model.getProperty("changed")) : "Alias not found";
+        assert (model.getProperty("lastAccess").getMongoName().equals("last_access")) : "Wrong name in mongo";
+        assert (model.getProperty("ref").getKind() == EntityModel.Kind.REFERENCE) : "Reference not detected";
+        assert (model.getProperty("embed").getKind() == EntityModel.Kind.EMBEDDED) : "Embedded not detected";
+        assert (model.getProperty("trans") != null && !model.getFieldNames().contains("trans")) : "Transient field mapped";
+        assert (model.getProperties(LastChange.class).size() == 1) : "LastChange not found";
+        assert (om.getFieldName(ComplexObject.class, "lastChanged").equals("changed")) : "Alias not resolved";
+    }
+
+    @Test
+    public void fieldAccessorTest() {
+        ObjectMapperImpl om = new ObjectMapperImpl(MorphiumSingleton.get());
+        FieldAccessor acc = om.getEntityModel(EmbeddedObject.class).getProperty("testValueLong").getAccessor();
+        EmbeddedObject eo = new EmbeddedObject();
+        acc.setLong(eo, 42);
+        assert (eo.getTest() == 42) : "Value not set";
+        assert (acc.getLong(eo) == 42 && acc.get(eo).equals(42L)) : "Value not read";
+        acc.set(eo, 12);
+        assert (eo.getTest() == 12) : "Integer not converted";
+        acc.set(eo, null);
+        assert (eo.getTest() == 0) : "null not set as 0";
+        try {
+            acc.set(eo, "text");
+            assert false : "String set to long field";
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void directDecodingTest() {
+        ObjectMapperImpl om = new ObjectMapperImpl(MorphiumSingleton.get());
+        ListContainer lc = new ListContainer();
+        lc.setId(new ObjectId());
+        lc.setName("direct");
+        lc.addString("a");
+        lc.addLong(42);
+        EmbeddedObject eo = new EmbeddedObject();
+        eo.setName("embedded");
+        eo.setTest(12);
+        lc.addEmbedded(eo);
+        byte[] data = BSON.encode(om.marshall(lc));
+
+        DBDecoderFactory f = om.getDecoderFactory(ListContainer.class);
+        assert (f != null) : "No decoder";
+        DBObject decoded = f.create().decode(data, (DBCollection) null);
+        ListContainer direct = om.unmarshall(ListContainer.class, decoded);
+        ListContainer classic = om.unmarshall(ListContainer.class, DefaultDBDecoder.FACTORY.create().decode(data, (DBCollection) null));
+        assert (direct.getName().equals("direct")) : "Name not decoded";
+        assert (om.marshall(direct).toString().equals(om.marshall(classic).toString())) : "Decoding differs: " + om.marshall(direct) + " / " + om.marshall(classic);
+
+        //type in document: decoded classically
+        DBObject withType = om.marshall(lc);
+        withType.put("class_name", ListContainer.class.getName());
+        decoded = f.create().decode(BSON.encode(withType), (DBCollection) null);
+        assert (decoded.get("class_name") != null) : "Not decoded classically";
+        assert (om.unmarshall(ListContainer.class, decoded).getName().equals("direct")) : "Name not decoded";
+    }
+
+    @Test
+    public void directDecodingErrorTest() {
+        ObjectMapperImpl om = new ObjectMapperImpl(MorphiumSingleton.get());
+        DBDecoderFactory f = om.getDecoderFactory(ListContainer.class);
+        //error reply of the server, checked by the driver for failover
+        BasicDBObject err = new BasicDBObject("$err", "not master");
+        err.put("code", 13435);
+        DBObject decoded = f.create().decode(BSON.encode(err), (DBCollection) null);
+        assert ("not master".equals(decoded.get("$err"))) : "Error lost: " + decoded;
+        assert (decoded.get("code").equals(13435)) : "Code lost: " + decoded;
+    }
+
+    @Test
+    public void directEncodingTest() {
+        ObjectMapperImpl om = new ObjectMapperImpl(MorphiumSingleton.get());
+        ComplexObject co = new ComplexObject();
+        co.setEinText("direct");
+        co.setChanged(System.currentTimeMillis());
+        EmbeddedObject eo = new EmbeddedObject();
+        eo.setName("embedded");
+        eo.setTest(12);
+        co.setEmbed(eo);
+        UncachedObject uc = new UncachedObject();
+        uc.setValue("entity");
+        uc.setCounter(5);
+        co.setEntityEmbeded(uc);
+        ObjectId id = new ObjectId();
+
+        DBObject marshalled = om.marshall(co);
+        marshalled.put("_id", id);
+        BasicOutputBuffer classic = new BasicOutputBuffer();
+        DefaultDBEncoder.FACTORY.create().writeObject(classic, marshalled);
+
+        DBObject wrapped = om.wrapForEncoder(co);
+        assert (wrapped != null) : "Not wrapped";
+        assert (wrapped.get("_id") == null) : "Id set?";
+        wrapped.put("_id", id);
+        BasicOutputBuffer direct = new BasicOutputBuffer();
+        om.getEncoderFactory().create().writeObject(direct, wrapped);
+        assert (Arrays.equals(classic.toByteArray(), direct.toByteArray())) : "Encoding differs: " + BSON.decode(classic.toByteArray()) + " / " + BSON.decode(direct.toByteArray());
+
+        //other objects are encoded as usual
+        direct = new BasicOutputBuffer();
+        om.getEncoderFactory().create().writeObject(direct, marshalled);
+        assert (Arrays.equals(classic.toByteArray(), direct.toByteArray())) : "Encoding of DBObject differs";
+    }
+
+    @Test
+    public void directEncodingPrimitivesTest() {
+        ObjectMapperImpl om = new ObjectMapperImpl(MorphiumSingleton.get());
+        PrimitivesObject po = new PrimitivesObject();
+        po.l = Long.MAX_VALUE;
+        po.i = -42;
+        po.s = 1234;
+        po.b = -5;
+        po.d = 1.5;
+        po.f = 0.1f;
+        po.bool = true;
+        po.c = 'x';
+
+        BasicOutputBuffer classic = new BasicOutputBuffer();
+        DefaultDBEncoder.FACTORY.create().writeObject(classic, om.marshall(po));
+        BasicOutputBuffer direct = new BasicOutputBuffer();
+        om.getEncoderFactory().create().writeObject(direct, om.wrapForEncoder(po));
+        //written unboxed, but with the same types as the driver uses
+        assert (Arrays.equals(classic.toByteArray(), direct.toByteArray())) : "Encoding differs: " + BSON.decode(classic.toByteArray()) + " / " + BSON.decode(direct.toByteArray());
+    }
+
+    @Test
+    public void typeIdTest() throws Exception {
+        ObjectMapperImpl om = new ObjectMapperImpl(MorphiumSingleton.get());
+        assert (om.getEntityModel(TypedShape.class).getTypeName().equals("shape")) : "Wrong type name";
+        //typeId is not inherited
+        assert (om.getEntityModel(TypedCircle.class).getTypeName().equals(TypedCircle.class.getName())) : "typeId inherited?";
+
+        TypedShape sq = new TypedSquare();
+        sq.setName("square");
+        ((TypedSquare) sq).setSide(4);
+        DBObject o = om.marshall(sq);
+        assert (o.get("class_name").equals("square")) : "Wrong class_name: " + o.get("class_name");
+        TypedShape read = om.unmarshall(TypedShape.class, o);
+        assert (read instanceof TypedSquare) : "Wrong type: " + read.getClass().getName();
+        assert (((TypedSquare) read).getSide() == 4) : "Side not read";
+
+        TypedShape c = new TypedCircle();
+        c.setName("circle");
+        o = om.marshall(c);
+        assert (o.get("class_name").equals(TypedCircle.class.getName())) : "Wrong class_name: " + o.get("class_name");
+        assert (om.unmarshall(TypedShape.class, o) instanceof TypedCircle) : "Wrong type";
+
+        //class names and ids resolve to the same class
+        assert (om.getClassForTypeName("square") == TypedSquare.class);
+        assert (om.getClassForTypeName(TypedSquare.class.getName()) == TypedSquare.class);
+        assert (om.getClassForTypeName(TypedSquare.class.getName()) == TypedSquare.class) : "Not cached";
+    }
+
+    @Test
+    public void typeIdRegistrationTest() throws Exception {
+        //class of the typeId not modeled yet, as in a fresh JVM
+        ObjectMapperImpl om = new ObjectMapperImpl(MorphiumSingleton.get());
+        DBObject o = new BasicDBObject("class_name", "square");
+        o.put("name", "square");
+        o.put("side", 4);
+        try {
+            om.unmarshall(TypedShape.class, o);
+            assert (false) : "Unknown typeId resolved?";
+        } catch (RuntimeException e) {
+            log.info("Got exception as expected: " + e.getMessage());
+        }
+
+        om = new ObjectMapperImpl(MorphiumSingleton.get());
+        om.registerType(TypedSquare.class);
+        TypedShape read = om.unmarshall(TypedShape.class, o);
+        assert (read instanceof TypedSquare) : "Wrong type: " + read.getClass().getName();
+        assert (((TypedSquare) read).getSide() == 4) : "Side not read";
+
+        //types to be registered on startup
+        MorphiumConfig cfg = new MorphiumConfig("morphium_test", MongoDbMode.SINGLE, 5, 50000, 5000, new DefaultSecurityManager(), "morphium-log4j-test.xml");
+        Properties p = new Properties();
+        p.setProperty("servers", "localhost");
+        p.setProperty("types", TypedSquare.class.getName() + ", " + TypedShape.class.getName());
+        cfg.initFromProperty(p);
+        assert (cfg.getTypes().size() == 2 && cfg.getTypes().contains(TypedSquare.class)) : "Types not read: " + cfg.getTypes();
+    }
+
+    @Entity(polymorph = true, typeId = "shape")
+    public static class TypedShape {
+        @Id
+        private ObjectId id;
+        private String name;
+
+        public ObjectId getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+    }
+
+    @Entity(polymorph = true, typeId = "square")
+    public static class TypedSquare extends TypedShape {
+        private int side;
+
+        public int getSide() {
+            return side;
+        }
+
+        public void setSide(int side) {
+            this.side = side;
+        }
+    }
+
+    public static class TypedCircle extends TypedShape {
+        private double radius;
+    }
+
+    @Test
+    public void lazyFieldTest() throws Exception {
+        ObjectMapperImpl om = new ObjectMapperImpl(MorphiumSingleton.get());
+        LazyObject lo = new LazyObject();
+        lo.setName("lazy");
+        List<String> payload = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            payload.add("Value " + i);
+        }
+        lo.setPayload(payload);
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("key", "value");
+        lo.setData(data);
+        DBObject o = om.marshall(lo);
+        o.put("_id", new ObjectId());
+
+        LazyObject read = om.unmarshall(LazyObject.class, o);
+        LazyFieldsProxy proxy = (LazyFieldsProxy) ((Factory) read).getCallback(0);
+        assert (read.getName().equals("lazy")) : "Name not read";
+        assert (proxy.__isPending("payload") && proxy.__isPending("data")) : "Not lazy";
+        assert (read.getPayload().size() == 100) : "Payload not read";
+        assert (!proxy.__isPending("payload") && proxy.__isPending("data")) : "Wrong field unmarshalled";
+        assert (read.getData().get("key").equals("value")) : "Data not read";
+        assert (om.getId(read).equals(o.get("_id"))) : "Id wrong";
+
+        //the setter replaces the lazy value
+        read = om.unmarshall(LazyObject.class, o);
+        read.setPayload(null);
+        assert (read.getPayload() == null) : "Lazy value not dropped";
+        DBObject m = om.marshall(read);
+        assert (m.get("payload") == null && m.get("data") != null) : "Marshalling wrong: " + m;
+
+        //direct decoding
+        byte[] bson = BSON.encode(o);
+        DBObject decoded = om.getDecoderFactory(LazyObject.class).create().decode(bson, (DBCollection) null);
+        read = om.unmarshall(LazyObject.class, decoded);
+        proxy = (LazyFieldsProxy) ((Factory) read).getCallback(0);
+        assert (proxy.__isPending("payload")) : "Not lazy";
+        DBObject classic = om.marshall(om.unmarshall(LazyObject.class, o));
+        assert (om.marshall(read).toString().equals(classic.toString())) : "Decoding differs: " + om.marshall(read);
+        assert (!proxy.__isPending("payload")) : "Not unmarshalled";
+    }
+
+    @Entity
+    public static class LazyObject {
+        @Id
+        private ObjectId id;
+        private String name;
+        @Lazy
+        private List<String> payload;
+        @Lazy
+        private Map<String, Object> data;
+
+        public ObjectId getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public List<String> getPayload() {
+            return payload;
+        }
+
+        public void setPayload(List<String> payload) {
+            this.payload = payload;
+        }
+
+        public Map<String, Object> getData() {
+            return data;
+        }
+
+        public void setData(Map<String, Object> data) {
+            this.data = data;
+        }
+    }
+
+    @Entity
+    public static class PrimitivesObject {
+        @Id
+        private ObjectId id;
+        private long l;
+        private int i;
+        private short s;
+        private byte b;
+        private double d;
+        private float f;
+        private boolean bool;
+        private char c;
+    }
 }
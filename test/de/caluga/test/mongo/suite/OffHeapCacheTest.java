@@ -0,0 +1,221 @@
+package de.caluga.test.mongo.suite;
+
+import com.mongodb.BasicDBObject;
+import de.caluga.morphium.MongoDbMode;
+import de.caluga.morphium.Morphium;
+import de.caluga.morphium.MorphiumConfig;
+import de.caluga.morphium.MorphiumSingleton;
+import de.caluga.morphium.Query;
+import de.caluga.morphium.annotations.Entity;
+import de.caluga.morphium.annotations.Id;
+import de.caluga.morphium.annotations.caching.Cache;
+import de.caluga.morphium.cache.CacheKey;
+import de.caluga.morphium.cache.MorphiumCacheImpl;
+import de.caluga.morphium.cache.OffHeapSpillPolicy;
+import de.caluga.morphium.secure.DefaultSecurityManager;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the off heap cache tier: spilling, reading, eviction and invalidation
+ */
+public class OffHeapCacheTest extends MongoTest {
+
+    /**
+     * cache with an off heap tier of the given size, spilling evicted results
+     */
+    private MorphiumCacheImpl createCache(long offHeapSize) {
+        MorphiumConfig cfg = MorphiumSingleton.get().getConfig();
+        long old = cfg.getOffHeapCacheSize();
+        cfg.setOffHeapCacheSize(offHeapSize);
+        try {
+            MorphiumCacheImpl cache = new MorphiumCacheImpl();
+            cache.setMorphium(MorphiumSingleton.get());
+            return cache;
+        } finally {
+            cfg.setOffHeapCacheSize(old);
+        }
+    }
+
+    private CacheKey key(int i) {
+        return new CacheKey(new BasicDBObject("counter", i), null, 0, 0);
+    }
+
+    private List<OffHeapObject> result(int i, String value) {
+        OffHeapObject o = new OffHeapObject();
+        o.setId(new ObjectId());
+        o.setCounter(i);
+        o.setValue(value);
+        List<OffHeapObject> ret = new ArrayList<OffHeapObject>();
+        ret.add(o);
+        return ret;
+    }
+
+    @Test
+    public void spillOnEvictionTest() throws Exception {
+        MorphiumCacheImpl cache = createCache(1024 * 1024);
+        List<List<OffHeapObject>> results = new ArrayList<List<OffHeapObject>>();
+        for (int i = 0; i < 20; i++) {
+            //age is measured in ms
+            Thread.sleep(1);
+            List<OffHeapObject> lst = result(i, "Value " + i);
+            results.add(lst);
+            cache.addToCache(key(i), OffHeapObject.class, lst);
+        }
+        assert (cache.getSizes().get(OffHeapObject.class) == 5) : "Wrong heap size: " + cache.getSizes().get(OffHeapObject.class);
+        for (int i = 0; i < 20; i++) {
+            assert (cache.isCached(OffHeapObject.class, key(i))) : "Not cached: " + i;
+            List<OffHeapObject> lst = cache.getFromCache(OffHeapObject.class, key(i));
+            assert (lst != null && lst.size() == 1) : "Not read: " + i;
+            OffHeapObject o = lst.get(0);
+            assert (o.getCounter() == i && o.getValue().equals("Value " + i)) : "Wrong result: " + i;
+            assert (o.getId().equals(results.get(i).get(0).getId())) : "Wrong id: " + i;
+            if (i < 15) {
+                //evicted from heap - unmarshalled from the off heap copy
+                assert (o != results.get(i).get(0)) : "Not read off heap: " + i;
+            } else {
+                assert (o == results.get(i).get(0)) : "Not read from heap: " + i;
+            }
+        }
+        //results read off heap are not moved back
+        assert (cache.getSizes().get(OffHeapObject.class) == 5) : "Wrong heap size: " + cache.getSizes().get(OffHeapObject.class);
+    }
+
+    @Test
+    public void offHeapCapacityTest() throws Exception {
+        //4 blocks of 1k, each result needs 2 of them
+        MorphiumCacheImpl cache = createCache(4 * 1024);
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 1100; i++) {
+            b.append('x');
+        }
+        for (int i = 0; i < 20; i++) {
+            Thread.sleep(1);
+            cache.addToCache(key(i), OffHeapObject.class, result(i, b.toString()));
+        }
+        //heap: 15-19, off heap: the last two evicted ones
+        for (int i = 0; i < 13; i++) {
+            assert (!cache.isCached(OffHeapObject.class, key(i))) : "Not evicted off heap: " + i;
+            assert (cache.getFromCache(OffHeapObject.class, key(i)) == null) : "Not evicted off heap: " + i;
+        }
+        for (int i = 13; i < 20; i++) {
+            List<OffHeapObject> lst = cache.getFromCache(OffHeapObject.class, key(i));
+            assert (lst != null && lst.get(0).getCounter() == i) : "Not cached: " + i;
+        }
+    }
+
+    @Test
+    public void invalidationTest() throws Exception {
+        MorphiumCacheImpl cache = createCache(1024 * 1024);
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        for (int i = 0; i < 20; i++) {
+            Thread.sleep(1);
+            List<OffHeapObject> lst = result(i, "Value " + i);
+            ids.add(lst.get(0).getId());
+            cache.addToCache(key(i), OffHeapObject.class, lst);
+        }
+        //by id - off heap and on heap
+        cache.removeEntryFromCache(OffHeapObject.class, ids.get(3));
+        cache.removeEntryFromCache(OffHeapObject.class, ids.get(17));
+        assert (cache.getFromCache(OffHeapObject.class, key(3)) == null) : "Off heap result not removed";
+        assert (cache.getFromCache(OffHeapObject.class, key(17)) == null) : "Heap result not removed";
+        assert (cache.getFromCache(OffHeapObject.class, key(4)) != null) : "Other result removed";
+
+        //updated objects are not patched off heap, the result is removed
+        OffHeapObject updated = cache.<OffHeapObject>getFromCache(OffHeapObject.class, key(5)).get(0);
+        updated.setValue("changed");
+        cache.updateEntry(OffHeapObject.class, updated);
+        assert (cache.getFromCache(OffHeapObject.class, key(5)) == null) : "Outdated result off heap";
+
+        //by type
+        cache.clearCachefor(OffHeapObject.class);
+        for (int i = 0; i < 20; i++) {
+            assert (!cache.isCached(OffHeapObject.class, key(i))) : "Not cleared: " + i;
+        }
+    }
+
+    @Test
+    public void storeInvalidationTest() throws Exception {
+        MorphiumConfig cfg = new MorphiumConfig("morphium_test", MongoDbMode.SINGLE, 5, 50000, 5000, new DefaultSecurityManager(), "morphium-log4j-test.xml");
+        cfg.addAddress("localhost", 27017);
+        cfg.setOffHeapCacheSize(1024 * 1024);
+        cfg.setOffHeapSpillPolicy(OffHeapSpillPolicy.ALL);
+        Morphium m = new Morphium(cfg);
+        try {
+            m.clearCollection(OffHeapObject.class);
+            List<OffHeapObject> objects = new ArrayList<OffHeapObject>();
+            for (int i = 0; i < 10; i++) {
+                OffHeapObject o = new OffHeapObject();
+                o.setCounter(i);
+                o.setValue("Value " + i);
+                m.store(o);
+                objects.add(o);
+            }
+            List<CacheKey> keys = new ArrayList<CacheKey>();
+            for (int i = 0; i < 10; i++) {
+                Query<OffHeapObject> q = m.createQueryFor(OffHeapObject.class).f("counter").eq(i);
+                assert (q.asList().size() == 1) : "Not found: " + i;
+                keys.add(m.getCacheKey(q));
+            }
+            for (CacheKey k : keys) {
+                assert (m.getCache().isCached(OffHeapObject.class, k)) : "Not cached: " + k;
+            }
+
+            //existing object: only the results containing it are removed (REMOVE_ENTRY_FROM_TYPE_CACHE)
+            objects.get(2).setValue("changed");
+            m.store(objects.get(2));
+            assert (!m.getCache().isCached(OffHeapObject.class, keys.get(2))) : "Result of stored object still cached";
+            assert (m.getCache().isCached(OffHeapObject.class, keys.get(1))) : "Other result removed";
+            Query<OffHeapObject> q = m.createQueryFor(OffHeapObject.class);
+            q.f("counter").eq(2);
+            assert (q.get().getValue().equals("changed")) : "Outdated result";
+
+            //new object: the whole type is cleared
+            OffHeapObject o = new OffHeapObject();
+            o.setCounter(100);
+            m.store(o);
+            for (CacheKey k : keys) {
+                assert (!m.getCache().isCached(OffHeapObject.class, k)) : "Not cleared: " + k;
+            }
+        } finally {
+            m.clearCollection(OffHeapObject.class);
+            m.close();
+        }
+    }
+
+    @Entity
+    @Cache(offHeap = true, maxEntries = 5, strategy = Cache.ClearStrategy.FIFO, syncCache = Cache.SyncCacheStrategy.REMOVE_ENTRY_FROM_TYPE_CACHE)
+    public static class OffHeapObject {
+        @Id
+        private ObjectId id;
+        private int counter;
+        private String value;
+
+        public ObjectId getId() {
+            return id;
+        }
+
+        public void setId(ObjectId id) {
+            this.id = id;
+        }
+
+        public int getCounter() {
+            return counter;
+        }
+
+        public void setCounter(int counter) {
+            this.counter = counter;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public void setValue(String value) {
+            this.value = value;
+        }
+    }
+}
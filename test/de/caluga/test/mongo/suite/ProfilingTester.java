@@ -1,8 +1,12 @@
 package de.caluga.test.mongo.suite;
 
+import com.mongodb.DBObject;
 import de.caluga.morphium.*;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * User: Stephan Bösebeck
  * Date: 01.08.12
@@ -45,4 +49,51 @@ public class ProfilingTester extends MongoTest {
         assert (readTime > -1);
         MorphiumSingleton.get().removeProfilingListener(pl);
     }
+
+    @Test
+    public void writtenDocumentsTest() throws Exception {
+        final List<Object> written = new ArrayList<Object>();
+        ProfilingListener pl = new ProfilingListener() {
+            @Override
+            public void readAccess(Query query, long time, ReadAccessType t) {
+            }
+
+            @Override
+            public void writeAccess(Class type, Object o, long time, boolean isNew, WriteAccessType t) {
+                if (t == WriteAccessType.SINGLE_INSERT) {
+                    written.add(o);
+                } else if (t == WriteAccessType.BULK_INSERT || t == WriteAccessType.BULK_UPDATE) {
+                    written.addAll((List) o);
+                }
+            }
+        };
+        MorphiumSingleton.get().addProfilingListener(pl);
+        try {
+            UncachedObject uc = new UncachedObject();
+            uc.setValue("Single");
+            uc.setCounter(1);
+            MorphiumSingleton.get().store(uc);
+            List<UncachedObject> lst = new ArrayList<UncachedObject>();
+            for (int i = 2; i <= 3; i++) {
+                UncachedObject o = new UncachedObject();
+                o.setValue("List");
+                o.setCounter(i);
+                lst.add(o);
+            }
+            MorphiumSingleton.get().storeList(lst);
+            //update
+            lst.get(0).setValue("Updated");
+            MorphiumSingleton.get().storeList(lst);
+        } finally {
+            MorphiumSingleton.get().removeProfilingListener(pl);
+        }
+        assert (written.size() == 5) : "Wrong number of documents: " + written.size();
+        //the complete documents, not only the _id
+        for (Object o : written) {
+            DBObject doc = (DBObject) o;
+            assert (doc.get("_id") != null) : "No id: " + doc;
+            assert (doc.get("value") != null && doc.get("counter") != null) : "Incomplete document: " + doc;
+        }
+        assert (((DBObject) written.get(3)).get("value").equals("Updated")) : "Wrong document: " + written.get(3);
+    }
 }
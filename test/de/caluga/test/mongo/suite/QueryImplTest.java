@@ -1,10 +1,28 @@
 package de.caluga.test.mongo.suite;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
+import de.caluga.morphium.AsyncReadPolicy;
+import de.caluga.morphium.MongoDbMode;
+import de.caluga.morphium.Morphium;
+import de.caluga.morphium.MorphiumConfig;
+import de.caluga.morphium.MorphiumIterator;
 import de.caluga.morphium.MorphiumSingleton;
 import de.caluga.morphium.Query;
+import de.caluga.morphium.StorageAdapter;
+import de.caluga.morphium.cache.CacheKey;
+import de.caluga.morphium.secure.DefaultSecurityManager;
+import org.bson.types.ObjectId;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
 /**
  * User: Stpehan Bösebeck
  * Date: 26.03.12
@@ -84,4 +102,329 @@ public class QueryImplTest extends MongoTest {
 
 
     }
+
+    @Test
+    public void testCacheKey() {
+        Query<UncachedObject> q1 = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+        q1.f("counter").gt(10).f("value").eq("hallo");
+        Query<UncachedObject> q2 = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+        q2.f("value").eq("hallo").f("counter").gt(10);
+
+        CacheKey k1 = MorphiumSingleton.get().getCacheKey(q1);
+        CacheKey k2 = MorphiumSingleton.get().getCacheKey(q2);
+        assert (k1.equals(k2)) : "Order of conditions should not matter: " + k1 + " / " + k2;
+        assert (k1.hashCode() == k2.hashCode()) : "Hashcodes differ";
+
+        q2.limit(10);
+        assert (!k1.equals(MorphiumSingleton.get().getCacheKey(q2))) : "Limit not honored";
+        q1.limit(10).sort("counter", "-value");
+        q2.sort("-value", "counter");
+        assert (!MorphiumSingleton.get().getCacheKey(q1).equals(MorphiumSingleton.get().getCacheKey(q2))) : "Order of sort should matter";
+        assert (!k1.equals(k1.variant("idlist"))) : "Variant not honored";
+    }
+
+    @Test
+    public void testCacheKeyEmbedded() {
+        //conditions and operators are sorted
+        CacheKey k1 = new CacheKey(new BasicDBObject("counter", new BasicDBObject("$gt", 1).append("$lt", 10)).append("value", "v"), null, 0, 0);
+        CacheKey k2 = new CacheKey(new BasicDBObject("value", "v").append("counter", new BasicDBObject("$lt", 10).append("$gt", 1)), null, 0, 0);
+        assert (k1.equals(k2) && k1.hashCode() == k2.hashCode()) : "Order of conditions should not matter: " + k1 + " / " + k2;
+
+        //embedded documents are compared field by field in their order
+        k1 = new CacheKey(new BasicDBObject("embedded", new BasicDBObject("a", 1).append("b", 2)), null, 0, 0);
+        k2 = new CacheKey(new BasicDBObject("embedded", new BasicDBObject("b", 2).append("a", 1)), null, 0, 0);
+        assert (!k1.equals(k2)) : "Order of embedded fields should matter: " + k1 + " / " + k2;
+        k2 = new CacheKey(new BasicDBObject("embedded", new BasicDBObject("a", 1).append("b", 2)), null, 0, 0);
+        assert (k1.equals(k2) && k1.hashCode() == k2.hashCode()) : "Same embedded document differs";
+        k1 = new CacheKey(new BasicDBObject("list", new BasicDBObject("$in", Arrays.asList(new BasicDBObject("a", 1).append("b", 2)))), null, 0, 0);
+        k2 = new CacheKey(new BasicDBObject("list", new BasicDBObject("$in", Arrays.asList(new BasicDBObject("b", 2).append("a", 1)))), null, 0, 0);
+        assert (!k1.equals(k2)) : "Order of embedded fields in operands should matter";
+
+        //"Aa" and "BB" have the same hash code - order of $or must not matter anyway
+        BasicDBObject c1 = new BasicDBObject("value", "Aa");
+        BasicDBObject c2 = new BasicDBObject("value", "BB");
+        assert ("Aa".hashCode() == "BB".hashCode()) : "Test data wrong";
+        k1 = new CacheKey(new BasicDBObject("$or", Arrays.asList(c1, c2)), null, 0, 0);
+        k2 = new CacheKey(new BasicDBObject("$or", Arrays.asList(c2, c1)), null, 0, 0);
+        assert (k1.equals(k2) && k1.hashCode() == k2.hashCode()) : "Order of $or with equal hash codes should not matter: " + k1 + " / " + k2;
+    }
+
+    @Test
+    public void testProjection() {
+        Query<CachedObject> q = MorphiumSingleton.get().createQueryFor(CachedObject.class);
+        q.f("counter").gt(10);
+        CacheKey full = MorphiumSingleton.get().getCacheKey(q);
+        q.project("counter", "id");
+        assert (q.getProjection().toString().equals("{ \"counter\" : 1 , \"_id\" : 1}")) : "Projection wrong: " + q.getProjection();
+        CacheKey partial = MorphiumSingleton.get().getCacheKey(q);
+        assert (!full.equals(partial) && partial.isProjection()) : "Projection not part of the key";
+        try {
+            q.exclude("value");
+            assert (false) : "Mixing inclusion and exclusion should fail";
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+
+        //partial objects are not cached by id
+        CachedObject co = new CachedObject();
+        co.setId(new ObjectId());
+        co.setCounter(11);
+        MorphiumSingleton.get().addToCache(partial, CachedObject.class, Arrays.asList(co));
+        assert (MorphiumSingleton.get().getCache().getFromCache(CachedObject.class, partial).size() == 1) : "Not cached";
+        assert (MorphiumSingleton.get().getCache().getFromIDCache(CachedObject.class, co.getId()) == null) : "Partial object cached by id";
+        MorphiumSingleton.get().getCache().clearCachefor(CachedObject.class);
+    }
+
+    @Test
+    public void testProjectionQuery() throws Exception {
+        for (int i = 1; i <= 10; i++) {
+            UncachedObject o = new UncachedObject();
+            o.setCounter(i);
+            o.setValue("Value " + i);
+            MorphiumSingleton.get().store(o);
+        }
+        Query<UncachedObject> q = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+        q.f("counter").lte(5).project("counter");
+        List<UncachedObject> lst = q.asList();
+        assert (lst.size() == 5) : "Wrong number of results: " + lst.size();
+        for (UncachedObject o : lst) {
+            assert (o.getValue() == null) : "Value read";
+            assert (o.getCounter() > 0 && o.getMongoId() != null) : "Counter or id not read";
+        }
+
+        q = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+        q.f("counter").eq(3);
+        UncachedObject o = q.exclude("counter").get();
+        assert (o.getCounter() == 0 && o.getValue().equals("Value 3")) : "Exclusion wrong: " + o.getCounter() + " " + o.getValue();
+    }
+
+    @Test
+    public void testIterable() throws Exception {
+        List<UncachedObject> lst = new ArrayList<UncachedObject>();
+        for (int i = 1; i <= 250; i++) {
+            UncachedObject o = new UncachedObject();
+            o.setCounter(i);
+            o.setValue("Value " + i);
+            lst.add(o);
+        }
+        MorphiumSingleton.get().storeList(lst);
+
+        Query<UncachedObject> q = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+        q.sort("counter");
+        MorphiumIterator<UncachedObject> it = q.asIterable(50);
+        int last = 0;
+        for (UncachedObject o : it) {
+            assert (o.getCounter() == last + 1) : "Wrong order: " + o.getCounter() + " after " + last;
+            last = o.getCounter();
+        }
+        assert (it.getCount() == 250) : "Wrong number of elements: " + it.getCount();
+        assert (!it.hasNext()) : "Not exhausted";
+
+        //stopping early
+        it = q.f("counter").gt(200).asIterable();
+        try {
+            assert (it.next().getCounter() == 201) : "Wrong first element";
+        } finally {
+            it.close();
+        }
+        assert (!it.hasNext()) : "Not closed";
+    }
+
+    @Test
+    public void testParallelDecoding() throws Exception {
+        List<UncachedObject> lst = new ArrayList<UncachedObject>();
+        for (int i = 1; i <= 1000; i++) {
+            UncachedObject o = new UncachedObject();
+            o.setCounter(i);
+            o.setValue("Value " + i);
+            lst.add(o);
+        }
+        MorphiumSingleton.get().storeList(lst);
+
+        MorphiumSingleton.get().getConfig().setParallelDecodingThreshold(100);
+        try {
+            Query<UncachedObject> q = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+            List<UncachedObject> read = q.sort("counter").asList();
+            assert (read.size() == 1000) : "Wrong number of results: " + read.size();
+            for (int i = 0; i < read.size(); i++) {
+                assert (read.get(i).getCounter() == i + 1) : "Order not kept at " + i;
+                assert (read.get(i).getValue().equals("Value " + (i + 1))) : "Value wrong at " + i;
+            }
+            //below threshold
+            q = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+            q.f("counter").lte(10);
+            assert (q.asList().size() == 10) : "Wrong number of results";
+        } finally {
+            MorphiumSingleton.get().getConfig().setParallelDecodingThreshold(0);
+        }
+    }
+
+    @Test
+    public void testNestedParallelDecoding() throws Exception {
+        createUncachedObjects(200);
+        final int[] nested = new int[]{-1};
+        StorageAdapter<Object> listener = new StorageAdapter<Object>() {
+            @Override
+            public void postLoad(Object o) {
+                if (!Thread.currentThread().getName().equals("morphium_decoder")) return;
+                synchronized (nested) {
+                    if (nested[0] >= 0) return;
+                    nested[0] = 0;
+                }
+                //query from a decoder thread must not wait for the decoder pool
+                int size = MorphiumSingleton.get().createQueryFor(UncachedObject.class).asList().size();
+                synchronized (nested) {
+                    nested[0] = size;
+                }
+            }
+        };
+        MorphiumSingleton.get().getConfig().setParallelDecodingThreshold(10);
+        MorphiumSingleton.get().addListener(listener);
+        try {
+            Future<List<UncachedObject>> f = MorphiumSingleton.get().createQueryFor(UncachedObject.class).asListAsync();
+            assert (f.get(30, TimeUnit.SECONDS).size() == 200) : "Wrong number of results";
+        } finally {
+            MorphiumSingleton.get().removeListener(listener);
+            MorphiumSingleton.get().getConfig().setParallelDecodingThreshold(0);
+        }
+        synchronized (nested) {
+            assert (nested[0] == 200) : "Nested query failed: " + nested[0];
+        }
+    }
+
+    @Test
+    public void testParallelDecodingQueueFull() throws Exception {
+        createUncachedObjects(500);
+        MorphiumConfig cfg = new MorphiumConfig("morphium_test", MongoDbMode.SINGLE, 5, 50000, 5000, new DefaultSecurityManager(), "morphium-log4j-test.xml");
+        cfg.addAddress("localhost", 27017);
+        cfg.setParallelDecodingThreshold(10);
+        cfg.setParallelDecodingThreads(1);
+        cfg.setParallelDecodingQueueSize(1);
+        Morphium m = new Morphium(cfg);
+        try {
+            //most batches are rejected by the pool and unmarshalled by the querying thread
+            List<UncachedObject> lst = m.createQueryFor(UncachedObject.class).sort("counter").asList();
+            assert (lst.size() == 500) : "Wrong number of results: " + lst.size();
+            for (int i = 0; i < lst.size(); i++) {
+                assert (lst.get(i).getCounter() == i + 1) : "Wrong order at " + i + ": " + lst.get(i).getCounter();
+            }
+        } finally {
+            m.close();
+        }
+    }
+
+    @Test
+    public void testAsyncQueueFull() throws Exception {
+        createUncachedObjects(10);
+        MorphiumConfig cfg = new MorphiumConfig("morphium_test", MongoDbMode.SINGLE, 5, 50000, 5000, new DefaultSecurityManager(), "morphium-log4j-test.xml");
+        cfg.addAddress("localhost", 27017);
+        cfg.setAsyncReadThreads(1);
+        cfg.setAsyncReadQueueSize(1);
+        cfg.setAsyncReadPolicy(AsyncReadPolicy.CALLER_RUNS);
+        Morphium m = new Morphium(cfg);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> threads = new ArrayList<String>();
+        StorageAdapter<Object> listener = new StorageAdapter<Object>() {
+            @Override
+            public void postLoad(Object o) {
+                synchronized (threads) {
+                    threads.add(Thread.currentThread().getName());
+                }
+                if (Thread.currentThread().getName().equals("morphium_reader")) {
+                    try {
+                        //keep the reader busy
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        m.addListener(listener);
+        try {
+            List<Future<List<UncachedObject>>> futures = new ArrayList<Future<List<UncachedObject>>>();
+            //one running, one queued, the third one is run by the calling thread
+            for (int i = 0; i < 3; i++) {
+                futures.add(m.createQueryFor(UncachedObject.class).asListAsync());
+            }
+            assert (futures.get(2).isDone()) : "Not run by the caller";
+            synchronized (threads) {
+                assert (threads.contains(Thread.currentThread().getName())) : "Not run by the caller: " + threads;
+            }
+            release.countDown();
+            for (Future<List<UncachedObject>> f : futures) {
+                assert (f.get(30, TimeUnit.SECONDS).size() == 10) : "Wrong number of results";
+            }
+        } finally {
+            release.countDown();
+            m.removeListener(listener);
+            m.close();
+        }
+
+        cfg = new MorphiumConfig("morphium_test", MongoDbMode.SINGLE, 5, 50000, 5000, new DefaultSecurityManager(), "morphium-log4j-test.xml");
+        cfg.addAddress("localhost", 27017);
+        cfg.setAsyncReadThreads(1);
+        cfg.setAsyncReadQueueSize(1);
+        cfg.setAsyncReadPolicy(AsyncReadPolicy.ABORT);
+        m = new Morphium(cfg);
+        final CountDownLatch release2 = new CountDownLatch(1);
+        listener = new StorageAdapter<Object>() {
+            @Override
+            public void postLoad(Object o) {
+                try {
+                    release2.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        m.addListener(listener);
+        try {
+            m.createQueryFor(UncachedObject.class).asListAsync();
+            m.createQueryFor(UncachedObject.class).asListAsync();
+            try {
+                m.createQueryFor(UncachedObject.class).asListAsync();
+                assert (false) : "Not rejected";
+            } catch (RejectedExecutionException e) {
+                log.info("Got exception as expected");
+            }
+        } finally {
+            release2.countDown();
+            m.removeListener(listener);
+            m.close();
+        }
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        List<UncachedObject> lst = new ArrayList<UncachedObject>();
+        for (int i = 1; i <= 100; i++) {
+            UncachedObject o = new UncachedObject();
+            o.setCounter(i);
+            o.setValue("Value " + i);
+            lst.add(o);
+        }
+        MorphiumSingleton.get().storeList(lst);
+
+        Query<UncachedObject> q = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+        q.f("counter").lte(50).sort("-counter");
+        Future<List<UncachedObject>> list = q.asListAsync();
+        Future<Long> count = q.countAllAsync();
+        Future<UncachedObject> first = q.getAsync();
+        //the running queries are not affected
+        q.f("counter").gt(10);
+
+        assert (list.get().size() == 50) : "Wrong number of results: " + list.get().size();
+        assert (list.get().get(0).getCounter() == 50) : "Sort order lost";
+        assert (count.get() == 50) : "Wrong count: " + count.get();
+        assert (first.get().getCounter() == 50) : "Wrong first element: " + first.get().getCounter();
+    }
+
+    @Test
+    public void testCloneKeepsOrder() throws Exception {
+        Query<UncachedObject> q = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+        q.sort("value", "-counter", "mongoId");
+        List<String> keys = new ArrayList<String>(q.clone().getOrder().keySet());
+        assert (keys.equals(Arrays.asList("value", "counter", "_id"))) : "Order of sort keys lost: " + keys;
+    }
 }
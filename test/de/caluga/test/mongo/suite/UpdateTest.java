@@ -1,9 +1,15 @@
 package de.caluga.test.mongo.suite;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import de.caluga.morphium.BatchWriteException;
+import de.caluga.morphium.ModifierBatch;
 import de.caluga.morphium.MorphiumSingleton;
 import de.caluga.morphium.Query;
+import de.caluga.morphium.StorageAdapter;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -127,5 +133,97 @@ public class UpdateTest extends MongoTest {
 
     }
 
+    @Test
+    public void batchTest() throws Exception {
+        for (int i = 1; i <= 50; i++) {
+            UncachedObject o = new UncachedObject();
+            o.setCounter(i);
+            o.setValue("Uncached " + i);
+            MorphiumSingleton.get().store(o);
+        }
+        final int[] updates = new int[2];
+        StorageAdapter<Object> listener = new StorageAdapter<Object>() {
+            @Override
+            public void preUpdate(Class<Object> cls, Enum updateType) {
+                updates[0]++;
+            }
+
+            @Override
+            public void postUpdate(Class<Object> cls, Enum updateType) {
+                updates[1]++;
+            }
+        };
+        MorphiumSingleton.get().addListener(listener);
+        try {
+            ModifierBatch batch = MorphiumSingleton.get().batch();
+            for (int i = 1; i <= 50; i++) {
+                Query<UncachedObject> q = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+                batch.inc(q.f("value").eq("Uncached " + i), "counter", 1000);
+            }
+            Query<UncachedObject> q = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+            batch.set(q.f("value").eq("Uncached 1"), "value", "changed");
+            assert (batch.size() == 51) : "Wrong size: " + batch.size();
+            batch.execute();
+            assert (batch.size() == 0) : "Batch not empty";
+        } finally {
+            MorphiumSingleton.get().removeListener(listener);
+        }
+        //once per type and kind of update
+        assert (updates[0] == 2) : "Wrong number of preUpdate events: " + updates[0];
+        assert (updates[1] == 2) : "Wrong number of postUpdate events: " + updates[1];
+
+        Query<UncachedObject> q = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+        q.f("counter").gt(1000);
+        assert (q.countAll() == 50) : "Not all incremented: " + q.countAll();
+        q = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+        q.f("value").eq("changed");
+        assert (q.get().getCounter() == 1001) : "Not changed";
+    }
+
+    @Test
+    public void batchPartialFailure() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            UncachedObject o = new UncachedObject();
+            o.setCounter(i);
+            o.setValue("Uncached " + i);
+            MorphiumSingleton.get().store(o);
+        }
+        DBCollection coll = MorphiumSingleton.get().getDatabase().getCollection(MorphiumSingleton.get().getConfig().getMapper().getCollectionName(UncachedObject.class));
+        coll.ensureIndex(new BasicDBObject("value", 1), "unique_value", true);
+        final List<Enum> postUpdates = new ArrayList<Enum>();
+        StorageAdapter<Object> listener = new StorageAdapter<Object>() {
+            @Override
+            public void postUpdate(Class<Object> cls, Enum updateType) {
+                postUpdates.add(updateType);
+            }
+        };
+        MorphiumSingleton.get().addListener(listener);
+        Query<UncachedObject> failing = MorphiumSingleton.get().createQueryFor(UncachedObject.class).f("value").eq("Uncached 2");
+        try {
+            ModifierBatch batch = MorphiumSingleton.get().batch();
+            batch.set(MorphiumSingleton.get().createQueryFor(UncachedObject.class).f("value").eq("Uncached 1"), "value", "x");
+            //duplicate key
+            batch.set(failing, "value", "x");
+            batch.inc(MorphiumSingleton.get().createQueryFor(UncachedObject.class).f("value").eq("Uncached 3"), "counter", 1000);
+            batch.execute();
+            assert (false) : "No exception thrown";
+        } catch (BatchWriteException e) {
+            assert (e.getFailed().size() == 1) : "Wrong failed operations: " + e.getFailed();
+            assert (e.getFailed().get(0) == failing) : "Wrong operation failed";
+            assert (e.getErrors().size() == 1) : "Wrong errors: " + e.getErrors();
+        } finally {
+            MorphiumSingleton.get().removeListener(listener);
+            coll.dropIndex("unique_value");
+        }
+        //one set was written
+        assert (postUpdates.size() == 2) : "Wrong postUpdate events: " + postUpdates;
+
+        Query<UncachedObject> q = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+        q.f("counter").eq(1003);
+        assert (q.countAll() == 1) : "Operation after the failed one not executed";
+        q = MorphiumSingleton.get().createQueryFor(UncachedObject.class);
+        q.f("value").eq("Uncached 2");
+        assert (q.countAll() == 1) : "Failed operation changed the object";
+    }
 
 }